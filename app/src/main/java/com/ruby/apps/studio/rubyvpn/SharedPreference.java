@@ -2,8 +2,10 @@ package com.ruby.apps.studio.rubyvpn;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Base64;
 
 import com.ruby.apps.studio.rubyvpn.model.Server;
+import com.ruby.apps.studio.rubyvpn.utils.OvpnConfigCodec;
 
 /**
  * Данный класс представляет собой утилиту для работы с SharedPreferences - механизмом хранения настроек приложения.
@@ -34,8 +36,19 @@ public class SharedPreference {
     private static final String SERVER_PROTOCOL = "server_protocol";
     private static final String SERVER_IP_ADDRESS = "server_ip";
     private static final String SERVER_HOSTNAME = "server_hostname";
+    /**
+     * Decoded and Base64 OVPN profiles written by older versions, replaced by {@link #SERVER_OVPN_DEFLATED}
+     */
     private static final String SERVER_OVPN = "server_ovpn";
+    private static final String SERVER_OVPN_BASE64 = "server_ovpn_base64";
+    /**
+     * Profile compressed by {@link OvpnConfigCodec}, Base64 encoded as preferences only hold text
+     */
+    private static final String SERVER_OVPN_DEFLATED = "server_ovpn_deflated";
     private static final String SERVER_PORT = "server_port";
+    private static final String CATALOG_SYNCED_AT = "catalog_synced_at";
+    private static final String CONNECT_ATTEMPTS = "connect_attempts_";
+    private static final String CONNECT_SUCCESSES = "connect_successes_";
 
     public SharedPreference(Context context) {
         this.mPreference = context.getSharedPreferences(APP_PREFS_NAME, Context.MODE_PRIVATE);
@@ -56,7 +69,7 @@ public class SharedPreference {
         mPrefEditor.putLong(SERVER_SPEED, server.getSpeed());
         mPrefEditor.putString(SERVER_PING, server.getPing());
         mPrefEditor.putString(SERVER_PROTOCOL, server.getProtocol());
-        mPrefEditor.putString(SERVER_OVPN, server.getOvpnConfigData());
+        putOvpnConfig(server.getOvpnConfigDeflated());
         mPrefEditor.putInt(SERVER_PORT, server.getPort());
         mPrefEditor.commit();
     }
@@ -75,7 +88,7 @@ public class SharedPreference {
                 mPreference.getLong(SERVER_SPEED,10),
                 mPreference.getString(SERVER_COUNTRY_LONG,"Japan"),
                 mPreference.getString(SERVER_COUNTRY_SHORT,"Japan"),
-                mPreference.getString(SERVER_OVPN,"null"),
+                getOvpnConfigDeflated(),
                 mPreference.getInt(SERVER_PORT,402),
                 mPreference.getString(SERVER_PROTOCOL,"UDP")
         );
@@ -83,7 +96,78 @@ public class SharedPreference {
         return server;
     }
 
+    private byte[] getOvpnConfigDeflated() {
+        String deflated = mPreference.getString(SERVER_OVPN_DEFLATED, null);
+        if (deflated != null) {
+            return Base64.decode(deflated, Base64.NO_WRAP);
+        }
+
+        String legacyConfig = mPreference.getString(SERVER_OVPN, null);
+        String legacyBase64 = mPreference.getString(SERVER_OVPN_BASE64, null);
+        if (legacyConfig == null && legacyBase64 == null) {
+            return null;
+        }
+        // Converted once, the next read finds the compressed profile
+        byte[] config = legacyConfig != null
+                ? OvpnConfigCodec.deflate(legacyConfig)
+                : OvpnConfigCodec.deflateBase64(legacyBase64);
+        putOvpnConfig(config);
+        mPrefEditor.apply();
+        return config;
+    }
+
+    private void putOvpnConfig(byte[] deflated) {
+        if (deflated == null) {
+            mPrefEditor.remove(SERVER_OVPN_DEFLATED);
+        } else {
+            mPrefEditor.putString(SERVER_OVPN_DEFLATED, Base64.encodeToString(deflated, Base64.NO_WRAP));
+        }
+        mPrefEditor.remove(SERVER_OVPN);
+        mPrefEditor.remove(SERVER_OVPN_BASE64);
+    }
+
     public Boolean isPrefsHasServer() {
         return mPreference.contains(SERVER_IP_ADDRESS);
     }
+
+    /**
+     * @return Wall clock time of the last successful catalog download or revalidation, 0 if never
+     */
+    public long getCatalogSyncedAt() {
+        return mPreference.getLong(CATALOG_SYNCED_AT, 0);
+    }
+
+    public void saveCatalogSyncedAt(long timeMillis) {
+        mPrefEditor.putLong(CATALOG_SYNCED_AT, timeMillis);
+        mPrefEditor.apply();
+    }
+
+    /**
+     * Counts a connection attempt to the server, used by ServerRanker as its connect history
+     */
+    public void recordConnectAttempt(Server server) {
+        String key = CONNECT_ATTEMPTS + historyKey(server);
+        mPrefEditor.putInt(key, mPreference.getInt(key, 0) + 1);
+        mPrefEditor.apply();
+    }
+
+    public void recordConnectSuccess(Server server) {
+        String key = CONNECT_SUCCESSES + historyKey(server);
+        mPrefEditor.putInt(key, mPreference.getInt(key, 0) + 1);
+        mPrefEditor.apply();
+    }
+
+    /**
+     * @return Share of successful connections to the server, 0.5 for servers never tried
+     */
+    public double getConnectSuccessRate(Server server) {
+        String key = historyKey(server);
+        int attempts = mPreference.getInt(CONNECT_ATTEMPTS + key, 0);
+        int successes = Math.min(attempts, mPreference.getInt(CONNECT_SUCCESSES + key, 0));
+        return (successes + 1) / (double) (attempts + 2);
+    }
+
+    private static String historyKey(Server server) {
+        return server.getIpAddress() + "/" + server.getHostName();
+    }
 }
@@ -7,6 +7,7 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -32,63 +33,69 @@ import java.util.List;
 public class ServerAdapter extends RecyclerView.Adapter<ServerAdapter.ViewHolder> {
 
 
-    private List<Server> servers = new ArrayList<>();
+    private static final DiffUtil.ItemCallback<Server> DIFF_CALLBACK = new DiffUtil.ItemCallback<Server>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Server old, @NonNull Server server) {
+            return old.hostName.equals(server.hostName)
+                    && old.ipAddress.equals(server.ipAddress);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Server old, @NonNull Server server) {
+            return old.countryLong.equals(server.countryLong)
+                    && old.protocol.equals(server.protocol)
+                    && old.port == server.port
+                    && old.speed == server.speed
+                    && old.ping.equals(server.ping)
+                    && old.measuredPing == server.measuredPing;
+        }
+    };
+
+    private final AsyncListDiffer<Server> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+
+    /**
+     * Last list handed to the differ, its diff may still be running
+     */
+    private List<Server> latestList = new ArrayList<>();
 
     private ServerClickCallback callback;
 
     public ServerAdapter(List<Server> servers, @NonNull ServerClickCallback callback) {
-        this.servers.clear();
-        this.servers.addAll(servers);
+        setHasStableIds(true);
         this.callback = callback;
+        setServerList(servers);
     }
 
     /**
      * @param serverList Эта функция устанавливает новый список серверов в адаптере и обновляет его.
-     *                   Если текущий список серверов пуст, то новый список добавляется полностью,
-     *                   иначе используется класс DiffUtil для вычисления разницы между старым и новым списком,
-     *                   чтобы минимизировать количество необходимых изменений в адаптере. Затем происходит очистка текущего списка, д
-     *                   обавление нового списка и вызов метода dispatchUpdatesTo(), чтобы передать обновления в адаптер. Функция также проверяет,
-     *                   идентичны ли элементы в старом и новом списке по некоторым критериям, таким как hostname, ipAddress и countryLong,
-     *                   чтобы определить, какие элементы нужно обновить.
+     *                   Разница между старым и новым списком вычисляется AsyncListDiffer в фоновом потоке,
+     *                   поэтому обновление большого списка не блокирует главный поток. Если новый список
+     *                   приходит до окончания вычисления, устаревший результат отбрасывается.
+     *                   Элементы считаются одинаковыми по hostname и ipAddress,
+     *                   а содержимое сравнивается по отображаемым полям.
      */
 
     public void setServerList(@NonNull final List<Server> serverList) {
-        if (servers.isEmpty()) {
-            servers.clear();
-            servers.addAll(serverList);
-            notifyItemRangeInserted(0, serverList.size());
-        } else {
-            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
-                @Override
-                public int getOldListSize() {
-                    return servers.size();
-                }
-
-                @Override
-                public int getNewListSize() {
-                    return serverList.size();
-                }
+        latestList = new ArrayList<>(serverList);
+        differ.submitList(latestList);
+    }
 
-                @Override
-                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
-                    Server old = servers.get(oldItemPosition);
-                    Server server = serverList.get(newItemPosition);
-                    return old.hostName.equals(server.hostName);
-                }
+    /**
+     * Rebinds the visible rows after measured pings of the listed servers changed in place
+     */
+    public void notifyPingsChanged() {
+        notifyItemRangeChanged(0, getItemCount());
+    }
 
-                @Override
-                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
-                    Server old = servers.get(oldItemPosition);
-                    Server server = serverList.get(newItemPosition);
-                    return old.hostName.equals(server.hostName)
-                            && old.ipAddress.equals(server.ipAddress)
-                            && old.countryLong.equals(server.countryLong);
-                }
-            });
-            servers.clear();
-            servers.addAll(serverList);
-            result.dispatchUpdatesTo(this);
-        }
+    /**
+     * Appends the next page of servers to the end of the list
+     */
+    public void addServers(@NonNull List<Server> serverList) {
+        List<Server> merged = new ArrayList<>(latestList.size() + serverList.size());
+        merged.addAll(latestList);
+        merged.addAll(serverList);
+        latestList = merged;
+        differ.submitList(latestList);
     }
 
     @Override
@@ -100,17 +107,21 @@ public class ServerAdapter extends RecyclerView.Adapter<ServerAdapter.ViewHolder
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        holder.bind(servers.get(position));
+        holder.bind(differ.getCurrentList().get(position));
     }
 
+    /**
+     * Stable id built from the server identity, so rows keep their views across list updates
+     */
     @Override
     public long getItemId(int position) {
-        return position;
+        Server server = differ.getCurrentList().get(position);
+        return ((long) server.ipAddress.hashCode() << 32) | (server.hostName.hashCode() & 0xffffffffL);
     }
 
     @Override
     public int getItemCount() {
-        return servers == null ? 0 : servers.size();
+        return differ.getCurrentList().size();
     }
 
     static class ViewHolder extends RecyclerView.ViewHolder {
@@ -153,7 +164,8 @@ public class ServerAdapter extends RecyclerView.Adapter<ServerAdapter.ViewHolder
                     server.ipAddress, server.port));
             speedView.setText(context.getString(R.string.format_speed,
                     OvpnUtils.humanReadableCount(server.speed, true)));
-            pingView.setText(context.getString(R.string.format_ping, server.ping));
+            pingView.setText(context.getString(R.string.format_ping, server.measuredPing >= 0
+                    ? String.valueOf(server.measuredPing) : server.ping));
             rootView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
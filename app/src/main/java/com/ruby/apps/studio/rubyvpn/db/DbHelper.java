@@ -5,27 +5,42 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Base64;
+
+import androidx.annotation.WorkerThread;
 
 import com.ruby.apps.studio.rubyvpn.db.ServerContract.ServerEntry;
 
 import com.ruby.apps.studio.rubyvpn.model.Server;
+import com.ruby.apps.studio.rubyvpn.utils.OvpnConfigCodec;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 /**
  * Этот класс является помощником для работы с базой данных SQLite в приложении Android.
  * Он наследуется от класса SQLiteOpenHelper и содержит методы для создания и обновления базы данных,
  * а также методы для вставки, удаления и получения данных из базы данных.
- * Класс также отвечает за сериализацию и десериализацию объектов Server в ContentValues и Cursor.
+ * Класс также отвечает за сериализацию и десериализацию объектов Server в SQLiteStatement и Cursor.
  * Метод getInstance возвращает единственный экземпляр класса в приложении,
  * чтобы избежать создания нескольких экземпляров приложения.
  */
 
 public class DbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 5;
     private static final String DATABASE_NAME = "droidovpn.db";
+    private static final String COMMA = ",";
+    /**
+     * Stands for NULL in numeric columns VPN Gate sends as text
+     */
+    private static final long NO_NUMBER = Long.MIN_VALUE;
     private static DbHelper instance;
 
     public DbHelper(Context context) {
@@ -52,12 +67,96 @@ public class DbHelper extends SQLiteOpenHelper {
      */
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(ServerDatabase.SQL_CREATE_SERVER);
+        createIndexes(db);
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+        for (String sql : ServerDatabase.SQL_CREATE_INDEXES) {
+            db.execSQL(sql);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(ServerDatabase.SQL_DELETE_SERVER);
-        onCreate(db);
+        if (oldVersion > newVersion) {
+            db.execSQL(ServerDatabase.SQL_DELETE_SERVER);
+            onCreate(db);
+            return;
+        }
+        if (oldVersion < 2) {
+            encodeConfigData(db);
+        }
+        if (oldVersion < 3) {
+            db.execSQL(ServerDatabase.SQL_ADD_ROW_HASH);
+        }
+        if (oldVersion < 4) {
+            for (String sql : ServerDatabase.SQL_MIGRATE_TO_V4) {
+                db.execSQL(sql);
+            }
+            createIndexes(db);
+        }
+        if (oldVersion < 5) {
+            deflateConfigData(db);
+        }
+    }
+
+    /**
+     * Version 1 stored decoded OVPN profiles. Versions 2 to 4 kept the Base64 text in the config column
+     * from VPN Gate, so starred rows are re-encoded and the rest is dropped, it is refetched anyway.
+     */
+    private void encodeConfigData(SQLiteDatabase db) {
+        deleteOld(db);
+
+        Cursor cursor = db.query(ServerEntry.TABLE_NAME,
+                new String[]{ServerEntry._ID, ServerEntry.COLUMN_NAME_CONFIG_DATA},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String config = cursor.getString(1);
+                if (config == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(ServerEntry.COLUMN_NAME_CONFIG_DATA, Base64.encodeToString(
+                        config.getBytes(Charset.forName("UTF-8")), Base64.NO_WRAP));
+                db.update(ServerEntry.TABLE_NAME, values, ServerEntry._ID + " = ?",
+                        new String[]{String.valueOf(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Up to version 4 the config column kept the Base64 text from VPN Gate, since version 5 it holds
+     * the profile compressed by {@link OvpnConfigCodec}. Upgrades from version 3 or older declare the
+     * column BLOB, as the version 4 step already creates the new table that way. Databases that were
+     * at version 4 keep the declared TEXT type, SQLite stores the BLOB values there as they are.
+     */
+    private void deflateConfigData(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement(ServerDatabase.SQL_UPDATE_CONFIG_DATA);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        Cursor cursor = db.query(ServerEntry.TABLE_NAME,
+                new String[]{ServerEntry._ID, ServerEntry.COLUMN_NAME_CONFIG_DATA},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(1)) {
+                    continue;
+                }
+                try {
+                    byte[] config = Base64.decode(cursor.getString(1), Base64.DEFAULT);
+                    update.bindBlob(1, OvpnConfigCodec.deflate(deflater, config, 0, config.length));
+                } catch (IllegalArgumentException e) {
+                    update.bindNull(1);
+                }
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            deflater.end();
+        }
     }
 
     @Override
@@ -75,27 +174,225 @@ public class DbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * @param servers Это метод для сохранения списка серверов в базу данных SQLite на устройстве Android.
-     *                Он открывает базу данных, начинает транзакцию, удаляет старые записи,
-     *                вставляет новые записи в таблицу ServerEntry, заканчивает транзакцию и закрывает базу данных.
-     *                Данные сохраняются в виде объектов класса Server,
-     *                а ContentValues используются для преобразования данных в формат,
-     *                поддерживаемый базой данных.
+     * @param servers Это метод для синхронизации списка серверов с базой данных SQLite на устройстве Android.
+     *                Вместо удаления и повторной вставки всех записей он сравнивает новый список с сохраненным
+     *                по ключу ip/hostname и хешу описания и конфигурации сервера: новые серверы вставляются,
+     *                изменившиеся обновляются целиком, у остальных перезаписывается только статистика
+     *                (score, ping, speed и т.д.), если она изменилась, а пропавшие из каталога помечаются
+     *                флагом is_old и удаляются, если их нет и в следующем каталоге.
+     *                Для записи используются заранее скомпилированные SQLiteStatement в одной транзакции.
+     *                Метод выполняет дисковый ввод-вывод, поэтому его нельзя вызывать из главного потока.
+     * @return Number of inserted, updated, refreshed and removed servers
      */
-    public void save(List<Server> servers) {
+    @WorkerThread
+    public SyncResult save(List<Server> servers) {
         SQLiteDatabase db = this.getWritableDatabase();
+        SyncResult result = new SyncResult();
 
         db.beginTransaction();
+        try {
+            Map<String, StoredRow> stored = loadStoredRows(db);
 
-        deleteOld(db);
+            SQLiteStatement insert = db.compileStatement(ServerDatabase.SQL_INSERT_SERVER);
+            SQLiteStatement update = db.compileStatement(ServerDatabase.SQL_UPDATE_SERVER);
+            SQLiteStatement updateStats = db.compileStatement(ServerDatabase.SQL_UPDATE_SERVER_STATS);
+            SQLiteStatement markOld = db.compileStatement(ServerDatabase.SQL_MARK_OLD_SERVER);
+            SQLiteStatement delete = db.compileStatement(ServerDatabase.SQL_DELETE_SERVER_BY_ID);
 
-        for (Server server : servers) {
-            ContentValues values = getContentValues(server);
-            db.insert(ServerEntry.TABLE_NAME, null, values);
+            for (Server server : servers) {
+                long hash = rowHash(server);
+                StoredRow row = stored.remove(key(server.ipAddress, server.hostName));
+                if (row == null) {
+                    bindServer(insert, server, hash);
+                    insert.executeInsert();
+                    result.inserted++;
+                } else if (row.hash != hash) {
+                    bindServer(update, server, hash);
+                    update.bindLong(ServerDatabase.UPDATE_ID_INDEX, row.id);
+                    update.executeUpdateDelete();
+                    result.updated++;
+                } else if (row.isOld || row.statsHash != statsHash(server)) {
+                    bindStats(updateStats, server);
+                    updateStats.bindLong(ServerDatabase.UPDATE_STATS_ID_INDEX, row.id);
+                    updateStats.executeUpdateDelete();
+                    result.refreshed++;
+                }
+            }
+
+            // Whatever is left did not come with this catalog
+            for (StoredRow row : stored.values()) {
+                if (!row.isOld) {
+                    markOld.bindLong(1, row.id);
+                    markOld.executeUpdateDelete();
+                    result.removed++;
+                } else if (!row.isStarred) {
+                    // Missing for the second sync in a row, nobody can pick it anymore
+                    delete.bindLong(1, row.id);
+                    delete.executeUpdateDelete();
+                    result.removed++;
+                }
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    private Map<String, StoredRow> loadStoredRows(SQLiteDatabase db) {
+        Map<String, StoredRow> rows = new HashMap<>();
+        String[] columns = new String[6 + ServerDatabase.STATS_COLUMNS.length];
+        columns[0] = ServerEntry._ID;
+        columns[1] = ServerEntry.COLUMN_NAME_IP_ADDRESS;
+        columns[2] = ServerEntry.COLUMN_NAME_HOST_NAME;
+        columns[3] = ServerEntry.COLUMN_NAME_ROW_HASH;
+        columns[4] = ServerEntry.COLUMN_NAME_IS_OLD;
+        columns[5] = ServerEntry.COLUMN_NAME_IS_STARRED;
+        System.arraycopy(ServerDatabase.STATS_COLUMNS, 0, columns, 6, ServerDatabase.STATS_COLUMNS.length);
+
+        Cursor cursor = db.query(ServerEntry.TABLE_NAME, columns, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                StoredRow row = new StoredRow();
+                row.id = cursor.getLong(0);
+                row.hash = cursor.getLong(3);
+                row.isOld = cursor.getInt(4) == 1;
+                row.isStarred = cursor.getInt(5) == 1;
+                row.statsHash = statsHash(cursor.getLong(6), number(cursor, 7), cursor.getLong(8),
+                        cursor.getLong(9), cursor.getLong(10), cursor.getLong(11), number(cursor, 12));
+                rows.put(key(cursor.getString(1), cursor.getString(2)), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static String key(String ipAddress, String hostName) {
+        return ipAddress + "/" + hostName;
+    }
+
+    private static long number(Cursor cursor, int index) {
+        return cursor.isNull(index) ? NO_NUMBER : cursor.getLong(index);
+    }
+
+    /**
+     * @return Hash over the identity and the OVPN profile of a server, the columns that rarely
+     * change. A row is only rewritten as a whole when it differs.
+     */
+    private static long rowHash(Server server) {
+        long hash = 1125899906842597L;
+        hash = 31 * hash + hashOf(server.hostName);
+        hash = 31 * hash + hashOf(server.ipAddress);
+        hash = 31 * hash + hashOf(server.countryLong);
+        hash = 31 * hash + hashOf(server.countryShort);
+        hash = 31 * hash + hashOf(server.logType);
+        hash = 31 * hash + hashOf(server.operator);
+        hash = 31 * hash + hashOf(server.message);
+        hash = 31 * hash + Arrays.hashCode(server.ovpnConfigDeflated);
+        hash = 31 * hash + server.port;
+        hash = 31 * hash + hashOf(server.protocol);
+        return hash;
+    }
+
+    private static long statsHash(Server server) {
+        return statsHash(server.score, parseNumber(server.ping), server.speed, server.vpnSessions,
+                server.uptime, server.totalUsers, parseNumber(server.totalTraffic));
+    }
+
+    /**
+     * @return Hash over the {@link ServerDatabase#STATS_COLUMNS} as they are stored
+     */
+    private static long statsHash(long score, long ping, long speed, long vpnSessions,
+                                  long uptime, long totalUsers, long totalTraffic) {
+        long hash = 1125899906842597L;
+        hash = 31 * hash + score;
+        hash = 31 * hash + ping;
+        hash = 31 * hash + speed;
+        hash = 31 * hash + vpnSessions;
+        hash = 31 * hash + uptime;
+        hash = 31 * hash + totalUsers;
+        hash = 31 * hash + totalTraffic;
+        return hash;
+    }
+
+    private static int hashOf(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    /**
+     * Binds the catalog columns in the order of {@link ServerDatabase#SQL_INSERT_SERVER}.
+     * The starred flag is left alone so a refresh never drops favourites.
+     */
+    private static void bindServer(SQLiteStatement statement, Server server, long hash) {
+        bindString(statement, 1, server.hostName);
+        bindString(statement, 2, server.ipAddress);
+        statement.bindLong(3, server.score);
+        bindNumber(statement, 4, server.ping);
+        statement.bindLong(5, server.speed);
+        bindString(statement, 6, server.countryLong);
+        bindString(statement, 7, server.countryShort);
+        statement.bindLong(8, server.vpnSessions);
+        statement.bindLong(9, server.uptime);
+        statement.bindLong(10, server.totalUsers);
+        bindNumber(statement, 11, server.totalTraffic);
+        bindString(statement, 12, server.logType);
+        bindString(statement, 13, server.operator);
+        bindString(statement, 14, server.message);
+        bindBlob(statement, 15, server.ovpnConfigDeflated);
+        statement.bindLong(16, server.port);
+        bindString(statement, 17, server.protocol);
+        statement.bindLong(18, hash);
+    }
+
+    /**
+     * Binds the statistics in the order of {@link ServerDatabase#STATS_COLUMNS}
+     */
+    private static void bindStats(SQLiteStatement statement, Server server) {
+        statement.bindLong(1, server.score);
+        bindNumber(statement, 2, server.ping);
+        statement.bindLong(3, server.speed);
+        statement.bindLong(4, server.vpnSessions);
+        statement.bindLong(5, server.uptime);
+        statement.bindLong(6, server.totalUsers);
+        bindNumber(statement, 7, server.totalTraffic);
+    }
+
+    /**
+     * Binds a numeric field VPN Gate sends as text, anything that is not a number is stored as NULL
+     */
+    private static void bindNumber(SQLiteStatement statement, int index, String value) {
+        long number = parseNumber(value);
+        if (number == NO_NUMBER) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, number);
+        }
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return NO_NUMBER;
+        }
+    }
+
+    private static void bindBlob(SQLiteStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
-        db.close();
     }
 
     /**
@@ -121,7 +418,8 @@ public class DbHelper extends SQLiteOpenHelper {
 
         List<Server> servers = new ArrayList<>();
         Cursor cursor = db.query(ServerContract.ServerEntry.TABLE_NAME,
-                ServerContract.ServerEntry.ALL_COLUMNS, null, null, null, null, null, null);
+                ServerContract.ServerEntry.ALL_COLUMNS, ServerDatabase.SELECTION_VISIBLE,
+                null, null, null, null, null);
 
         if (cursor != null) {
             cursor.moveToFirst();
@@ -131,42 +429,49 @@ public class DbHelper extends SQLiteOpenHelper {
             }
             cursor.close();
         }
-        db.close();
 
         return servers;
     }
 
     /**
+     * Loads one window of the server list without the OVPN profiles, ordered by score using its index.
      *
-     *  Это метод, который создает объект ContentValues,
-     *               используемый для вставки данных в базу данных SQLite. В метод передается объект Server,
-     *               содержащий информацию о сервере,
-     *               и с помощью методов put создается объект ContentValues со значениями полей таблицы в базе данных.
-     *               Затем этот объект возвращается из метода для использования при вставке записи в таблицу.
-     * @return
+     * @param offset Number of rows to skip
+     * @param limit  Maximum number of rows in the page
      */
-    private ContentValues getContentValues(Server server) {
-        ContentValues values = new ContentValues();
-        values.put(ServerEntry.COLUMN_NAME_HOST_NAME, server.hostName);
-        values.put(ServerEntry.COLUMN_NAME_IP_ADDRESS, server.ipAddress);
-        values.put(ServerEntry.COLUMN_NAME_SCORE, server.score);
-        values.put(ServerEntry.COLUMN_NAME_PING, server.ping);
-        values.put(ServerEntry.COLUMN_NAME_SPEED, server.speed);
-        values.put(ServerEntry.COLUMN_NAME_COUNTRY_LONG, server.countryLong);
-        values.put(ServerEntry.COLUMN_NAME_COUNTRY_SHORT, server.countryShort);
-        values.put(ServerEntry.COLUMN_NAME_VPN_SESSIONS, server.vpnSessions);
-        values.put(ServerEntry.COLUMN_NAME_UPTIME, server.uptime);
-        values.put(ServerEntry.COLUMN_NAME_TOTAL_USERS, server.totalUsers);
-        values.put(ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC, server.totalTraffic);
-        values.put(ServerEntry.COLUMN_NAME_LOG_TYPE, server.logType);
-        values.put(ServerEntry.COLUMN_NAME_OPERATOR, server.operator);
-        values.put(ServerEntry.COLUMN_NAME_OPERATOR_MESSAGE, server.message);
-        values.put(ServerEntry.COLUMN_NAME_CONFIG_DATA, server.ovpnConfigData);
-        values.put(ServerEntry.COLUMN_NAME_PORT, server.port);
-        values.put(ServerEntry.COLUMN_NAME_PROTOCOL, server.protocol);
-        values.put(ServerEntry.COLUMN_NAME_IS_OLD, 0);
-        values.put(ServerEntry.COLUMN_NAME_IS_STARRED, server.isStarred ? 1 : 0);
-        return values;
+    @WorkerThread
+    public List<Server> getPage(int offset, int limit) {
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        List<Server> servers = new ArrayList<>(limit);
+        Cursor cursor = db.query(ServerEntry.TABLE_NAME,
+                ServerEntry.LIST_COLUMNS, ServerDatabase.SELECTION_VISIBLE,
+                null, null, null, ServerDatabase.ORDER_BY_SCORE, offset + COMMA + limit);
+        try {
+            while (cursor.moveToNext()) {
+                servers.add(cursorToServer(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return servers;
+    }
+
+    /**
+     * @return Compressed OVPN profile of the server, for rows loaded through {@link #getPage(int, int)}
+     */
+    public byte[] getConfigData(String ipAddress, String hostName) {
+        SQLiteDatabase db = this.getReadableDatabase();
+
+        Cursor cursor = db.query(ServerEntry.TABLE_NAME,
+                new String[]{ServerEntry.COLUMN_NAME_CONFIG_DATA},
+                ServerEntry.COLUMN_NAME_IP_ADDRESS + " = ? AND " + ServerEntry.COLUMN_NAME_HOST_NAME + " = ?",
+                new String[]{ipAddress, hostName}, null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
     }
 
     private Server cursorToServer(Cursor cursor) {
@@ -174,21 +479,48 @@ public class DbHelper extends SQLiteOpenHelper {
         server.hostName = cursor.getString(1);
         server.ipAddress = cursor.getString(2);
         server.score = cursor.getInt(3);
-        server.ping = cursor.getString(4);
+        server.ping = cursor.isNull(4) ? "-" : String.valueOf(cursor.getLong(4));
         server.speed = cursor.getLong(5);
         server.countryLong = cursor.getString(6);
         server.countryShort = cursor.getString(7);
         server.vpnSessions = cursor.getLong(8);
         server.uptime = cursor.getLong(9);
         server.totalUsers = cursor.getLong(10);
-        server.totalTraffic = cursor.getString(11);
+        server.totalTraffic = cursor.isNull(11) ? "0" : String.valueOf(cursor.getLong(11));
         server.logType = cursor.getString(12);
         server.operator = cursor.getString(13);
         server.message = cursor.getString(14);
-        server.ovpnConfigData = cursor.getString(15);
+        server.ovpnConfigDeflated = cursor.getBlob(15);
         server.port = cursor.getInt(16);
         server.protocol = cursor.getString(17);
         server.isStarred = cursor.getInt(19) == 1;
         return server;
     }
+
+    /**
+     * Outcome of {@link #save(List)}, the work done is proportional to these counts
+     */
+    public static class SyncResult {
+        public int inserted;
+        public int updated;
+        /**
+         * Rows of which only the statistics were rewritten
+         */
+        public int refreshed;
+        public int removed;
+
+        @Override
+        public String toString() {
+            return "inserted=" + inserted + ", updated=" + updated + ", refreshed=" + refreshed +
+                    ", removed=" + removed;
+        }
+    }
+
+    private static class StoredRow {
+        long id;
+        long hash;
+        long statsHash;
+        boolean isOld;
+        boolean isStarred;
+    }
 }
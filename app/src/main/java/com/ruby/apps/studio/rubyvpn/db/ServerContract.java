@@ -33,6 +33,7 @@ final class ServerContract {
         static final String COLUMN_NAME_PROTOCOL = "protocol";
         static final String COLUMN_NAME_IS_OLD = "is_old";
         static final String COLUMN_NAME_IS_STARRED = "is_starred";
+        static final String COLUMN_NAME_ROW_HASH = "row_hash";
 
         static final String[] ALL_COLUMNS = {
                 _ID,
@@ -54,7 +55,23 @@ final class ServerContract {
                 COLUMN_NAME_PORT,
                 COLUMN_NAME_PROTOCOL,
                 COLUMN_NAME_IS_OLD,
-                COLUMN_NAME_IS_STARRED
+                COLUMN_NAME_IS_STARRED,
+                COLUMN_NAME_ROW_HASH
         };
+
+        /**
+         * Same layout as {@link #ALL_COLUMNS} but the OVPN profile is not read, for list screens
+         */
+        static final String[] LIST_COLUMNS = listColumns();
+
+        private static String[] listColumns() {
+            String[] columns = ALL_COLUMNS.clone();
+            for (int i = 0; i < columns.length; i++) {
+                if (COLUMN_NAME_CONFIG_DATA.equals(columns[i])) {
+                    columns[i] = "NULL AS " + COLUMN_NAME_CONFIG_DATA;
+                }
+            }
+            return columns;
+        }
     }
 }
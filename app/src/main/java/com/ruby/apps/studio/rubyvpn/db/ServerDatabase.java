@@ -12,30 +12,217 @@ class ServerDatabase {
 
     private static final String TEXT_TYPE = " TEXT";
     private static final String INTEGER_TYPE = " INTEGER";
+    private static final String BLOB_TYPE = " BLOB";
     private static final String COMMA_SEP = ",";
-    static final String SQL_CREATE_SERVER =
-            "CREATE TABLE " + ServerEntry.TABLE_NAME + " (" +
-            ServerEntry._ID + " INTEGER PRIMARY KEY," +
-            ServerEntry.COLUMN_NAME_HOST_NAME + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_IP_ADDRESS + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_SCORE + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_PING + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_SPEED + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_COUNTRY_LONG + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_COUNTRY_SHORT + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_VPN_SESSIONS + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_UPTIME + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_TOTAL_USERS + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_LOG_TYPE + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_OPERATOR + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_OPERATOR_MESSAGE + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_CONFIG_DATA + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_PORT + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_PROTOCOL + TEXT_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_IS_OLD + INTEGER_TYPE + COMMA_SEP +
-            ServerEntry.COLUMN_NAME_IS_STARRED + INTEGER_TYPE +
-            " )";
+    static final String SQL_CREATE_SERVER = createServerTable(ServerEntry.TABLE_NAME);
+
+    /**
+     * Indexes backing the sorting and filtering of the server picker and the lookups of the cache sync
+     */
+    static final String[] SQL_CREATE_INDEXES = {
+            createIndex(ServerEntry.COLUMN_NAME_IP_ADDRESS),
+            createIndex(ServerEntry.COLUMN_NAME_COUNTRY_SHORT),
+            createIndex(ServerEntry.COLUMN_NAME_IS_STARRED),
+            createIndex(ServerEntry.COLUMN_NAME_SCORE),
+            createIndex(ServerEntry.COLUMN_NAME_SPEED)
+    };
+
+    static final String SQL_ADD_ROW_HASH =
+            "ALTER TABLE " + ServerEntry.TABLE_NAME +
+            " ADD COLUMN " + ServerEntry.COLUMN_NAME_ROW_HASH + INTEGER_TYPE;
+
+    /**
+     * Columns filled from the VPN Gate catalog, in bind order of the insert and update statements
+     */
+    private static final String[] CATALOG_COLUMNS = {
+            ServerEntry.COLUMN_NAME_HOST_NAME,
+            ServerEntry.COLUMN_NAME_IP_ADDRESS,
+            ServerEntry.COLUMN_NAME_SCORE,
+            ServerEntry.COLUMN_NAME_PING,
+            ServerEntry.COLUMN_NAME_SPEED,
+            ServerEntry.COLUMN_NAME_COUNTRY_LONG,
+            ServerEntry.COLUMN_NAME_COUNTRY_SHORT,
+            ServerEntry.COLUMN_NAME_VPN_SESSIONS,
+            ServerEntry.COLUMN_NAME_UPTIME,
+            ServerEntry.COLUMN_NAME_TOTAL_USERS,
+            ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC,
+            ServerEntry.COLUMN_NAME_LOG_TYPE,
+            ServerEntry.COLUMN_NAME_OPERATOR,
+            ServerEntry.COLUMN_NAME_OPERATOR_MESSAGE,
+            ServerEntry.COLUMN_NAME_CONFIG_DATA,
+            ServerEntry.COLUMN_NAME_PORT,
+            ServerEntry.COLUMN_NAME_PROTOCOL,
+            ServerEntry.COLUMN_NAME_ROW_HASH
+    };
+
+    /**
+     * Load and usage statistics VPN Gate changes on every refresh, in bind order of
+     * {@link #SQL_UPDATE_SERVER_STATS}. They are not part of the row hash.
+     */
+    static final String[] STATS_COLUMNS = {
+            ServerEntry.COLUMN_NAME_SCORE,
+            ServerEntry.COLUMN_NAME_PING,
+            ServerEntry.COLUMN_NAME_SPEED,
+            ServerEntry.COLUMN_NAME_VPN_SESSIONS,
+            ServerEntry.COLUMN_NAME_UPTIME,
+            ServerEntry.COLUMN_NAME_TOTAL_USERS,
+            ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC
+    };
+
+    static final String SQL_INSERT_SERVER = buildInsertServer();
+
+    static final String SQL_UPDATE_SERVER = buildUpdate(CATALOG_COLUMNS);
+
+    /**
+     * Bind index of the row id in {@link #SQL_UPDATE_SERVER}
+     */
+    static final int UPDATE_ID_INDEX = CATALOG_COLUMNS.length + 1;
+
+    /**
+     * Writes only the statistics, the OVPN profile and the other columns stay untouched
+     */
+    static final String SQL_UPDATE_SERVER_STATS = buildUpdate(STATS_COLUMNS);
+
+    /**
+     * Bind index of the row id in {@link #SQL_UPDATE_SERVER_STATS}
+     */
+    static final int UPDATE_STATS_ID_INDEX = STATS_COLUMNS.length + 1;
+
+    static final String SQL_UPDATE_CONFIG_DATA =
+            "UPDATE " + ServerEntry.TABLE_NAME + " SET " + ServerEntry.COLUMN_NAME_CONFIG_DATA +
+            " = ? WHERE " + ServerEntry._ID + " = ?";
+
+    static final String SQL_MARK_OLD_SERVER =
+            "UPDATE " + ServerEntry.TABLE_NAME + " SET " + ServerEntry.COLUMN_NAME_IS_OLD +
+            " = 1 WHERE " + ServerEntry._ID + " = ?";
+
+    static final String SQL_DELETE_SERVER_BY_ID =
+            "DELETE FROM " + ServerEntry.TABLE_NAME + " WHERE " + ServerEntry._ID + " = ?";
+
+    static final String ORDER_BY_SCORE = ServerEntry.COLUMN_NAME_SCORE + " DESC";
+
+    /**
+     * Servers of the latest catalog plus starred ones that went away
+     */
+    static final String SELECTION_VISIBLE =
+            ServerEntry.COLUMN_NAME_IS_OLD + " = 0 OR " + ServerEntry.COLUMN_NAME_IS_STARRED + " = 1";
 
     static final String SQL_DELETE_SERVER = "DROP TABLE IF EXISTS " + ServerEntry.TABLE_NAME;
+
+    private static final String MIGRATION_TABLE_NAME = ServerEntry.TABLE_NAME + "_v4";
+
+    /**
+     * Version 4 turned ping and total_traffic into INTEGER columns. SQLite cannot change the type
+     * of a column, so the rows are copied into a new table. Ping values VPN Gate sent as "-" become NULL.
+     * The table is spelled out rather than built by {@link #createServerTable}, so later schema
+     * changes do not alter what this step creates.
+     */
+    static final String[] SQL_MIGRATE_TO_V4 = {
+            "CREATE TABLE " + MIGRATION_TABLE_NAME + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "host_name TEXT," +
+                    "ip_address TEXT," +
+                    "score INTEGER," +
+                    "ping INTEGER," +
+                    "speed INTEGER," +
+                    "country_long TEXT," +
+                    "country_short TEXT," +
+                    "vpn_sessions INTEGER," +
+                    "uptime INTEGER," +
+                    "total_users INTEGER," +
+                    "total_traffic INTEGER," +
+                    "log_type TEXT," +
+                    "operator_name TEXT," +
+                    "operator_message TEXT," +
+                    "config_data BLOB," +
+                    "port INTEGER," +
+                    "protocol TEXT," +
+                    "is_old INTEGER," +
+                    "is_starred INTEGER," +
+                    "row_hash INTEGER" +
+                    " )",
+            "INSERT INTO " + MIGRATION_TABLE_NAME + " SELECT " +
+                    ServerEntry._ID + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_HOST_NAME + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_IP_ADDRESS + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_SCORE + COMMA_SEP +
+                    castToInteger(ServerEntry.COLUMN_NAME_PING) + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_SPEED + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_COUNTRY_LONG + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_COUNTRY_SHORT + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_VPN_SESSIONS + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_UPTIME + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_TOTAL_USERS + COMMA_SEP +
+                    castToInteger(ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC) + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_LOG_TYPE + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_OPERATOR + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_OPERATOR_MESSAGE + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_CONFIG_DATA + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_PORT + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_PROTOCOL + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_IS_OLD + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_IS_STARRED + COMMA_SEP +
+                    ServerEntry.COLUMN_NAME_ROW_HASH +
+                    " FROM " + ServerEntry.TABLE_NAME,
+            SQL_DELETE_SERVER,
+            "ALTER TABLE " + MIGRATION_TABLE_NAME + " RENAME TO " + ServerEntry.TABLE_NAME
+    };
+
+    private static String buildInsertServer() {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String column : CATALOG_COLUMNS) {
+            columns.append(column).append(COMMA_SEP);
+            values.append("?").append(COMMA_SEP);
+        }
+        columns.append(ServerEntry.COLUMN_NAME_IS_OLD).append(COMMA_SEP)
+                .append(ServerEntry.COLUMN_NAME_IS_STARRED);
+        values.append("0,0");
+        return "INSERT INTO " + ServerEntry.TABLE_NAME + " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    private static String buildUpdate(String[] columns) {
+        StringBuilder assignments = new StringBuilder();
+        for (String column : columns) {
+            assignments.append(column).append(" = ?").append(COMMA_SEP);
+        }
+        assignments.append(ServerEntry.COLUMN_NAME_IS_OLD).append(" = 0");
+        return "UPDATE " + ServerEntry.TABLE_NAME + " SET " + assignments +
+                " WHERE " + ServerEntry._ID + " = ?";
+    }
+
+    private static String createServerTable(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                ServerEntry._ID + " INTEGER PRIMARY KEY," +
+                ServerEntry.COLUMN_NAME_HOST_NAME + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_IP_ADDRESS + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_SCORE + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_PING + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_SPEED + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_COUNTRY_LONG + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_COUNTRY_SHORT + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_VPN_SESSIONS + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_UPTIME + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_TOTAL_USERS + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_TOTAL_TRAFFIC + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_LOG_TYPE + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_OPERATOR + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_OPERATOR_MESSAGE + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_CONFIG_DATA + BLOB_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_PORT + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_PROTOCOL + TEXT_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_IS_OLD + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_IS_STARRED + INTEGER_TYPE + COMMA_SEP +
+                ServerEntry.COLUMN_NAME_ROW_HASH + INTEGER_TYPE +
+                " )";
+    }
+
+    private static String createIndex(String column) {
+        return "CREATE INDEX IF NOT EXISTS " + ServerEntry.TABLE_NAME + "_" + column +
+                " ON " + ServerEntry.TABLE_NAME + " (" + column + ")";
+    }
+
+    private static String castToInteger(String column) {
+        return "CASE WHEN " + column + " GLOB '[0-9]*' THEN CAST(" + column + " AS INTEGER) END";
+    }
 }
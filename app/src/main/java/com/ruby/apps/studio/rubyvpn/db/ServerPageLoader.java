@@ -0,0 +1,127 @@
+package com.ruby.apps.studio.rubyvpn.db;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Постраничный источник данных для списка серверов. Он читает из базы данных окна фиксированного размера
+ * (без конфигураций OpenVPN) в фоновом потоке и передает их в главный поток через Callback,
+ * поэтому экран выбора сервера открывается сразу, даже если в кеше тысячи серверов.
+ * Следующая страница запрашивается методом loadNextPage(), когда пользователь прокручивает список к концу.
+ * Метод cancel() останавливает загрузку, например когда список заменяется свежими данными из сети.
+ * Конфигурация выбранного сервера читается отдельно методом loadConfig() в том же фоновом потоке.
+ */
+public class ServerPageLoader {
+
+    private final DbHelper dbHelper;
+    private final int pageSize;
+    private final Callback callback;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private int loadedCount;
+    private boolean loading;
+    private boolean endReached;
+    private boolean cancelled;
+
+    public ServerPageLoader(@NonNull DbHelper dbHelper, int pageSize, @NonNull Callback callback) {
+        this.dbHelper = dbHelper;
+        this.pageSize = pageSize;
+        this.callback = callback;
+    }
+
+    /**
+     * Requests the page after the ones already delivered. Ignored while a page is in flight
+     * or after the last page.
+     */
+    @MainThread
+    public void loadNextPage() {
+        if (loading || endReached || cancelled) {
+            return;
+        }
+        loading = true;
+
+        final int offset = loadedCount;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Server> page = dbHelper.getPage(offset, pageSize);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(offset, page);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int offset, List<Server> page) {
+        loading = false;
+        if (cancelled) {
+            return;
+        }
+        loadedCount += page.size();
+        endReached = page.size() < pageSize;
+        callback.onPageLoaded(page, offset == 0, endReached);
+    }
+
+    /**
+     * Reads the OVPN profile of a server from a loaded page, pages are loaded without them.
+     * The callback runs on the main thread, right away if the server already has its profile.
+     */
+    @MainThread
+    public void loadConfig(@NonNull final Server server, @NonNull final ConfigCallback callback) {
+        if (server.ovpnConfigDeflated != null) {
+            callback.onConfigLoaded(server);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] config = dbHelper.getConfigData(server.ipAddress, server.hostName);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.ovpnConfigDeflated = config;
+                        callback.onConfigLoaded(server);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops paging, pages still in flight are dropped
+     */
+    @MainThread
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Cancels paging and releases the loader thread
+     */
+    @MainThread
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    public interface Callback {
+        void onPageLoaded(@NonNull List<Server> page, boolean isFirstPage, boolean isLastPage);
+    }
+
+    public interface ConfigCallback {
+        void onConfigLoaded(@NonNull Server server);
+    }
+}
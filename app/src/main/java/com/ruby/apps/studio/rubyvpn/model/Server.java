@@ -2,7 +2,13 @@ package com.ruby.apps.studio.rubyvpn.model;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import com.ruby.apps.studio.rubyvpn.utils.OvpnConfigCodec;
 
+/**
+ * Модель VPN-сервера из каталога VPN Gate. Конфигурация OpenVPN хранится сжатой (deflate)
+ * и распаковывается только при подключении через getOvpnConfigData(),
+ * поэтому список серверов в памяти, в Parcel и в базе данных не содержит текста конфигураций.
+ */
 public class Server implements Parcelable {
 
     public String hostName;
@@ -19,21 +25,28 @@ public class Server implements Parcelable {
     public String logType;
     public String operator;
     public String message;
-    public String ovpnConfigData;
+    /**
+     * OVPN profile compressed by {@link OvpnConfigCodec}
+     */
+    public byte[] ovpnConfigDeflated;
     public int port;
     public String protocol;
     public boolean isStarred;
+    /**
+     * Round trip time from this device measured by LatencyProber, -1 until known. Not persisted.
+     */
+    public long measuredPing = -1;
 
     public Server() {}
 
-    public Server(String hostName, String ipAddress, String ping, long speed, String countryLong, String countryShort, String ovpnConfigData, int port, String protocol) {
+    public Server(String hostName, String ipAddress, String ping, long speed, String countryLong, String countryShort, byte[] ovpnConfigDeflated, int port, String protocol) {
         this.hostName = hostName;
         this.ipAddress = ipAddress;
         this.ping = ping;
         this.speed = speed;
         this.countryLong = countryLong;
         this.countryShort = countryShort;
-        this.ovpnConfigData = ovpnConfigData;
+        this.ovpnConfigDeflated = ovpnConfigDeflated;
         this.port = port;
         this.protocol = protocol;
     }
@@ -150,12 +163,24 @@ public class Server implements Parcelable {
         this.message = message;
     }
 
+    /**
+     * Inflates the OVPN profile. Meant to be called right before connecting, the result is not kept.
+     *
+     * @return OVPN profile text, or null if the server has no usable config
+     */
     public String getOvpnConfigData() {
-        return ovpnConfigData;
+        if (ovpnConfigDeflated == null) {
+            return null;
+        }
+        return OvpnConfigCodec.inflate(ovpnConfigDeflated);
+    }
+
+    public byte[] getOvpnConfigDeflated() {
+        return ovpnConfigDeflated;
     }
 
-    public void setOvpnConfigData(String ovpnConfigData) {
-        this.ovpnConfigData = ovpnConfigData;
+    public void setOvpnConfigDeflated(byte[] ovpnConfigDeflated) {
+        this.ovpnConfigDeflated = ovpnConfigDeflated;
     }
 
     public int getPort() {
@@ -174,6 +199,14 @@ public class Server implements Parcelable {
         this.protocol = protocol;
     }
 
+    public long getMeasuredPing() {
+        return measuredPing;
+    }
+
+    public void setMeasuredPing(long measuredPing) {
+        this.measuredPing = measuredPing;
+    }
+
     public boolean isStarred() {
         return isStarred;
     }
@@ -203,7 +236,7 @@ public class Server implements Parcelable {
         dest.writeString(this.logType);
         dest.writeString(this.operator);
         dest.writeString(this.message);
-        dest.writeString(this.ovpnConfigData);
+        dest.writeByteArray(this.ovpnConfigDeflated);
         dest.writeInt(this.port);
         dest.writeString(this.protocol);
         dest.writeByte(this.isStarred ? (byte) 1 : (byte) 0);
@@ -224,7 +257,7 @@ public class Server implements Parcelable {
         this.logType = source.readString();
         this.operator = source.readString();
         this.message = source.readString();
-        this.ovpnConfigData = source.readString();
+        this.ovpnConfigDeflated = source.createByteArray();
         this.port = source.readInt();
         this.protocol = source.readString();
         this.isStarred = source.readByte() != 0;
@@ -245,7 +278,7 @@ public class Server implements Parcelable {
         this.logType = in.readString();
         this.operator = in.readString();
         this.message = in.readString();
-        this.ovpnConfigData = in.readString();
+        this.ovpnConfigDeflated = in.createByteArray();
         this.port = in.readInt();
         this.protocol = in.readString();
         this.isStarred = in.readByte() != 0;
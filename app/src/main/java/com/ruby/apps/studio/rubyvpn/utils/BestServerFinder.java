@@ -0,0 +1,158 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ruby.apps.studio.rubyvpn.db.DbHelper;
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Выбор сервера в одно нажатие. Берет из кеша базы данных лучших по score кандидатов, измеряет до них
+ * задержку через LatencyProber и по мере поступления результатов обновляет ServerRanker.
+ * Когда ответили все кандидаты или истекло время поиска, лучший сервер с загруженной
+ * OVPN-конфигурацией передается в Callback в главном потоке.
+ */
+public class BestServerFinder {
+
+    private static final int CANDIDATE_COUNT = 64;
+    private static final long SEARCH_TIMEOUT_MS = 3000;
+
+    private final DbHelper dbHelper;
+    private final ServerRanker.ConnectHistory history;
+    private final Callback callback;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Search search;
+
+    public BestServerFinder(@NonNull DbHelper dbHelper, @NonNull ServerRanker.ConnectHistory history,
+                            @NonNull Callback callback) {
+        this.dbHelper = dbHelper;
+        this.history = history;
+        this.callback = callback;
+    }
+
+    /**
+     * Starts a search, ignored while one is running
+     */
+    @MainThread
+    public void find() {
+        if (search != null) {
+            return;
+        }
+        search = new Search();
+        executor.execute(search::start);
+        mainHandler.postDelayed(search.timeout, SEARCH_TIMEOUT_MS);
+    }
+
+    /**
+     * Drops the running search, its result is not delivered
+     */
+    @MainThread
+    public void cancel() {
+        if (search != null) {
+            search.finished.set(true);
+            search.release();
+            search = null;
+        }
+    }
+
+    /**
+     * Cancels the search and releases the finder thread
+     */
+    @MainThread
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    private void deliver(final Search finished, @Nullable final Server server) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (search != finished) {
+                    return;
+                }
+                search = null;
+                callback.onBestServerFound(server);
+            }
+        });
+    }
+
+    private class Search implements LatencyProber.Listener {
+        final ServerRanker ranker = new ServerRanker(ServerRanker.DEFAULT_TOP_K, history);
+        final LatencyProber prober = new LatencyProber(LatencyCache.getInstance(), this);
+        final AtomicBoolean finished = new AtomicBoolean();
+        final AtomicInteger remaining = new AtomicInteger();
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                finish();
+            }
+        };
+
+        void start() {
+            List<Server> candidates = dbHelper.getPage(0, CANDIDATE_COUNT);
+            if (candidates.isEmpty()) {
+                finish();
+                return;
+            }
+            remaining.set(candidates.size());
+            for (Server server : candidates) {
+                ranker.add(server);
+            }
+            prober.probe(candidates);
+        }
+
+        @Override
+        public void onLatencyMeasured(@NonNull Server server, long rttMs) {
+            server.measuredPing = rttMs;
+            ranker.onLatencyMeasured(server, rttMs);
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        /**
+         * Takes the current leader, servers still being probed keep their reported ping
+         */
+        void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            release();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Server best = ranker.best();
+                    if (best != null && best.ovpnConfigDeflated == null) {
+                        best.ovpnConfigDeflated = dbHelper.getConfigData(best.ipAddress, best.hostName);
+                    }
+                    deliver(Search.this, best);
+                }
+            });
+        }
+
+        void release() {
+            mainHandler.removeCallbacks(timeout);
+            prober.shutdown();
+        }
+    }
+
+    public interface Callback {
+        /**
+         * @param server Best ranked server, or null when the cache is empty or no candidate answered
+         */
+        void onBestServerFound(@Nullable Server server);
+    }
+}
@@ -0,0 +1,53 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Общий OkHttpClient для загрузки каталога VPN Gate. Он использует дисковый HTTP-кеш, поэтому
+ * OkHttp сам отправляет If-None-Match / If-Modified-Since по сохраненным ETag и Last-Modified,
+ * а неизменившийся каталог стоит одного ответа 304. Ответ хранится в кеше сжатым (gzip, который OkHttp
+ * запрашивает и распаковывает прозрачно). isNotModified() сообщает, что тело ответа взято из кеша
+ * без изменений и его не нужно повторно разбирать и сохранять в базу данных.
+ */
+public class CatalogHttpClient {
+
+    private static final String CACHE_DIR = "catalog_http";
+    private static final long CACHE_SIZE_BYTES = 16 * 1024 * 1024;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static OkHttpClient instance;
+
+    private CatalogHttpClient() {
+    }
+
+    public static synchronized OkHttpClient getInstance(@NonNull Context context) {
+        if (instance == null) {
+            File cacheDir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            instance = new OkHttpClient.Builder()
+                    .cache(new Cache(cacheDir, CACHE_SIZE_BYTES))
+                    .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+        }
+        return instance;
+    }
+
+    /**
+     * @return Whether the body is the cached copy, either still fresh or revalidated with a 304
+     */
+    public static boolean isNotModified(@NonNull Response response) {
+        Response networkResponse = response.networkResponse();
+        return response.cacheResponse() != null
+                && (networkResponse == null || networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED);
+    }
+}
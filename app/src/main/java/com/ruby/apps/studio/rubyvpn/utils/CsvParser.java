@@ -1,13 +1,12 @@
 package com.ruby.apps.studio.rubyvpn.utils;
 
-import android.util.Base64;
+import androidx.annotation.NonNull;
 
 import com.ruby.apps.studio.rubyvpn.model.Server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,74 +15,71 @@ import okhttp3.Response;
 /**
  *Этот класс предназначен для разбора CSV-файла, содержащего информацию о серверах VPN.
  * Он содержит методы для преобразования строки CSV в объект класса Server (stringToServer),
- * парсинга CSV-файла и создания списка объектов Server (parse), а также методы для получения значения порта
- * и протокола из файла конфигурации OpenVPN (getPort и getProtocol). Константы HOST_NAME, IP_ADDRESS и
- * т.д. задают индексы полей CSV-файла. Он также использует класс Base64 для декодирования данных конфигурации OpenVPN.
+ * и парсинга CSV-файла и создания списка объектов Server (parse). Константы HOST_NAME, IP_ADDRESS и
+ * т.д. задают индексы полей CSV-файла. Сам разбор выполняет потоковый VpnGateCsvReader, а перегрузка
+ * parse(Response, ServerListener) отдает серверы по одному, пока ответ еще загружается.
  */
 
 public class CsvParser {
 
-    private static final int HOST_NAME = 0;
-    private static final int IP_ADDRESS = 1;
-    private static final int SCORE = 2;
-    private static final int PING = 3;
-    private static final int SPEED = 4;
-    private static final int COUNTRY_LONG = 5;
-    private static final int COUNTRY_SHORT = 6;
-    private static final int VPN_SESSION = 7;
-    private static final int UPTIME = 8;
-    private static final int TOTAL_USERS = 9;
-    private static final int TOTAL_TRAFFIC = 10;
-    private static final int LOG_TYPE = 11;
-    private static final int OPERATOR = 12;
-    private static final int MESSAGE = 13;
-    private static final int OVPN_CONFIG_DATA = 14;
-
-    private static final int PORT_INDEX = 2;
-    private static final int PROTOCOL_INDEX = 1;
+    static final int HOST_NAME = 0;
+    static final int IP_ADDRESS = 1;
+    static final int SCORE = 2;
+    static final int PING = 3;
+    static final int SPEED = 4;
+    static final int COUNTRY_LONG = 5;
+    static final int COUNTRY_SHORT = 6;
+    static final int VPN_SESSION = 7;
+    static final int UPTIME = 8;
+    static final int TOTAL_USERS = 9;
+    static final int TOTAL_TRAFFIC = 10;
+    static final int LOG_TYPE = 11;
+    static final int OPERATOR = 12;
+    static final int MESSAGE = 13;
+    static final int OVPN_CONFIG_DATA = 14;
 
     public static Server stringToServer(String line) {
-        String[] vpn = line.split(",");
-
-        Server server = new Server();
-        server.hostName = vpn[HOST_NAME];
-        server.ipAddress = vpn[IP_ADDRESS];
-        server.score = Integer.parseInt(vpn[SCORE]);
-        server.ping = vpn[PING];
-        server.speed = Long.parseLong(vpn[SPEED]);
-        server.countryLong = vpn[COUNTRY_LONG];
-        server.countryShort = vpn[COUNTRY_SHORT];
-        server.vpnSessions = Long.parseLong(vpn[VPN_SESSION]);
-        server.uptime = Long.parseLong(vpn[UPTIME]);
-        server.totalUsers = Long.parseLong(vpn[TOTAL_USERS]);
-        server.totalTraffic = vpn[TOTAL_TRAFFIC];
-        server.logType = vpn[LOG_TYPE];
-        server.operator = vpn[OPERATOR];
-        server.message = vpn[MESSAGE];
-        server.ovpnConfigData = new String(Base64.decode(
-                vpn[OVPN_CONFIG_DATA], Base64.DEFAULT));
-
-        String[] lines = server.ovpnConfigData.split("[\\r\\n]+");
-        server.port = getPort(lines);
-        server.protocol = getProtocol(lines);
-
-        return server;
+        VpnGateCsvReader reader = new VpnGateCsvReader(
+                new ByteArrayInputStream(line.getBytes(Charset.forName("UTF-8"))));
+        try {
+            return reader.next();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     public static List<Server> parse(Response response) {
-        List<Server> servers = new ArrayList<>();
-        InputStream in = null;
-        BufferedReader reader = null;
+        final List<Server> servers = new ArrayList<>();
+        parse(response, new ServerListener() {
+            @Override
+            public void onServer(@NonNull Server server) {
+                servers.add(server);
+            }
+        });
+        return servers;
+    }
+
+    /**
+     * Streams the servers of the response to the listener as soon as each row is downloaded.
+     *
+     * @return Number of servers delivered to the listener
+     */
+    public static int parse(Response response, @NonNull ServerListener listener) {
+        int count = 0;
+        VpnGateCsvReader reader = null;
 
         try {
-            in = response.body().byteStream();
-            reader = new BufferedReader(new InputStreamReader(in));
+            reader = new VpnGateCsvReader(response.body().byteStream());
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.startsWith("*") && !line.startsWith("#")) {
-                    servers.add(stringToServer(line));
-                }
+            Server server;
+            while ((server = reader.next()) != null) {
+                listener.onServer(server);
+                count++;
             }
 
         } catch (IOException ignored) {
@@ -91,44 +87,14 @@ public class CsvParser {
             try {
                 if (reader != null)
                     reader.close();
-                if (in != null)
-                    in.close();
             } catch (IOException ignored) {
             }
         }
 
-        return servers;
-    }
-
-    /**
-     * @return Port used in OVPN file ("remote <HOSTNAME> <PORT>")
-     * */
-    private static int getPort(String[] lines) {
-        int port = 0;
-        for (String line : lines) {
-            if (!line.startsWith("#")) {
-                if (line.startsWith("remote")) {
-                    port = Integer.parseInt(line.split(" ")[PORT_INDEX]);
-                    break;
-                }
-            }
-        }
-        return port;
+        return count;
     }
 
-    /**
-     * @return Protocol used in OVPN file. ("proto <TCP/UDP>")
-     * */
-    private static String getProtocol(String[] lines) {
-        String protocol = "";
-        for (String line : lines) {
-            if (!line.startsWith("#")) {
-                if (line.startsWith("proto")) {
-                    protocol = line.split(" ")[PROTOCOL_INDEX];
-                    break;
-                }
-            }
-        }
-        return protocol;
+    public interface ServerListener {
+        void onServer(@NonNull Server server);
     }
 }
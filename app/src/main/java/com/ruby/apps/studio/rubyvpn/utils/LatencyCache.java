@@ -0,0 +1,66 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кеш измеренных задержек до серверов. Результат LatencyProber хранится по ключу ip:port/протокол
+ * вместе со временем измерения и считается актуальным в течение TTL, после чего сервер измеряется заново.
+ * Один экземпляр на процесс (getInstance), поэтому повторное открытие списка серверов не запускает
+ * измерения для только что проверенных серверов.
+ */
+public class LatencyCache {
+
+    public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+    public static final long UNKNOWN = -1;
+
+    private static LatencyCache instance;
+
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public LatencyCache(long ttlMs) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    public static synchronized LatencyCache getInstance() {
+        if (instance == null) {
+            instance = new LatencyCache(DEFAULT_TTL_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * @return Fresh round trip time in ms, -1 if the server did not answer, or null when it has to be measured
+     */
+    public synchronized Long get(Server server) {
+        Entry entry = entries.get(key(server));
+        if (entry == null || System.nanoTime() - entry.measuredAt > ttlNanos) {
+            return null;
+        }
+        return entry.rttMs;
+    }
+
+    public synchronized void put(Server server, long rttMs) {
+        Entry entry = new Entry();
+        entry.rttMs = rttMs;
+        entry.measuredAt = System.nanoTime();
+        entries.put(key(server), entry);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static String key(Server server) {
+        return server.ipAddress + ":" + server.port + "/" + server.protocol;
+    }
+
+    private static class Entry {
+        long rttMs;
+        long measuredAt;
+    }
+}
@@ -0,0 +1,263 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import androidx.annotation.NonNull;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Измеряет реальную задержку (RTT) от сети пользователя до серверов каталога, а не значение ping,
+ * которое VPN Gate измерил из Японии. Все проверки выполняются одним фоновым потоком на неблокирующих
+ * NIO-каналах через Selector, одновременно не больше maxConcurrent штук:
+ * для TCP-серверов измеряется время установки соединения, для UDP-серверов отправляется пакет
+ * P_CONTROL_HARD_RESET_CLIENT_V2 протокола OpenVPN и измеряется время до первого ответа.
+ * Результаты по мере получения передаются в Listener и сохраняются в LatencyCache,
+ * серверы со свежим результатом в кеше повторно не проверяются.
+ */
+public class LatencyProber {
+
+    public static final int DEFAULT_MAX_CONCURRENT = 32;
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private static final long SELECT_INTERVAL_MS = 50;
+    private static final int OPCODE_HARD_RESET_CLIENT_V2 = 7;
+
+    private final int maxConcurrent;
+    private final long timeoutNanos;
+    private final LatencyCache cache;
+    private final Listener listener;
+
+    private final Queue<Server> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1500);
+    private final Random random = new Random();
+
+    private volatile boolean shutdown;
+
+    public LatencyProber(@NonNull LatencyCache cache, @NonNull Listener listener) {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_TIMEOUT_MS, cache, listener);
+    }
+
+    public LatencyProber(int maxConcurrent, long timeoutMs, @NonNull LatencyCache cache,
+                         @NonNull Listener listener) {
+        this.maxConcurrent = maxConcurrent;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.cache = cache;
+        this.listener = listener;
+    }
+
+    /**
+     * Queues the servers for probing. Servers with a fresh cached result are reported right away
+     * on the calling thread, the others from the prober thread as their probes finish.
+     */
+    public void probe(@NonNull Collection<Server> servers) {
+        for (Server server : servers) {
+            Long cached = cache.get(server);
+            if (cached != null) {
+                listener.onLatencyMeasured(server, cached);
+            } else {
+                pending.add(server);
+            }
+        }
+        startIfIdle();
+    }
+
+    /**
+     * Drops queued probes and stops the prober thread
+     */
+    public void shutdown() {
+        shutdown = true;
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private void startIfIdle() {
+        if (!shutdown && !pending.isEmpty() && running.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runProbes();
+                }
+            });
+        }
+    }
+
+    private void runProbes() {
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            int inFlight = 0;
+            while (!shutdown) {
+                Server server;
+                while (inFlight < maxConcurrent && (server = pending.poll()) != null) {
+                    if (start(selector, server)) {
+                        inFlight++;
+                    }
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                selector.select(SELECT_INTERVAL_MS);
+                long now = System.nanoTime();
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    finish(key, completeProbe(key, now));
+                    inFlight--;
+                }
+
+                for (SelectionKey key : selector.keys()) {
+                    Probe probe = (Probe) key.attachment();
+                    if (key.isValid() && now - probe.startedAt > timeoutNanos) {
+                        finish(key, LatencyCache.UNKNOWN);
+                        inFlight--;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    close(key.channel());
+                }
+                close(selector);
+            }
+            running.set(false);
+        }
+        // Servers queued while the loop was winding down
+        startIfIdle();
+    }
+
+    /**
+     * @return Whether a probe is now in flight, unreachable addresses are reported immediately
+     */
+    private boolean start(Selector selector, Server server) {
+        SelectableChannel channel = null;
+        Probe probe = new Probe(server);
+        try {
+            InetSocketAddress address = new InetSocketAddress(server.ipAddress, server.port);
+            if ("udp".equalsIgnoreCase(server.protocol)) {
+                DatagramChannel datagram = DatagramChannel.open();
+                channel = datagram;
+                datagram.configureBlocking(false);
+                datagram.connect(address);
+                probe.startedAt = System.nanoTime();
+                datagram.write(hardResetPacket());
+                datagram.register(selector, SelectionKey.OP_READ, probe);
+            } else {
+                SocketChannel socket = SocketChannel.open();
+                channel = socket;
+                socket.configureBlocking(false);
+                probe.startedAt = System.nanoTime();
+                if (socket.connect(address)) {
+                    report(server, elapsedMs(probe, System.nanoTime()));
+                    close(socket);
+                    return false;
+                }
+                socket.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+            return true;
+        } catch (IOException | IllegalArgumentException | SecurityException e) {
+            close(channel);
+            report(server, LatencyCache.UNKNOWN);
+            return false;
+        }
+    }
+
+    private long completeProbe(SelectionKey key, long now) {
+        Probe probe = (Probe) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                ((SocketChannel) key.channel()).finishConnect();
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                if (((DatagramChannel) key.channel()).read(readBuffer) <= 0) {
+                    return LatencyCache.UNKNOWN;
+                }
+            }
+            return elapsedMs(probe, now);
+        } catch (IOException e) {
+            return LatencyCache.UNKNOWN;
+        }
+    }
+
+    private void finish(SelectionKey key, long rttMs) {
+        key.cancel();
+        close(key.channel());
+        report(((Probe) key.attachment()).server, rttMs);
+    }
+
+    private void report(Server server, long rttMs) {
+        cache.put(server, rttMs);
+        if (!shutdown) {
+            listener.onLatencyMeasured(server, rttMs);
+        }
+    }
+
+    private static long elapsedMs(Probe probe, long now) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(now - probe.startedAt));
+    }
+
+    /**
+     * OpenVPN P_CONTROL_HARD_RESET_CLIENT_V2 with an empty ack array, the first packet a client
+     * sends. Servers without tls-auth answer it with P_CONTROL_HARD_RESET_SERVER_V2.
+     */
+    private ByteBuffer hardResetPacket() {
+        ByteBuffer packet = ByteBuffer.allocate(14);
+        packet.put((byte) (OPCODE_HARD_RESET_CLIENT_V2 << 3));
+        packet.putLong(random.nextLong()); // session id
+        packet.put((byte) 0);              // ack array length
+        packet.putInt(0);                  // packet id
+        packet.flip();
+        return packet;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Probe {
+        final Server server;
+        long startedAt;
+
+        Probe(Server server) {
+            this.server = server;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * @param rttMs Round trip time in ms, or {@link LatencyCache#UNKNOWN} if the server did not answer
+         */
+        void onLatencyMeasured(@NonNull Server server, long rttMs);
+    }
+}
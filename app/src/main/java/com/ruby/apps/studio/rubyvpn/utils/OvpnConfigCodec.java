@@ -0,0 +1,95 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие конфигураций OpenVPN. Сервер хранит конфигурацию сжатой алгоритмом deflate,
+ * в памяти, в Parcel, в базе данных и в SharedPreferences, а текст восстанавливается
+ * методом inflate() только при подключении.
+ */
+public final class OvpnConfigCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private OvpnConfigCodec() {
+    }
+
+    /**
+     * Compresses a decoded profile with a deflater the caller reuses, for bulk conversions
+     */
+    public static byte[] deflate(Deflater deflater, byte[] data, int offset, int length) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] out = new byte[Math.max(64, length / 2)];
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    public static byte[] deflate(String config) {
+        byte[] data = config.getBytes(UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            return deflate(deflater, data, 0, data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses a profile in the Base64 form VPN Gate sends
+     */
+    public static byte[] deflateBase64(String base64) {
+        byte[] data = Base64.decode(base64, Base64.DEFAULT);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            return deflate(deflater, data, 0, data.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return Profile text, or null if the data is not a deflate stream
+     */
+    @Nullable
+    public static String inflate(byte[] deflated) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            // Profiles compress about 3:1
+            byte[] out = new byte[Math.max(256, deflated.length * 4)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated stream
+                    return null;
+                }
+                size += n;
+            }
+            return new String(out, 0, size, UTF_8);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
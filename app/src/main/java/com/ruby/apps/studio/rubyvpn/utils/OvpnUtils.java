@@ -60,7 +60,7 @@ public class OvpnUtils {
         try {
             file = getFile(context, server);
             outputStream = new FileOutputStream(file);
-            outputStream.write(server.ovpnConfigData.getBytes("UTF-8"));
+            outputStream.write(server.getOvpnConfigData().getBytes("UTF-8"));
             outputStream.close();
         } catch (Exception e) {
             e.printStackTrace();
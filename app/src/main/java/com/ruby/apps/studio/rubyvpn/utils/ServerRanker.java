@@ -0,0 +1,263 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Ранжирует серверы для автоматического выбора «самого быстрого сервера». Оценка сервера складывается
+ * из измеренной задержки (RTT), заявленной скорости, score VPN Gate, нагрузки (число VPN-сессий)
+ * и доли успешных подключений к нему в прошлом. Лучшие K серверов хранятся в куче с минимумом в вершине,
+ * остальные кандидаты — в куче с максимумом и ленивым удалением устаревших записей,
+ * поэтому новый результат измерения обрабатывается за O(K + log N) без пересортировки всего списка.
+ * Методы синхронизированы: результаты приходят из потока LatencyProber.
+ */
+public class ServerRanker {
+
+    public static final int DEFAULT_TOP_K = 5;
+
+    static final double WEIGHT_LATENCY = 0.35;
+    static final double WEIGHT_SPEED = 0.25;
+    static final double WEIGHT_SUCCESS = 0.2;
+    static final double WEIGHT_LOAD = 0.1;
+    static final double WEIGHT_SCORE = 0.1;
+
+    /**
+     * Values at which the saturating components reach one half
+     */
+    private static final double HALF_LATENCY_MS = 100;
+    private static final double HALF_SPEED_BPS = 20_000_000;
+    private static final double HALF_SCORE = 500_000;
+    private static final double HALF_LOAD_SESSIONS = 50;
+
+    private static final Comparator<Entry> BY_RANK = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Double.compare(a.rank, b.rank);
+        }
+    };
+
+    private static final Comparator<Candidate> BY_RANK_DESC = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Double.compare(b.rank, a.rank);
+        }
+    };
+
+    private final int topK;
+    private final ConnectHistory history;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final PriorityQueue<Entry> top;
+    private final PriorityQueue<Candidate> rest = new PriorityQueue<>(16, BY_RANK_DESC);
+
+    public ServerRanker(int topK, @NonNull ConnectHistory history) {
+        this.topK = topK;
+        this.history = history;
+        this.top = new PriorityQueue<>(topK, BY_RANK);
+    }
+
+    /**
+     * Adds the server to the ranking or re-scores it. Until a probe result arrives
+     * the ping reported by VPN Gate stands in for the measured one.
+     */
+    public synchronized void add(@NonNull Server server) {
+        long latency = server.measuredPing >= 0 ? server.measuredPing : reportedPing(server);
+        update(server, rank(server, latency, history.successRate(server)));
+    }
+
+    /**
+     * Re-scores the server with a probe result, servers that did not answer leave the ranking
+     */
+    public synchronized void onLatencyMeasured(@NonNull Server server, long rttMs) {
+        if (rttMs < 0) {
+            remove(server);
+        } else {
+            update(server, rank(server, rttMs, history.successRate(server)));
+        }
+    }
+
+    public synchronized void remove(@NonNull Server server) {
+        Entry entry = entries.remove(key(server));
+        if (entry == null) {
+            return;
+        }
+        if (entry.inTop) {
+            top.remove(entry);
+            entry.inTop = false;
+        }
+        // Snapshots left in rest no longer match a live entry and are skipped
+        entry.version++;
+        rebalance();
+    }
+
+    /**
+     * @return Highest ranked server, or null when no candidate is left
+     */
+    @Nullable
+    public synchronized Server best() {
+        Entry best = null;
+        for (Entry entry : top) {
+            if (best == null || entry.rank > best.rank) {
+                best = entry;
+            }
+        }
+        return best == null ? null : best.server;
+    }
+
+    /**
+     * @return Up to K best servers, best first
+     */
+    @NonNull
+    public synchronized List<Server> top() {
+        List<Entry> sorted = new ArrayList<>(top);
+        Collections.sort(sorted, Collections.reverseOrder(BY_RANK));
+        List<Server> servers = new ArrayList<>(sorted.size());
+        for (Entry entry : sorted) {
+            servers.add(entry.server);
+        }
+        return servers;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Weighted sum of components normalized to 0..1, higher is better
+     */
+    static double rank(Server server, long latencyMs, double successRate) {
+        double latency = latencyMs < 0 ? 0 : HALF_LATENCY_MS / (HALF_LATENCY_MS + latencyMs);
+        double speed = saturate(server.speed, HALF_SPEED_BPS);
+        double score = saturate(server.score, HALF_SCORE);
+        double load = HALF_LOAD_SESSIONS / (HALF_LOAD_SESSIONS + Math.max(0, server.vpnSessions));
+        return WEIGHT_LATENCY * latency
+                + WEIGHT_SPEED * speed
+                + WEIGHT_SUCCESS * successRate
+                + WEIGHT_LOAD * load
+                + WEIGHT_SCORE * score;
+    }
+
+    private static double saturate(double value, double half) {
+        return value <= 0 ? 0 : value / (value + half);
+    }
+
+    private static long reportedPing(Server server) {
+        try {
+            return Long.parseLong(server.ping);
+        } catch (NumberFormatException | NullPointerException e) {
+            return -1;
+        }
+    }
+
+    private void update(Server server, double rank) {
+        String key = key(server);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(server);
+            entries.put(key, entry);
+        }
+        entry.server = server;
+
+        if (entry.inTop) {
+            // Re-inserted because PriorityQueue does not support changing a key in place
+            top.remove(entry);
+            entry.rank = rank;
+            top.add(entry);
+        } else {
+            entry.rank = rank;
+            entry.version++;
+            rest.add(new Candidate(entry));
+        }
+        rebalance();
+    }
+
+    /**
+     * Fills the top heap from the best outside candidates and swaps while an outside candidate
+     * outranks the weakest of the top
+     */
+    private void rebalance() {
+        while (true) {
+            Candidate head = freshHead();
+            if (head == null) {
+                return;
+            }
+            if (top.size() < topK) {
+                rest.poll();
+                promote(head.entry);
+            } else if (head.rank > top.peek().rank) {
+                rest.poll();
+                Entry demoted = top.poll();
+                demoted.inTop = false;
+                demoted.version++;
+                rest.add(new Candidate(demoted));
+                promote(head.entry);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void promote(Entry entry) {
+        entry.inTop = true;
+        top.add(entry);
+    }
+
+    private Candidate freshHead() {
+        Candidate head;
+        while ((head = rest.peek()) != null && !head.isFresh()) {
+            rest.poll();
+        }
+        return head;
+    }
+
+    private static String key(Server server) {
+        return server.ipAddress + "/" + server.hostName;
+    }
+
+    private static class Entry {
+        Server server;
+        double rank;
+        int version;
+        boolean inTop;
+
+        Entry(Server server) {
+            this.server = server;
+        }
+    }
+
+    /**
+     * Snapshot of an entry outside the top, stale once the entry is re-scored, promoted or removed
+     */
+    private static class Candidate {
+        final Entry entry;
+        final double rank;
+        final int version;
+
+        Candidate(Entry entry) {
+            this.entry = entry;
+            this.rank = entry.rank;
+            this.version = entry.version;
+        }
+
+        boolean isFresh() {
+            return !entry.inTop && entry.version == version;
+        }
+    }
+
+    public interface ConnectHistory {
+        /**
+         * @return Share of successful connections to the server, 0..1
+         */
+        double successRate(@NonNull Server server);
+    }
+}
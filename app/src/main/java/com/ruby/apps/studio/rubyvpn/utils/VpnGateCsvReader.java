@@ -0,0 +1,322 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import androidx.annotation.Nullable;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+
+/**
+ * Потоковый разборщик CSV-ответа VPN Gate. Он читает байты прямо из InputStream (например, из тела ответа OkHttp)
+ * в один переиспользуемый буфер, находит границы строк и полей без String.split() и регулярных выражений,
+ * разбирает числовые поля прямо из байтов. Base64-конфигурация OpenVPN декодируется во временный
+ * переиспользуемый массив, из которого извлекаются порт и протокол, и сохраняется в Server сжатой.
+ * Метод next() возвращает серверы по одному по мере загрузки данных, поэтому список можно показывать
+ * пользователю до того, как загрузка закончится.
+ */
+public class VpnGateCsvReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FIELD_COUNT = CsvParser.OVPN_CONFIG_DATA + 1;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_CONFIG_SIZE = 8 * 1024;
+
+    private static final byte[] BASE64_DECODE = new byte[128];
+
+    static {
+        for (int i = 0; i < BASE64_DECODE.length; i++) {
+            BASE64_DECODE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final InputStream in;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int start;
+    private int scan;
+    private int end;
+    private boolean eof;
+
+    private final int[] fieldStart = new int[FIELD_COUNT];
+    private final int[] fieldEnd = new int[FIELD_COUNT];
+    private byte[] config = new byte[INITIAL_CONFIG_SIZE];
+    private int configLength;
+    private final Deflater deflater;
+    private final boolean ownsDeflater;
+
+    public VpnGateCsvReader(InputStream in) {
+        this(in, new Deflater(Deflater.BEST_COMPRESSION), true);
+    }
+
+    /**
+     * @param deflater Compresses the configs; the caller keeps ownership and ends it
+     */
+    public VpnGateCsvReader(InputStream in, Deflater deflater) {
+        this(in, deflater, false);
+    }
+
+    private VpnGateCsvReader(InputStream in, Deflater deflater, boolean ownsDeflater) {
+        this.in = in;
+        this.deflater = deflater;
+        this.ownsDeflater = ownsDeflater;
+    }
+
+    /**
+     * @return Next server of the feed, or null when the stream is exhausted.
+     * Comment lines ("*", "#") and malformed rows are skipped.
+     */
+    @Nullable
+    public Server next() throws IOException {
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                if (!eof) {
+                    fill();
+                    continue;
+                }
+                if (start == end) {
+                    return null;
+                }
+                lineEnd = end;
+            }
+
+            int lineStart = start;
+            start = scan = Math.min(lineEnd + 1, end);
+
+            int stop = lineEnd;
+            if (stop > lineStart && buffer[stop - 1] == '\r') {
+                stop--;
+            }
+            if (stop == lineStart || buffer[lineStart] == '*' || buffer[lineStart] == '#') {
+                continue;
+            }
+
+            Server server = parseLine(lineStart, stop);
+            if (server != null) {
+                return server;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsDeflater) {
+            deflater.end();
+        }
+        in.close();
+    }
+
+    private int findLineEnd() {
+        for (int i = scan; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        scan = end;
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scan -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            eof = true;
+        } else {
+            end += read;
+        }
+    }
+
+    @Nullable
+    private Server parseLine(int from, int to) {
+        int field = 0;
+        fieldStart[0] = from;
+        for (int i = from; i < to && field < CsvParser.OVPN_CONFIG_DATA; i++) {
+            if (buffer[i] == ',') {
+                fieldEnd[field] = i;
+                fieldStart[++field] = i + 1;
+            }
+        }
+        if (field != CsvParser.OVPN_CONFIG_DATA) {
+            return null;
+        }
+        fieldEnd[field] = to;
+
+        try {
+            Server server = new Server();
+            server.hostName = string(CsvParser.HOST_NAME);
+            server.ipAddress = string(CsvParser.IP_ADDRESS);
+            server.score = (int) number(CsvParser.SCORE);
+            server.ping = string(CsvParser.PING);
+            server.speed = number(CsvParser.SPEED);
+            server.countryLong = string(CsvParser.COUNTRY_LONG);
+            server.countryShort = string(CsvParser.COUNTRY_SHORT);
+            server.vpnSessions = number(CsvParser.VPN_SESSION);
+            server.uptime = number(CsvParser.UPTIME);
+            server.totalUsers = number(CsvParser.TOTAL_USERS);
+            server.totalTraffic = string(CsvParser.TOTAL_TRAFFIC);
+            server.logType = string(CsvParser.LOG_TYPE);
+            server.operator = string(CsvParser.OPERATOR);
+            server.message = string(CsvParser.MESSAGE);
+
+            decodeConfig(fieldStart[CsvParser.OVPN_CONFIG_DATA], fieldEnd[CsvParser.OVPN_CONFIG_DATA]);
+            server.port = configPort();
+            server.protocol = configProtocol();
+            server.ovpnConfigDeflated = OvpnConfigCodec.deflate(deflater, config, 0, configLength);
+            return server;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String string(int field) {
+        return new String(buffer, fieldStart[field], fieldEnd[field] - fieldStart[field], UTF_8);
+    }
+
+    private long number(int field) {
+        return parseLong(buffer, fieldStart[field], fieldEnd[field]);
+    }
+
+    private static long parseLong(byte[] data, int from, int to) {
+        if (from == to) {
+            throw new NumberFormatException("empty field");
+        }
+        boolean negative = data[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to) {
+            throw new NumberFormatException("sign without digits");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("not a digit");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes the Base64 field straight from the line buffer into {@link #config}.
+     * Characters outside the alphabet (line breaks, padding) are skipped.
+     */
+    private void decodeConfig(int from, int to) {
+        int capacity = (to - from) / 4 * 3 + 3;
+        if (config.length < capacity) {
+            config = new byte[Math.max(capacity, config.length * 2)];
+        }
+
+        int out = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int c = buffer[i];
+            if (c < 0 || c == '=') {
+                continue;
+            }
+            int value = BASE64_DECODE[c];
+            if (value < 0) {
+                continue;
+            }
+            bits = (bits << 6) | value;
+            if (++count == 4) {
+                config[out++] = (byte) (bits >> 16);
+                config[out++] = (byte) (bits >> 8);
+                config[out++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 3) {
+            config[out++] = (byte) (bits >> 10);
+            config[out++] = (byte) (bits >> 2);
+        } else if (count == 2) {
+            config[out++] = (byte) (bits >> 4);
+        }
+        configLength = out;
+    }
+
+    /**
+     * @return Port used in OVPN file ("remote <HOSTNAME> <PORT>")
+     */
+    private int configPort() {
+        int line = findDirective("remote");
+        if (line < 0) {
+            return 0;
+        }
+        int host = skipSpaces(line);
+        int port = skipSpaces(skipToken(host));
+        int portEnd = skipToken(port);
+        if (port == portEnd) {
+            return 0;
+        }
+        return (int) parseLong(config, port, portEnd);
+    }
+
+    /**
+     * @return Protocol used in OVPN file. ("proto <TCP/UDP>")
+     */
+    private String configProtocol() {
+        int line = findDirective("proto");
+        if (line < 0) {
+            return "";
+        }
+        int proto = skipSpaces(line);
+        return new String(config, proto, skipToken(proto) - proto, UTF_8);
+    }
+
+    /**
+     * @return Offset right after the first uncommented directive with the given name, or -1.
+     */
+    private int findDirective(String name) {
+        int lineStart = 0;
+        while (lineStart < configLength) {
+            int i = lineStart;
+            int n = 0;
+            while (n < name.length() && i < configLength && config[i] == name.charAt(n)) {
+                i++;
+                n++;
+            }
+            if (n == name.length() && i < configLength && (config[i] == ' ' || config[i] == '\t')) {
+                return i;
+            }
+            while (lineStart < configLength && config[lineStart] != '\n') {
+                lineStart++;
+            }
+            lineStart++;
+        }
+        return -1;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < configLength && (config[i] == ' ' || config[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipToken(int i) {
+        while (i < configLength && config[i] != ' ' && config[i] != '\t'
+                && config[i] != '\r' && config[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+}
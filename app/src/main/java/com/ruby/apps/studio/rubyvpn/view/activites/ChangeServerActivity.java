@@ -4,6 +4,7 @@ import android.app.Dialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.text.method.LinkMovementMethod;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.Button;
@@ -41,12 +42,17 @@ import com.ruby.apps.studio.rubyvpn.SharedPreference;
 import com.ruby.apps.studio.rubyvpn.adapter.ServerAdapter;
 import com.ruby.apps.studio.rubyvpn.databinding.ActivityChangeServerBinding;
 import com.ruby.apps.studio.rubyvpn.db.DbHelper;
+import com.ruby.apps.studio.rubyvpn.db.ServerPageLoader;
 import com.ruby.apps.studio.rubyvpn.model.Server;
+import com.ruby.apps.studio.rubyvpn.utils.CatalogHttpClient;
 import com.ruby.apps.studio.rubyvpn.utils.CsvParser;
+import com.ruby.apps.studio.rubyvpn.utils.LatencyCache;
+import com.ruby.apps.studio.rubyvpn.utils.LatencyProber;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -66,15 +72,40 @@ import okhttp3.Response;
 public class ChangeServerActivity extends AppCompatActivity {
 
     //TODO: About License
+    private static final String TAG = "ChangeServerActivity";
+
+    /**
+     * Number of servers shown while the rest of the catalog is still downloading
+     */
+    private static final int FIRST_PAGE_SIZE = 30;
+
+    /**
+     * Number of cached servers read from the database at once
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Measured pings are shown in batches instead of rebinding the list on every answer
+     */
+    private static final long PING_REFRESH_DELAY_MS = 200;
+
+    /**
+     * Refreshes within this interval after a successful sync keep the cached list
+     */
+    private static final long MIN_REFRESH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
     private ActivityChangeServerBinding binding;
 
     private WeakHandler handler;
-    private OkHttpClient okHttpClient = new OkHttpClient();
+    private OkHttpClient okHttpClient;
     private List<Server> servers = new ArrayList<>();
     private Request request;
     private Call mCall;
     private ServerAdapter adapter;
     private DbHelper dbHelper;
+    private ServerPageLoader pageLoader;
+    private LatencyProber latencyProber;
+    private boolean pingRefreshScheduled;
 
     private SharedPreference sharedPreference;
 
@@ -95,11 +126,11 @@ public class ChangeServerActivity extends AppCompatActivity {
         initFacebookAds();
         handler = new WeakHandler();
         dbHelper = DbHelper.getInstance(getApplicationContext());
+        okHttpClient = CatalogHttpClient.getInstance(getApplicationContext());
         sharedPreference = new SharedPreference(ChangeServerActivity.this);
         binding = ActivityChangeServerBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
 
-        servers.addAll(dbHelper.getAll());
         setupSwipeRefreshLayout();
         setupRecyclerView();
 
@@ -109,9 +140,9 @@ public class ChangeServerActivity extends AppCompatActivity {
                     .build();
         }
 
-        if (servers.isEmpty()) {
-            populateServerList();
-        }
+        latencyProber = new LatencyProber(LatencyCache.getInstance(), latencyListener);
+        pageLoader = new ServerPageLoader(dbHelper, PAGE_SIZE, pageCallback);
+        pageLoader.loadNextPage();
 
         binding.serverBackButton.setOnClickListener(view -> {
             finish();
@@ -120,7 +151,7 @@ public class ChangeServerActivity extends AppCompatActivity {
             infoDialog();
         });
         binding.changeServerRefreshBtn.setOnClickListener(vv -> {
-            populateServerList();
+            populateServerList(false);
         });
 
         loadBanner();
@@ -135,6 +166,8 @@ public class ChangeServerActivity extends AppCompatActivity {
             mCall.cancel();
             mCall = null;
         }
+        pageLoader.shutdown();
+        latencyProber.shutdown();
         if (infoAlertDialog != null) {
             if (infoAlertDialog.isShowing()) {
                 infoAlertDialog.dismiss();
@@ -148,7 +181,7 @@ public class ChangeServerActivity extends AppCompatActivity {
         binding.swipeRefresh.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
             @Override
             public void onRefresh() {
-                populateServerList();
+                populateServerList(false);
             }
         });
     }
@@ -161,19 +194,67 @@ public class ChangeServerActivity extends AppCompatActivity {
         binding.recyclerview.addItemDecoration(itemDecoration);
         binding.recyclerview.setLayoutManager(new LinearLayoutManager(binding.recyclerview.getContext()));
         binding.recyclerview.setAdapter(adapter);
+        binding.recyclerview.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager.findLastVisibleItemPosition() + PAGE_SIZE / 2 >= adapter.getItemCount()) {
+                    pageLoader.loadNextPage();
+                }
+            }
+        });
+    }
+
+    private final ServerPageLoader.Callback pageCallback = (page, isFirstPage, isLastPage) -> {
+        if (isFirstPage && page.isEmpty()) {
+            populateServerList(true);
+        } else {
+            adapter.addServers(page);
+            latencyProber.probe(page);
+        }
+    };
+
+    private final LatencyProber.Listener latencyListener = (server, rttMs) -> {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                server.measuredPing = rttMs;
+                schedulePingRefresh();
+            }
+        });
+    };
+
+    private void schedulePingRefresh() {
+        if (pingRefreshScheduled) {
+            return;
+        }
+        pingRefreshScheduled = true;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                pingRefreshScheduled = false;
+                adapter.notifyPingsChanged();
+            }
+        }, PING_REFRESH_DELAY_MS);
     }
 
     private void loadServerList(List<Server> serverList) {
         adapter.setServerList(serverList);
-        dbHelper.save(serverList);
+        latencyProber.probe(serverList);
     }
 
     /**
      * Displays the updated list of VPN servers
+     *
+     * @param cacheEmpty Whether the database has no servers, the catalog is then parsed even if unchanged
      */
-    private void populateServerList() {
+    private void populateServerList(final boolean cacheEmpty) {
+        if (!cacheEmpty && System.currentTimeMillis() - sharedPreference.getCatalogSyncedAt() < MIN_REFRESH_INTERVAL_MS) {
+            Log.d(TAG, "Catalog synced recently, keeping the cached list");
+            binding.swipeRefresh.setRefreshing(false);
+            return;
+        }
         binding.swipeRefresh.setRefreshing(true);
-        binding.recyclerview.setVisibility(View.INVISIBLE);
 
         mCall = okHttpClient.newCall(request);
         mCall.enqueue(new Callback() {
@@ -183,22 +264,59 @@ public class ChangeServerActivity extends AppCompatActivity {
                     @Override
                     public void run() {
                         binding.swipeRefresh.setRefreshing(false);
-                        binding.recyclerview.setVisibility(View.VISIBLE);
                     }
                 });
             }
 
             @Override
             public void onResponse(Call call, Response response) throws IOException {
-                if (response.isSuccessful()) {
-                    final List<Server> servers = CsvParser.parse(response);
+                if (response.isSuccessful() && !cacheEmpty && CatalogHttpClient.isNotModified(response)) {
+                    // Same catalog as the one already in the database
+                    response.close();
+                    sharedPreference.saveCatalogSyncedAt(System.currentTimeMillis());
+                    Log.d(TAG, "Catalog not modified");
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            binding.swipeRefresh.setRefreshing(false);
+                        }
+                    });
+                } else if (response.isSuccessful()) {
+                    final List<Server> servers = new ArrayList<>();
+                    CsvParser.parse(response, server -> {
+                        servers.add(server);
+                        if (servers.size() == FIRST_PAGE_SIZE) {
+                            final List<Server> firstPage = new ArrayList<>(servers);
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    // The downloaded catalog replaces the cached pages
+                                    pageLoader.cancel();
+                                    adapter.setServerList(firstPage);
+                                }
+                            });
+                        }
+                    });
+
+                    // Still on the OkHttp thread, keep the database work off the UI
+                    DbHelper.SyncResult result = dbHelper.save(servers);
+                    sharedPreference.saveCatalogSyncedAt(System.currentTimeMillis());
+                    Log.d(TAG, "Server cache synced: " + result);
 
                     handler.post(new Runnable() {
                         @Override
                         public void run() {
+                            pageLoader.cancel();
                             loadServerList(servers);
                             binding.swipeRefresh.setRefreshing(false);
-                            binding.recyclerview.setVisibility(View.VISIBLE);
+                        }
+                    });
+                } else {
+                    response.close();
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            binding.swipeRefresh.setRefreshing(false);
                         }
                     });
                 }
@@ -207,23 +325,28 @@ public class ChangeServerActivity extends AppCompatActivity {
     }
 
     private final ServerAdapter.ServerClickCallback serverClickCallback =
-            server -> {
-                Server selectedServer = new Server(
-                        server.hostName,
-                        server.ipAddress,
-                        server.ping,
-                        server.speed,
-                        server.countryLong,
-                        server.countryShort,
-                        server.ovpnConfigData,
-                        server.port,
-                        server.protocol
-                );
-
-                sharedPreference.saveServer(selectedServer);
-
-                showInterstitialAd(selectedServer);
-            };
+            server -> pageLoader.loadConfig(server, this::onServerSelected);
+
+    private void onServerSelected(Server server) {
+        if (isFinishing()) {
+            return;
+        }
+        Server selectedServer = new Server(
+                server.hostName,
+                server.ipAddress,
+                server.ping,
+                server.speed,
+                server.countryLong,
+                server.countryShort,
+                server.ovpnConfigDeflated,
+                server.port,
+                server.protocol
+        );
+
+        sharedPreference.saveServer(selectedServer);
+
+        showInterstitialAd(selectedServer);
+    }
 
     private void loadBanner() {
         if (!AppSettings.Companion.isUserPaid()) {
@@ -7,6 +7,8 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.net.VpnService
 import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
 import android.os.RemoteException
 import android.util.Log
 import android.view.LayoutInflater
@@ -29,11 +31,14 @@ import com.ruby.apps.studio.rubyvpn.AppSettings
 import com.ruby.apps.studio.rubyvpn.CheckInternetConnection
 import com.ruby.apps.studio.rubyvpn.SharedPreference
 import com.ruby.apps.studio.rubyvpn.databinding.FragmentHomeBinding
+import com.ruby.apps.studio.rubyvpn.db.DbHelper
 import com.ruby.apps.studio.rubyvpn.model.Server
+import com.ruby.apps.studio.rubyvpn.utils.BestServerFinder
 import com.ruby.apps.studio.rubyvpn.utils.toast
 import com.ruby.apps.studio.rubyvpn.view.activites.ChangeServerActivity
 import com.ruby.apps.studio.rubyvpn.view.activites.SubscriptionActivity
 import de.blinkt.openvpn.OpenVpnApi
+import de.blinkt.openvpn.core.ByteCountStats
 import de.blinkt.openvpn.core.OpenVPNService
 import de.blinkt.openvpn.core.OpenVPNThread
 import de.blinkt.openvpn.core.VpnStatus
@@ -59,8 +64,11 @@ class HomeFragment : Fragment() {
     private lateinit var vpnThread: OpenVPNThread
     private lateinit var vpnService: OpenVPNService
     private lateinit var sharedPreference: SharedPreference
+    private lateinit var bestServerFinder: BestServerFinder
 
     private var isServerSelected: Boolean = false
+    // Set from startVpn until the first CONNECTED state, for the connect history of the server
+    private var connectAttemptPending: Boolean = false
 
     //facebook and google ads
     private var nativeAdLayout: NativeAdLayout? = null
@@ -105,6 +113,10 @@ class HomeFragment : Fragment() {
         vpnService = OpenVPNService()
         connection = CheckInternetConnection()
         sharedPreference = SharedPreference(mContext)
+        bestServerFinder = BestServerFinder(
+            DbHelper.getInstance(mContext.applicationContext),
+            sharedPreference::getConnectSuccessRate
+        ) { server -> onBestServerFound(server) }
         initFacebookSdk()
     }
 
@@ -148,6 +160,16 @@ class HomeFragment : Fragment() {
             }
         }
 
+        binding!!.bestServerButton.setOnClickListener {
+            if (!vpnStart) {
+                binding!!.connectionTextStatus.text =
+                    resources.getString(R.string.searching_best_server_text)
+                bestServerFinder.find()
+            } else {
+                mContext.toast(resources.getString(R.string.disconnect_first))
+            }
+        }
+
         binding!!.disconnectButton.setOnClickListener {
             if (vpnStart) {
                 confirmDisconnect()
@@ -164,7 +186,13 @@ class HomeFragment : Fragment() {
         }
     }
 
+    override fun onDestroy() {
+        bestServerFinder.shutdown()
+        super.onDestroy()
+    }
+
     override fun onDestroyView() {
+        bestServerFinder.cancel()
         binding = null
         if (facebookInterstitialAd != null) {
             facebookInterstitialAd!!.destroy()
@@ -190,6 +218,10 @@ class HomeFragment : Fragment() {
             }
             "CONNECTED" -> {
                 vpnStart = true // it will use after restart this activity
+                if (connectAttemptPending && this::globalServer.isInitialized) {
+                    sharedPreference.recordConnectSuccess(globalServer)
+                    connectAttemptPending = false
+                }
                 status("Connected")
                 binding!!.connectionTextStatus.text = "Connected"
             }
@@ -276,6 +308,8 @@ class HomeFragment : Fragment() {
         try {
             val conf = globalServer.getOvpnConfigData()
             OpenVpnApi.startVpn(context, conf, globalServer.getCountryShort(), "vpn", "vpn")
+            sharedPreference.recordConnectAttempt(globalServer)
+            connectAttemptPending = true
             binding!!.connectionTextStatus.text = "Connecting..."
             vpnStart = true
         } catch (exception: IOException) {
@@ -287,6 +321,29 @@ class HomeFragment : Fragment() {
         showInterstitialAd()
     }
 
+    /**
+     * One-tap connect to the server picked by BestServerFinder
+     */
+    private fun onBestServerFound(server: Server?) {
+        if (binding == null) {
+            return
+        }
+        if (server == null || server.getOvpnConfigDeflated() == null) {
+            binding!!.connectionTextStatus.text = resources.getString(R.string.not_connected_text)
+            mContext.toast(resources.getString(R.string.no_best_server_text))
+            return
+        }
+        globalServer = server
+
+        //update selected server
+        binding!!.serverFlagName.text = server.getCountryLong()
+        binding!!.serverFlagDes.text = server.getIpAddress()
+
+        binding!!.connectionIp.text = server.getIpAddress()
+        isServerSelected = true
+        prepareVpn()
+    }
+
     /**
      * Broadcast receivers ***************************
      * Объект создается через анонимный класс, переопределяя метод "onReceive",
@@ -299,25 +356,57 @@ class HomeFragment : Fragment() {
         override fun onReceive(context: Context, intent: Intent) {
             try {
                 setStatus(intent.getStringExtra("state"))
+                // Statistics of the new state follow with the next byte count
+                updateConnectionStatus("00:00:00", "0", "0.0", "0.0")
             } catch (e: java.lang.Exception) {
                 e.printStackTrace()
             }
-            try {
-                var duration = intent.getStringExtra("duration")
-                var lastPacketReceive = intent.getStringExtra("lastPacketReceive")
-                var byteIn = intent.getStringExtra("byteIn")
-                var byteOut = intent.getStringExtra("byteOut")
-                if (duration == null) duration = "00:00:00"
-                if (lastPacketReceive == null) lastPacketReceive = "0"
-                if (byteIn == null) byteIn = "0.0"
-                if (byteOut == null) byteOut = "0.0"
-                updateConnectionStatus(duration, lastPacketReceive, byteIn, byteOut)
-            } catch (e: java.lang.Exception) {
-                e.printStackTrace()
-            }
         }
     }
 
+    /**
+     * Статистика соединения приходит из сервиса в виде чисел в фоновом потоке.
+     * Слушатель подключен только пока фрагмент виден, форматирование выполняется в главном потоке.
+     */
+    private val statsListener = object : ByteCountStats.StatsListener, Runnable {
+        private val mainHandler = Handler(Looper.getMainLooper())
+
+        @Volatile private var inBytes = 0L
+        @Volatile private var outBytes = 0L
+        @Volatile private var inPerSecond = 0L
+        @Volatile private var outPerSecond = 0L
+        @Volatile private var connectedMs = 0L
+        @Volatile private var sinceReceiveMs = 0L
+
+        override fun onStats(
+            inBytes: Long, outBytes: Long, inPerSecond: Long, outPerSecond: Long,
+            connectedMs: Long, sinceReceiveMs: Long
+        ) {
+            this.inBytes = inBytes
+            this.outBytes = outBytes
+            this.inPerSecond = inPerSecond
+            this.outPerSecond = outPerSecond
+            this.connectedMs = connectedMs
+            this.sinceReceiveMs = sinceReceiveMs
+            mainHandler.removeCallbacks(this)
+            mainHandler.post(this)
+        }
+
+        override fun run() {
+            if (binding == null || !isAdded) return
+            val res = resources
+            val seconds = connectedMs / 1000
+            val duration = twoDigits(seconds / 3600 % 24) + ":" + twoDigits(seconds / 60 % 60) + ":" + twoDigits(seconds % 60)
+            val byteIn = "↓" + OpenVPNService.humanReadableByteCount(inBytes, false, res) + " - " +
+                    OpenVPNService.humanReadableByteCount(inPerSecond, false, res) + "/s"
+            val byteOut = "↑" + OpenVPNService.humanReadableByteCount(outBytes, false, res) + " - " +
+                    OpenVPNService.humanReadableByteCount(outPerSecond, false, res) + "/s"
+            updateConnectionStatus(duration, (sinceReceiveMs / 1000).toString(), byteIn, byteOut)
+        }
+
+        private fun twoDigits(value: Long): String = if (value < 10) "0$value" else value.toString()
+    }
+
     /**
      * Update status UI
      * @param duration: running time
@@ -340,6 +429,7 @@ class HomeFragment : Fragment() {
         LocalBroadcastManager.getInstance(mContext).registerReceiver(
             broadcastReceiver!!, IntentFilter("connectionState")
         )
+        ByteCountStats.addStatsListener(statsListener)
         if (!this::globalServer.isInitialized) {
             if (sharedPreference.isPrefsHasServer) {
                 globalServer = sharedPreference.server
@@ -364,6 +454,7 @@ class HomeFragment : Fragment() {
         LocalBroadcastManager.getInstance(mContext).unregisterReceiver(
             broadcastReceiver!!
         )
+        ByteCountStats.removeStatsListener(statsListener)
         super.onPause()
     }
 
@@ -0,0 +1,103 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probes loopback servers with {@link LatencyProber}: an accepting TCP socket, a UDP socket
+ * that answers the OpenVPN reset packet and a closed TCP port.
+ */
+public class LatencyProberTest {
+
+    private static final long TIMEOUT_MS = 1000;
+
+    @Test
+    public void measuresTcpUdpAndUnreachableServers() throws Exception {
+        try (ServerSocket tcp = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             DatagramSocket udp = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Thread echo = startUdpEcho(udp);
+
+            Server tcpServer = server(tcp.getLocalPort(), "tcp");
+            Server udpServer = server(udp.getLocalPort(), "udp");
+            Server closedServer = server(closedPort(), "tcp");
+
+            final Map<Server, Long> results = new ConcurrentHashMap<>();
+            final CountDownLatch done = new CountDownLatch(3);
+            LatencyCache cache = new LatencyCache(LatencyCache.DEFAULT_TTL_MS);
+            LatencyProber prober = new LatencyProber(2, TIMEOUT_MS, cache, (server, rttMs) -> {
+                results.put(server, rttMs);
+                done.countDown();
+            });
+
+            prober.probe(Arrays.asList(tcpServer, udpServer, closedServer));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            prober.shutdown();
+            echo.interrupt();
+
+            assertTrue(results.get(tcpServer) >= 0);
+            assertTrue(results.get(udpServer) >= 0);
+            assertEquals(LatencyCache.UNKNOWN, (long) results.get(closedServer));
+            assertEquals(results.get(tcpServer), cache.get(tcpServer));
+        }
+    }
+
+    @Test
+    public void reportsCachedResultsWithoutProbing() throws Exception {
+        Server server = server(closedPort(), "tcp");
+        LatencyCache cache = new LatencyCache(LatencyCache.DEFAULT_TTL_MS);
+        cache.put(server, 42);
+
+        final long[] reported = {Long.MIN_VALUE};
+        LatencyProber prober = new LatencyProber(cache, (s, rttMs) -> reported[0] = rttMs);
+        prober.probe(Collections.singletonList(server));
+        prober.shutdown();
+
+        // Reported synchronously on the calling thread
+        assertEquals(42, reported[0]);
+    }
+
+    private static Server server(int port, String protocol) {
+        Server server = new Server();
+        server.hostName = "localhost";
+        server.ipAddress = "127.0.0.1";
+        server.port = port;
+        server.protocol = protocol;
+        return server;
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Thread startUdpEcho(final DatagramSocket socket) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[1500];
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                socket.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+            } catch (IOException ignored) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,107 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the incremental top-K of {@link ServerRanker} matches a full sort after every
+ * probe result, including servers dropping out of the ranking.
+ */
+public class ServerRankerTest {
+
+    private static final int K = 5;
+
+    @Test
+    public void topMatchesFullSortUnderRandomUpdates() {
+        Random random = new Random(7);
+        ServerRanker.ConnectHistory history = server -> 0.5;
+        ServerRanker ranker = new ServerRanker(K, history);
+
+        List<Server> servers = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Server server = server(i, random);
+            servers.add(server);
+            ranker.add(server);
+        }
+
+        final Map<Server, Double> ranks = new HashMap<>();
+        for (Server server : servers) {
+            ranks.put(server, ServerRanker.rank(server, Long.parseLong(server.ping), 0.5));
+        }
+
+        for (int step = 0; step < 2000; step++) {
+            Server server = servers.get(random.nextInt(servers.size()));
+            long rtt = random.nextInt(10) == 0 ? LatencyCache.UNKNOWN : random.nextInt(400);
+            ranker.onLatencyMeasured(server, rtt);
+            if (rtt < 0) {
+                ranks.remove(server);
+            } else {
+                ranks.put(server, ServerRanker.rank(server, rtt, 0.5));
+            }
+
+            List<Server> expected = new ArrayList<>(ranks.keySet());
+            Collections.sort(expected, new Comparator<Server>() {
+                @Override
+                public int compare(Server a, Server b) {
+                    return Double.compare(ranks.get(b), ranks.get(a));
+                }
+            });
+            List<Server> top = ranker.top();
+            assertEquals(Math.min(K, expected.size()), top.size());
+            for (int i = 0; i < top.size(); i++) {
+                assertEquals(ranks.get(expected.get(i)), ranks.get(top.get(i)), 0);
+            }
+            assertEquals(ranks.size(), ranker.size());
+        }
+    }
+
+    @Test
+    public void prefersLowLatencyAndConnectHistory() {
+        Server near = server(1, new Random(1));
+        Server far = server(2, new Random(1));
+        ServerRanker ranker = new ServerRanker(K, server -> server == near ? 0.9 : 0.1);
+        ranker.add(near);
+        ranker.add(far);
+
+        ranker.onLatencyMeasured(near, 20);
+        ranker.onLatencyMeasured(far, 300);
+        assertSame(near, ranker.best());
+
+        ranker.onLatencyMeasured(near, LatencyCache.UNKNOWN);
+        assertSame(far, ranker.best());
+        ranker.remove(far);
+        assertNull(ranker.best());
+    }
+
+    @Test
+    public void unknownLatencyScoresLowest() {
+        Server server = server(1, new Random(3));
+        assertTrue(ServerRanker.rank(server, 0, 0.5) > ServerRanker.rank(server, 500, 0.5));
+        assertTrue(ServerRanker.rank(server, 500, 0.5) > ServerRanker.rank(server, -1, 0.5));
+    }
+
+    private static Server server(int i, Random random) {
+        Server server = new Server();
+        server.hostName = "vpn" + i;
+        server.ipAddress = "10.0." + (i / 256) + "." + (i % 256);
+        server.ping = String.valueOf(random.nextInt(300));
+        server.speed = random.nextInt(100_000_000);
+        server.score = random.nextInt(2_000_000);
+        server.vpnSessions = random.nextInt(200);
+        return server;
+    }
+}
@@ -0,0 +1,250 @@
+package com.ruby.apps.studio.rubyvpn.utils;
+
+import com.ruby.apps.studio.rubyvpn.model.Server;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link VpnGateCsvReader} against the previous split/regex based parsing on a feed
+ * in the VPN Gate format, and that it parses a multi-MB feed faster.
+ */
+public class VpnGateCsvReaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // About the size of the full VPN Gate feed
+    private static final int SERVER_COUNT = 3000;
+
+    @Test
+    public void parsesFeedLikeLegacyParser() throws IOException {
+        byte[] feed = buildFeed(200);
+        List<Server> expected = legacyParse(feed);
+        List<Server> actual = streamParse(feed);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Server e = expected.get(i);
+            Server a = actual.get(i);
+            assertEquals(e.hostName, a.hostName);
+            assertEquals(e.ipAddress, a.ipAddress);
+            assertEquals(e.score, a.score);
+            assertEquals(e.ping, a.ping);
+            assertEquals(e.speed, a.speed);
+            assertEquals(e.countryLong, a.countryLong);
+            assertEquals(e.countryShort, a.countryShort);
+            assertEquals(e.vpnSessions, a.vpnSessions);
+            assertEquals(e.uptime, a.uptime);
+            assertEquals(e.totalUsers, a.totalUsers);
+            assertEquals(e.totalTraffic, a.totalTraffic);
+            assertEquals(e.logType, a.logType);
+            assertEquals(e.operator, a.operator);
+            assertEquals(e.message, a.message);
+            assertEquals(e.getOvpnConfigData(), a.getOvpnConfigData());
+            assertEquals(e.port, a.port);
+            assertEquals(e.protocol, a.protocol);
+        }
+    }
+
+    @Test
+    public void keepsConfigsSmallerThanTheirBase64() throws IOException {
+        byte[] feed = buildFeed(50);
+        String[] lines = new String(feed, UTF_8).split("\r\n");
+        List<Server> servers = streamParse(feed);
+        long base64 = 0;
+        long deflated = 0;
+        for (int i = 0; i < servers.size(); i++) {
+            String line = lines[i + 2];
+            base64 += line.length() - line.lastIndexOf(',') - 1;
+            deflated += servers.get(i).ovpnConfigDeflated.length;
+        }
+        // The generated certificates are random bytes, the worst case for deflate
+        assertTrue("deflated " + deflated + " of " + base64 + " Base64 bytes", deflated * 5 < base64 * 3);
+    }
+
+    @Test
+    public void skipsMalformedRows() throws IOException {
+        String feed = "*vpn_servers\r\n#HostName,IP\r\nbroken,row\r\n*\r\n";
+        VpnGateCsvReader reader = new VpnGateCsvReader(new ByteArrayInputStream(feed.getBytes(UTF_8)));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void parsesMultiMegabyteFeedFasterThanLegacyParser() throws IOException {
+        byte[] feed = buildFeed(SERVER_COUNT);
+        assertTrue(feed.length > 4 * 1024 * 1024);
+
+        // Both sides store the configs uncompressed, so deflate (about the same cost either way)
+        // does not hide the parsing itself
+        Deflater deflater = new Deflater(Deflater.NO_COMPRESSION);
+        try {
+            // Warm up both paths before measuring
+            for (int i = 0; i < 3; i++) {
+                legacyParse(feed, deflater);
+                streamParse(feed, deflater);
+            }
+
+            // Best of a few runs each, so a GC pause in one run does not decide the result
+            long legacy = Long.MAX_VALUE;
+            long streaming = Long.MAX_VALUE;
+            for (int i = 0; i < 5; i++) {
+                long start = System.nanoTime();
+                assertEquals(SERVER_COUNT, legacyParse(feed, deflater).size());
+                legacy = Math.min(legacy, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                assertEquals(SERVER_COUNT, streamParse(feed, deflater).size());
+                streaming = Math.min(streaming, System.nanoTime() - start);
+            }
+            assertTrue("legacy " + legacy / 1000000 + " ms, streaming " + streaming / 1000000 + " ms",
+                    streaming * 2 < legacy);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static List<Server> streamParse(byte[] feed) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            return streamParse(feed, deflater);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static List<Server> streamParse(byte[] feed, Deflater deflater) throws IOException {
+        List<Server> servers = new ArrayList<>();
+        VpnGateCsvReader reader = new VpnGateCsvReader(new ByteArrayInputStream(feed), deflater);
+        Server server;
+        while ((server = reader.next()) != null) {
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    private static List<Server> legacyParse(byte[] feed) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            return legacyParse(feed, deflater);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The parsing CsvParser.parse did before the streaming reader, with java.util.Base64
+     * standing in for android.util.Base64 on the JVM. The decoded config is then compressed
+     * the way Server stores it now.
+     */
+    private static List<Server> legacyParse(byte[] feed, Deflater deflater) throws IOException {
+        List<Server> servers = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(feed), UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("*") || line.startsWith("#")) {
+                continue;
+            }
+            String[] vpn = line.split(",");
+            Server server = new Server();
+            server.hostName = vpn[0];
+            server.ipAddress = vpn[1];
+            server.score = Integer.parseInt(vpn[2]);
+            server.ping = vpn[3];
+            server.speed = Long.parseLong(vpn[4]);
+            server.countryLong = vpn[5];
+            server.countryShort = vpn[6];
+            server.vpnSessions = Long.parseLong(vpn[7]);
+            server.uptime = Long.parseLong(vpn[8]);
+            server.totalUsers = Long.parseLong(vpn[9]);
+            server.totalTraffic = vpn[10];
+            server.logType = vpn[11];
+            server.operator = vpn[12];
+            server.message = vpn[13];
+            String config = new String(Base64.getMimeDecoder().decode(vpn[14]), UTF_8);
+
+            String[] lines = config.split("[\\r\\n]+");
+            server.protocol = "";
+            for (String configLine : lines) {
+                if (!configLine.startsWith("#") && configLine.startsWith("remote")) {
+                    server.port = Integer.parseInt(configLine.split(" ")[2]);
+                    break;
+                }
+            }
+            for (String configLine : lines) {
+                if (!configLine.startsWith("#") && configLine.startsWith("proto")) {
+                    server.protocol = configLine.split(" ")[1];
+                    break;
+                }
+            }
+
+            byte[] data = config.getBytes(UTF_8);
+            server.ovpnConfigDeflated = OvpnConfigCodec.deflate(deflater, data, 0, data.length);
+            servers.add(server);
+        }
+        return servers;
+    }
+
+    static byte[] buildFeed(int count) {
+        Random random = new Random(42);
+        StringBuilder feed = new StringBuilder("*vpn_servers\r\n");
+        feed.append("#HostName,IP,Score,Ping,Speed,CountryLong,CountryShort,NumVpnSessions,Uptime,")
+                .append("TotalUsers,TotalTraffic,LogType,Operator,Message,OpenVPN_ConfigData_Base64\r\n");
+        for (int i = 0; i < count; i++) {
+            String ip = "10." + (i >> 16 & 0xff) + "." + (i >> 8 & 0xff) + "." + (i & 0xff);
+            boolean udp = i % 3 == 0;
+            int port = udp ? 1195 : 443 + i % 1000;
+            feed.append("public-vpn-").append(i).append(',')
+                    .append(ip).append(',')
+                    .append(random.nextInt(3000000)).append(',')
+                    .append(random.nextInt(100)).append(',')
+                    .append(random.nextInt(200000000)).append(',')
+                    .append("Japan,JP,")
+                    .append(random.nextInt(100)).append(',')
+                    .append(random.nextInt(1000000000)).append(',')
+                    .append(random.nextInt(1000000)).append(',')
+                    .append(random.nextLong() & 0xffffffffffL).append(',')
+                    .append("2weeks,")
+                    .append("Daiyuu Nobori_ Japan. Academic Use Only.,")
+                    .append(',')
+                    .append(Base64.getEncoder().encodeToString(
+                            buildConfig(random, ip, port, udp).getBytes(UTF_8)))
+                    .append("\r\n");
+        }
+        feed.append("*\r\n");
+        return feed.toString().getBytes(UTF_8);
+    }
+
+    private static String buildConfig(Random random, String ip, int port, boolean udp) {
+        StringBuilder config = new StringBuilder();
+        config.append("###############################################################################\r\n")
+                .append("# OpenVPN 2.0 Sample Configuration File\r\n")
+                .append("#   remote 1.2.3.4 1194\r\n")
+                .append("dev tun\r\n")
+                .append("proto ").append(udp ? "udp" : "tcp").append("\r\n")
+                .append("remote ").append(ip).append(' ').append(port).append("\r\n")
+                .append("cipher AES-128-CBC\r\nauth SHA1\r\nresolv-retry infinite\r\nnobind\r\n")
+                .append("persist-key\r\npersist-tun\r\nclient\r\nverb 3\r\n")
+                .append("<ca>\r\n-----BEGIN CERTIFICATE-----\r\n");
+        byte[] cert = new byte[48];
+        for (int i = 0; i < 40; i++) {
+            random.nextBytes(cert);
+            config.append(Base64.getEncoder().encodeToString(cert)).append("\r\n");
+        }
+        config.append("-----END CERTIFICATE-----\r\n</ca>\r\n");
+        return config.toString();
+    }
+}
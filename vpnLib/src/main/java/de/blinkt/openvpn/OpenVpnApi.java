@@ -12,6 +12,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.StringReader;
 
+import de.blinkt.openvpn.core.ConfigHashCache;
 import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.ProfileManager;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
@@ -19,28 +20,108 @@ import de.blinkt.openvpn.core.VPNLaunchHelper;
 public class OpenVpnApi {
 
     private static final String  TAG = "OpenVpnApi";
+    private static final int PROFILE_CACHE_SIZE = 8;
+
+    /**
+     * Converted and checked profiles of recently used configs, keyed by config hash
+     */
+    private static final ConfigHashCache<VpnProfile> PROFILE_CACHE = new ConfigHashCache<>(PROFILE_CACHE_SIZE);
+
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
     public static void startVpn(Context context, String inlineConfig, String sCountry, String userName, String pw) throws RemoteException {
+        startVpn(context, inlineConfig, sCountry, userName, pw, null);
+    }
+
+    /**
+     * @param bypassLists names of bypass lists whose networks go around the tunnel, separated
+     *                    by white space, see {@link de.blinkt.openvpn.core.RouteCompiler}
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1)
+    public static void startVpn(Context context, String inlineConfig, String sCountry, String userName, String pw, String bypassLists) throws RemoteException {
         if (TextUtils.isEmpty(inlineConfig)) throw new RemoteException("config is empty");
-            startVpnInternal(context, inlineConfig, sCountry, userName, pw);
+            startVpnInternal(context, inlineConfig, sCountry, userName, pw, bypassLists);
+    }
+
+    static void startVpnInternal(final Context context, String inlineConfig, String sCountry, String userName, String pw, String bypassLists) throws RemoteException {
+        VpnProfile vp = prepareProfile(new ProfileHost() {
+            @Override
+            public VpnProfile parse(String config) throws RemoteException {
+                return parseProfile(context, config);
+            }
+
+            @Override
+            public boolean isSaved(VpnProfile profile) {
+                return ProfileManager.isCurrentTemporaryProfile(profile);
+            }
+
+            @Override
+            public void save(VpnProfile profile) {
+                ProfileManager.setTemporaryProfile(context, profile);
+            }
+        }, inlineConfig, context.getPackageName(), sCountry, userName, pw, bypassLists);
+        VPNLaunchHelper.startOpenVpn(vp, context);
+    }
+
+    /**
+     * Where the connect path parses and saves profiles, replaced in tests
+     */
+    interface ProfileHost {
+        VpnProfile parse(String inlineConfig) throws RemoteException;
+
+        /**
+         * @return Whether the profile is the saved temporary profile
+         */
+        boolean isSaved(VpnProfile profile);
+
+        void save(VpnProfile profile);
+    }
+
+    /**
+     * Takes the profile cached for the config or parses it, and saves it as the temporary
+     * profile unless the saved copy already has the same settings
+     */
+    static VpnProfile prepareProfile(ProfileHost host, String inlineConfig, String packageName, String sCountry, String userName, String pw, String bypassLists) throws RemoteException {
+        String key = ConfigHashCache.key(inlineConfig);
+        VpnProfile vp = PROFILE_CACHE.get(key);
+        if (vp == null) {
+            vp = host.parse(inlineConfig);
+            PROFILE_CACHE.put(key, vp);
+        }
+
+        boolean unchanged = host.isSaved(vp)
+                && equals(vp.mName, sCountry)
+                && equals(vp.mProfileCreator, packageName)
+                && equals(vp.mUsername, userName)
+                && equals(vp.mPassword, pw)
+                && equals(vp.mBypassLists, bypassLists);
+        vp.mName = sCountry;
+        vp.mProfileCreator = packageName;
+        vp.mUsername = userName;
+        vp.mPassword = pw;
+        vp.mBypassLists = bypassLists;
+        if (!unchanged) {
+            // The saved copy is only needed when the service is restarted without us
+            host.save(vp);
+        }
+        return vp;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
-    static void startVpnInternal(Context context, String inlineConfig, String sCountry, String userName, String pw) throws RemoteException {
+    private static VpnProfile parseProfile(Context context, String inlineConfig) throws RemoteException {
         ConfigParser cp = new ConfigParser();
         try {
             cp.parseConfig(new StringReader(inlineConfig));
             VpnProfile vp = cp.convertProfile();// Analysis.ovpn
             Log.d(TAG, "startVpnInternal: =============="+cp+"\n" +
                     vp);
-            vp.mName = sCountry;
-            if (vp.checkProfile(context) != de.blinkt.openvpn.R.string.no_error_found){
-                throw new RemoteException(context.getString(vp.checkProfile(context)));
+            int error = vp.checkProfile(context);
+            if (error != de.blinkt.openvpn.R.string.no_error_found){
+                throw new RemoteException(context.getString(error));
             }
-            vp.mProfileCreator = context.getPackageName();
-            vp.mUsername = userName;
-            vp.mPassword = pw;
-            ProfileManager.setTemporaryProfile(context, vp);
-            VPNLaunchHelper.startOpenVpn(vp, context);
+            return vp;
         } catch (IOException | ConfigParser.ConfigParseError e) {
             throw new RemoteException(e.getMessage());
         }
@@ -60,7 +60,9 @@ public class VpnProfile implements Serializable, Cloneable {
     public static final String INLINE_TAG = "[[INLINE]]";
     public static final String DISPLAYNAME_TAG = "[[NAME]]";
     public static final int MAXLOGLEVEL = 4;
-    public static final int CURRENT_PROFILE_VERSION = 8;
+    public static final int CURRENT_PROFILE_VERSION = 9;
+    public static final int DEFAULT_SCREEN_OFF_TRAFFIC_WINDOW = 60;
+    public static final long DEFAULT_SCREEN_OFF_TRAFFIC_LIMIT = 64 * 1024;
     public static final int DEFAULT_MSSFIX_SIZE = 1280;
     public static final int TYPE_CERTIFICATES = 0;
     public static final int TYPE_PKCS12 = 1;
@@ -136,6 +138,8 @@ public class VpnProfile implements Serializable, Cloneable {
     public boolean mAllowLocalLAN;
     public String mExcludedRoutes;
     public String mExcludedRoutesv6;
+    // Names of bypass lists separated by white space, compiled by RouteCompiler
+    public String mBypassLists;
     public int mMssFix = 0; // -1 is default,
     public Connection[] mConnections = new Connection[0];
     public boolean mRemoteRandom = false;
@@ -165,6 +169,10 @@ public class VpnProfile implements Serializable, Cloneable {
 
     public boolean mBlockUnusedAddressFamilies =true;
 
+    // Screen off pause: traffic window in seconds and the bytes below which the VPN is paused
+    public int mScreenOffTrafficWindow = DEFAULT_SCREEN_OFF_TRAFFIC_WINDOW;
+    public long mScreenOffTrafficLimit = DEFAULT_SCREEN_OFF_TRAFFIC_LIMIT;
+
     public VpnProfile(String name) {
         mUuid = UUID.randomUUID();
         mName = name;
@@ -301,6 +309,9 @@ public class VpnProfile implements Serializable, Cloneable {
             case 7:
                 if (mAllowAppVpnBypass)
                     mBlockUnusedAddressFamilies = !mAllowAppVpnBypass;
+            case 8:
+                mScreenOffTrafficWindow = DEFAULT_SCREEN_OFF_TRAFFIC_WINDOW;
+                mScreenOffTrafficLimit = DEFAULT_SCREEN_OFF_TRAFFIC_LIMIT;
             default:
         }
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Connection statistics as raw numbers for UI that shows them. The service only computes and
+ * publishes a sample while at least one listener is attached, listeners format what they
+ * display themselves. Publishing does not allocate.
+ */
+public final class ByteCountStats {
+
+    public interface StatsListener {
+        /**
+         * Called on the thread delivering byte counts, not on the main thread
+         *
+         * @param in             bytes received since the connection started
+         * @param out            bytes sent since the connection started
+         * @param inPerSecond    receive rate over the last interval
+         * @param outPerSecond   send rate over the last interval
+         * @param connectedMs    time since the connection was established
+         * @param sinceReceiveMs time since the last interval in which bytes were received
+         */
+        void onStats(long in, long out, long inPerSecond, long outPerSecond, long connectedMs, long sinceReceiveMs);
+    }
+
+    /**
+     * Told when the first listener attaches or the last one detaches
+     */
+    interface AttachObserver {
+        void onAttachChanged(boolean attached);
+    }
+
+    private static final StatsListener[] NONE = new StatsListener[0];
+    private static final Object lock = new Object();
+    private static volatile StatsListener[] listeners = NONE;
+    private static volatile AttachObserver observer;
+
+    private ByteCountStats() {
+    }
+
+    public static void addStatsListener(StatsListener listener) {
+        synchronized (lock) {
+            StatsListener[] current = listeners;
+            if (indexOf(current, listener) >= 0)
+                return;
+            StatsListener[] grown = new StatsListener[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = listener;
+            listeners = grown;
+            if (current.length > 0)
+                return;
+        }
+        notifyObserver(true);
+    }
+
+    public static void removeStatsListener(StatsListener listener) {
+        synchronized (lock) {
+            StatsListener[] current = listeners;
+            int i = indexOf(current, listener);
+            if (i < 0)
+                return;
+            StatsListener[] shrunk = new StatsListener[current.length - 1];
+            System.arraycopy(current, 0, shrunk, 0, i);
+            System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+            listeners = shrunk;
+            if (shrunk.length > 0)
+                return;
+        }
+        notifyObserver(false);
+    }
+
+    private static int indexOf(StatsListener[] array, StatsListener listener) {
+        for (int i = 0; i < array.length; i++)
+            if (array[i] == listener)
+                return i;
+        return -1;
+    }
+
+    static void setAttachObserver(AttachObserver attachObserver) {
+        observer = attachObserver;
+    }
+
+    private static void notifyObserver(boolean attached) {
+        AttachObserver o = observer;
+        if (o != null)
+            o.onAttachChanged(attached);
+    }
+
+    public static boolean hasListeners() {
+        return listeners.length > 0;
+    }
+
+    static void publish(long in, long out, long inPerSecond, long outPerSecond, long connectedMs, long sinceReceiveMs) {
+        for (StatsListener l : listeners)
+            l.onStats(in, out, inPerSecond, outPerSecond, connectedMs, sinceReceiveMs);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Picks the byte count interval from what currently consumes the counts. Totals stay correct
+ * at any interval since OpenVPN reports cumulative counters, only the granularity changes.
+ */
+final class BytecountPolicy {
+
+    static final int FAST = OpenVPNManagement.mBytecountInterval;
+    // Must stay well below the traffic window of the screen off pause
+    static final int SLOW = 20;
+
+    private BytecountPolicy() {
+    }
+
+    /**
+     * Never turns the counts off while connected: traffic since the last count would be missing
+     * from the totals when the connection stops and would land on the wrong day in the journal.
+     *
+     * @param uiAttached a {@link ByteCountStats} listener shows the statistics
+     * @param screenOn   the screen is on, so the statistics can be seen
+     * @param deviceIdle the device is in Doze
+     */
+    static int interval(boolean uiAttached, boolean screenOn, boolean deviceIdle) {
+        return uiAttached && screenOn && !deviceIdle ? FAST : SLOW;
+    }
+}
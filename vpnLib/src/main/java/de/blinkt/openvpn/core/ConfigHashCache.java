@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache keyed by the SHA-256 of a string. OpenVpnApi keeps the converted and checked
+ * VpnProfile of recently used inline configs in it, so reconnecting to the same server skips
+ * parsing and validation. RouteCompiler keeps compiled bypass lists keyed by the list versions.
+ */
+public class ConfigHashCache<V> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, V> entries;
+
+    public ConfigHashCache(final int capacity) {
+        entries = new LinkedHashMap<String, V>(capacity + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return Hex SHA-256 of the content, the key for {@link #get(String)} and {@link #put(String, Object)}
+     */
+    public static String key(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(UTF_8));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized V get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, V value) {
+        entries.put(key, value);
+    }
+
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
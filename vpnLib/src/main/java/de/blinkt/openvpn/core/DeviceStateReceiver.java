@@ -12,27 +12,28 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.NetworkInfo.State;
+import android.os.Build;
 import android.os.Handler;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
 
 import de.blinkt.openvpn.R;
+import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
 
-import java.util.LinkedList;
 import java.util.Objects;
 import java.util.StringTokenizer;
 
 import static de.blinkt.openvpn.core.OpenVPNManagement.pauseReason;
 
-public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountListener, OpenVPNManagement.PausedStateCallback {
+public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountListener, OpenVPNManagement.PausedStateCallback, ByteCountStats.AttachObserver {
     private final Handler mDisconnectHandler;
     private int lastNetwork = -1;
     private OpenVPNManagement mManagement;
 
-    // Window time in s
-    private final int TRAFFIC_WINDOW = 60;
-    // Data traffic limit in bytes
-    private final long TRAFFIC_LIMIT = 64 * 1024;
+    // Window time in s and data traffic limit in bytes, unless the profile sets them
+    private final int TRAFFIC_WINDOW = VpnProfile.DEFAULT_SCREEN_OFF_TRAFFIC_WINDOW;
+    private final long TRAFFIC_LIMIT = VpnProfile.DEFAULT_SCREEN_OFF_TRAFFIC_LIMIT;
 
     // Time to wait after network disconnect to pause the VPN
     private final int DISCONNECT_WAIT = 20;
@@ -42,6 +43,12 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
     connectState screen = connectState.SHOULDBECONNECTED;
     connectState userpause = connectState.SHOULDBECONNECTED;
 
+    // Tracked independently of the screen off pause setting, they decide the byte count interval
+    private volatile boolean screenOn = true;
+    private boolean deviceIdle = false;
+    private int bytecountInterval = -1;
+    private Runnable mScreenOnCallback;
+
     private String lastStateMsg = null;
     private java.lang.Runnable mDelayDisconnectRunnable = new Runnable() {
         @Override
@@ -58,6 +65,12 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
             mManagement.pause(getPauseReason());
         }
     };
+    private final Runnable mUpdateIntervalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateBytecountInterval();
+        }
+    };
     private NetworkInfo lastConnectedNetwork;
 
     @Override
@@ -71,44 +84,70 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         DISCONNECTED
     }
 
-    private static class Datapoint {
-        private Datapoint(long t, long d) {
-            timestamp = t;
-            data = d;
-        }
-
-        long timestamp;
-        long data;
-    }
-
-    private LinkedList<Datapoint> trafficdata = new LinkedList<>();
+    private volatile TrafficWindow trafficWindow = new TrafficWindow(TRAFFIC_WINDOW * 1000L);
+    private long trafficLimit = TRAFFIC_LIMIT;
 
 
     @Override
-    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+    public void updateByteCount(long in, long out, long diffIn, long diffOut, long intervalMs) {
         if (screen != connectState.PENDINGDISCONNECT)
             return;
 
-        long total = diffIn + diffOut;
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), total));
-
-        while (trafficdata.getFirst().timestamp <= (System.currentTimeMillis() - TRAFFIC_WINDOW * 1000)) {
-            trafficdata.removeFirst();
-        }
-
-        long windowtraffic = 0;
-        for (Datapoint dp : trafficdata)
-            windowtraffic += dp.data;
+        long now = System.currentTimeMillis();
+        trafficWindow.add(now, diffIn + diffOut);
 
-        if (windowtraffic < TRAFFIC_LIMIT) {
+        if (trafficWindow.isIdle(now, trafficLimit)) {
             screen = connectState.DISCONNECTED;
             VpnStatus.logInfo(R.string.screenoff_pause,
-                    "64 kB", TRAFFIC_WINDOW);
+                    trafficLimit / 1024 + " kB", trafficWindow.getWindowMs() / 1000);
 
             mManagement.pause(getPauseReason());
         }
     }
 
+    @Override
+    public void onAttachChanged(boolean attached) {
+        mDisconnectHandler.post(mUpdateIntervalRunnable);
+    }
+
+    /**
+     * Asks OpenVPN for byte counts only as often as someone looks at them
+     */
+    void updateBytecountInterval() {
+        int interval = BytecountPolicy.interval(ByteCountStats.hasListeners(), screenOn, deviceIdle);
+        if (interval == bytecountInterval)
+            return;
+        bytecountInterval = interval;
+        mManagement.setBytecountInterval(interval);
+    }
+
+    /**
+     * Reads the screen and Doze state, for when the receiver is registered after they changed
+     */
+    void readDeviceState(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (pm == null)
+            return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH)
+            screenOn = pm.isInteractive();
+        else
+            screenOn = pm.isScreenOn();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            deviceIdle = pm.isDeviceIdleMode();
+        updateBytecountInterval();
+    }
+
+
+    boolean isScreenOn() {
+        return screenOn;
+    }
+
+    /**
+     * Run on the main thread whenever the screen turns on
+     */
+    void setScreenOnCallback(Runnable callback) {
+        mScreenOnCallback = callback;
+    }
 
     public void userPause(boolean pause) {
         if (pause) {
@@ -142,6 +181,7 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
         if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
             networkStateChange(context);
         } else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+            screenOn = false;
             boolean screenOffPause = prefs.getBoolean("screenoff", false);
 
             if (screenOffPause) {
@@ -154,6 +194,7 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
                     screen = connectState.DISCONNECTED;
             }
         } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+            screenOn = true;
             // Network was disabled because screen off
             boolean connected = shouldBeConnected();
             screen = connectState.SHOULDBECONNECTED;
@@ -167,12 +208,31 @@ public class DeviceStateReceiver extends BroadcastReceiver implements ByteCountL
                 /*Update the reason why we are still paused */
                 mManagement.pause(getPauseReason());
 
+            if (mScreenOnCallback != null)
+                mScreenOnCallback.run();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED.equals(intent.getAction())) {
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            deviceIdle = pm != null && pm.isDeviceIdleMode();
         }
+        updateBytecountInterval();
     }
 
 
     private void fillTrafficData() {
-        trafficdata.add(new Datapoint(System.currentTimeMillis(), TRAFFIC_LIMIT));
+        VpnProfile vp = ProfileManager.getLastConnectedVpn();
+        int window = TRAFFIC_WINDOW;
+        trafficLimit = TRAFFIC_LIMIT;
+        if (vp != null && vp.mScreenOffTrafficWindow > 0)
+            window = vp.mScreenOffTrafficWindow;
+        if (vp != null && vp.mScreenOffTrafficLimit > 0)
+            trafficLimit = vp.mScreenOffTrafficLimit;
+        // Byte counts come every BytecountPolicy.SLOW seconds meanwhile, the window needs a few
+        window = Math.max(window, 3 * BytecountPolicy.SLOW);
+
+        if (trafficWindow.getWindowMs() != window * 1000L)
+            trafficWindow = new TrafficWindow(window * 1000L);
+        trafficWindow.start(System.currentTimeMillis(), trafficLimit);
     }
 
     public static boolean equalsObj(Object a, Object b) {
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Listeners of VpnStatus events. Publishing only walks a copy-on-write list and appends the
+ * event to a bounded queue per listener; the listener is called later on the executor. Each
+ * listener object has exactly one queue for all the event kinds it registered for, so a
+ * listener sees its events in publishing order and never from two threads at once, and a slow
+ * listener only delays itself.
+ * <p>
+ * When a queue is full the event with the lowest {@link Event#dropPriority()} is dropped, debug
+ * log lines go first. Events with {@link Event#NEVER_DROP} are queued beyond the bound. A byte
+ * count published while the previous one is still the last queued event replaces it.
+ * <p>
+ * A listener that throws is logged and keeps receiving events.
+ */
+class ListenerRegistry {
+
+    private static final String TAG = "ListenerRegistry";
+
+    static final int KIND_LOG = 1;
+    static final int KIND_STATE = 2;
+    static final int KIND_BYTECOUNT = 4;
+
+    abstract static class Event {
+        static final int NEVER_DROP = Integer.MAX_VALUE;
+
+        final int kind;
+
+        Event(int kind) {
+            this.kind = kind;
+        }
+
+        abstract void deliver(Object listener);
+
+        /**
+         * @return Lower values are dropped first when a queue overflows
+         */
+        int dropPriority() {
+            return NEVER_DROP;
+        }
+
+        /**
+         * @return Single event equivalent to this one followed by the newer one, or null if
+         * they cannot be merged
+         */
+        Event coalesce(Event newer) {
+            return null;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+    private final Executor mExecutor;
+    private final int mQueueCapacity;
+
+    ListenerRegistry(Executor executor, int queueCapacity) {
+        mExecutor = executor;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Registers the listener for the kind of events
+     *
+     * @param initial Event queued for the listener before any published one, may be null
+     * @return false if the listener was already registered for this kind
+     */
+    synchronized boolean add(Object listener, int kind, Event initial) {
+        Subscriber subscriber = find(listener);
+        if (subscriber == null) {
+            subscriber = new Subscriber(listener);
+            mSubscribers.add(subscriber);
+        } else if ((subscriber.kinds & kind) != 0) {
+            return false;
+        }
+        if (initial != null)
+            subscriber.offer(initial);
+        subscriber.kinds |= kind;
+        return true;
+    }
+
+    synchronized void remove(Object listener, int kind) {
+        Subscriber subscriber = find(listener);
+        if (subscriber == null)
+            return;
+        subscriber.kinds &= ~kind;
+        if (subscriber.kinds == 0) {
+            mSubscribers.remove(subscriber);
+            subscriber.close();
+        }
+    }
+
+    void publish(Event event) {
+        for (Subscriber subscriber : mSubscribers) {
+            if ((subscriber.kinds & event.kind) != 0)
+                subscriber.offer(event);
+        }
+    }
+
+    List<ListenerStats> getStats() {
+        List<ListenerStats> stats = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Subscriber subscriber : mSubscribers)
+            stats.add(subscriber.stats(now));
+        return stats;
+    }
+
+    /**
+     * Called on the executor when a listener throws, the listener keeps getting its next events
+     */
+    void onDeliveryFailed(Object listener, RuntimeException e) {
+        Log.e(TAG, "Listener " + listener.getClass().getName() + " failed", e);
+    }
+
+    private Subscriber find(Object listener) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.listener == listener)
+                return subscriber;
+        }
+        return null;
+    }
+
+    private static final class Entry {
+        Event event;
+        final long queuedAt;
+
+        Entry(Event event, long queuedAt) {
+            this.event = event;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        final Object listener;
+        volatile int kinds;
+
+        // All fields below are guarded by this
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean closed;
+        private long dropped;
+        private long coalesced;
+        private long maxLagMillis;
+
+        Subscriber(Object listener) {
+            this.listener = listener;
+        }
+
+        synchronized void offer(Event event) {
+            if (closed)
+                return;
+            long now = System.currentTimeMillis();
+
+            Entry last = queue.peekLast();
+            if (last != null) {
+                Event merged = last.event.coalesce(event);
+                if (merged != null) {
+                    last.event = merged;
+                    coalesced++;
+                    return;
+                }
+            }
+
+            if (queue.size() >= mQueueCapacity && !makeRoom(event))
+                return;
+
+            queue.addLast(new Entry(event, now));
+            if (!scheduled) {
+                scheduled = true;
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * @return false if the new event is the one to drop
+         */
+        private boolean makeRoom(Event event) {
+            Entry lowest = null;
+            for (Entry entry : queue) {
+                if (lowest == null || entry.event.dropPriority() < lowest.event.dropPriority())
+                    lowest = entry;
+            }
+            if (lowest == null || lowest.event.dropPriority() == Event.NEVER_DROP)
+                return true;
+            dropped++;
+            if (event.dropPriority() <= lowest.event.dropPriority())
+                return false;
+            Iterator<Entry> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next() == lowest) {
+                    it.remove();
+                    break;
+                }
+            }
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+            queue.clear();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry;
+                synchronized (this) {
+                    entry = queue.pollFirst();
+                    if (entry == null || closed) {
+                        scheduled = false;
+                        return;
+                    }
+                    maxLagMillis = Math.max(maxLagMillis, System.currentTimeMillis() - entry.queuedAt);
+                }
+                boolean delivered = false;
+                try {
+                    entry.event.deliver(listener);
+                    delivered = true;
+                } catch (RuntimeException e) {
+                    // One broken event must not strand the rest of the queue
+                    delivered = true;
+                    onDeliveryFailed(listener, e);
+                } finally {
+                    if (!delivered) {
+                        synchronized (this) {
+                            scheduled = false;
+                        }
+                    }
+                }
+            }
+        }
+
+        synchronized ListenerStats stats(long now) {
+            Entry head = queue.peekFirst();
+            long lag = head == null ? 0 : now - head.queuedAt;
+            return new ListenerStats(listener.getClass().getName(), queue.size(), lag,
+                    Math.max(maxLagMillis, lag), dropped, coalesced);
+        }
+    }
+}
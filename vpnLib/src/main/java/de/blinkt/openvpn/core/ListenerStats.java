@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Locale;
+
+/**
+ * How far a VpnStatus listener is behind the events published to it
+ */
+public final class ListenerStats {
+    private final String mListener;
+    private final int mPending;
+    private final long mLagMillis;
+    private final long mMaxLagMillis;
+    private final long mDropped;
+    private final long mCoalesced;
+
+    ListenerStats(String listener, int pending, long lagMillis, long maxLagMillis, long dropped, long coalesced) {
+        mListener = listener;
+        mPending = pending;
+        mLagMillis = lagMillis;
+        mMaxLagMillis = maxLagMillis;
+        mDropped = dropped;
+        mCoalesced = coalesced;
+    }
+
+    /**
+     * @return Class name of the listener
+     */
+    public String getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return Events queued and not yet delivered
+     */
+    public int getPending() {
+        return mPending;
+    }
+
+    /**
+     * @return Age of the oldest queued event, 0 if the listener is up to date
+     */
+    public long getLagMillis() {
+        return mLagMillis;
+    }
+
+    /**
+     * @return Largest time an event has waited for this listener so far
+     */
+    public long getMaxLagMillis() {
+        return mMaxLagMillis;
+    }
+
+    /**
+     * @return Events dropped because the queue of the listener was full
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return Byte count updates merged into a queued one
+     */
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d pending, lag %d ms (max %d ms), %d dropped, %d coalesced",
+                mListener, mPending, mLagMillis, mMaxLagMillis, mDropped, mCoalesced);
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of marshalled log items in a directory of fixed size, memory mapped segments. Each
+ * segment holds CRC checked blocks of records:
+ * <pre>
+ * segment: FILE_MAGIC  VERSION  blocks...  zeros
+ * block:   BLOCK_MAGIC  payload length  record count  CRC32 of payload  payload  payload length  BLOCK_END
+ * record:  length  bytes
+ * </pre>
+ * Records are marshalled into one reused block buffer, a flushed block is copied into the mapped
+ * segment with its magic written last, so a torn block reads as the end of the segment. When a
+ * block does not fit anymore the next segment is started and the oldest one beyond
+ * {@code maxSegments} is deleted. Nothing is ever rewritten, appending costs the same no matter
+ * how much has been logged. Reading parses only the newest segments holding the requested number
+ * of records.
+ */
+class LogCache {
+
+    static final int FILE_MAGIC = 0x4f564c43; // OVLC
+    static final int VERSION = 3;
+    static final int BLOCK_MAGIC = 0x4f564c42; // OVLB
+    static final int BLOCK_END = 0x4f564c45; // OVLE
+    static final int FILE_HEADER_SIZE = 8;
+    static final int BLOCK_HEADER_SIZE = 16;
+    static final int BLOCK_TRAILER_SIZE = 8;
+    static final int BLOCK_SIZE = 32 * 1024;
+
+    // 4 x 256 KB comfortably hold MAXLOGENTRIES typical log lines
+    static final int SEGMENT_SIZE = 256 * 1024;
+    static final int MAX_SEGMENTS = 4;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    interface RecordWriter {
+        void writeTo(ByteBuffer bb) throws IOException;
+    }
+
+    interface RecordReader {
+        void onRecord(byte[] data, int offset, int length) throws IOException;
+
+        void onCorruptBlock(String segment, int position, String reason);
+    }
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    // Header space, the payload of the block being filled and room for the trailer
+    private final ByteBuffer mBlock = ByteBuffer.allocate(BLOCK_HEADER_SIZE + BLOCK_SIZE + BLOCK_TRAILER_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private int mRecords;
+
+    private long mSegmentNumber;
+    // Position is the end of the data written to the segment
+    private MappedByteBuffer mSegment;
+
+    LogCache(File dir) throws IOException {
+        this(dir, SEGMENT_SIZE, MAX_SEGMENTS);
+    }
+
+    /**
+     * Opens the cache for appending, continuing in the newest segment if it is intact
+     */
+    LogCache(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < FILE_HEADER_SIZE + mBlock.capacity())
+            throw new IllegalArgumentException("Segment smaller than a block: " + segmentSize);
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create log cache directory " + dir);
+
+        long[] segments = listSegments(dir);
+        resetBlock();
+        if (segments.length == 0 || !reopenSegment(segments[segments.length - 1]))
+            startSegment(segments.length == 0 ? 0 : segments[segments.length - 1] + 1);
+    }
+
+    /**
+     * Adds one record to the current block, flushing the block first if it is full
+     */
+    void append(RecordWriter record) throws IOException {
+        int start = mBlock.position();
+        try {
+            writeRecord(record);
+        } catch (BufferOverflowException e) {
+            // Only whole records stay in the block
+            mBlock.position(start);
+            if (mRecords == 0)
+                throw e;
+            // Does not fit anymore, start a new block with it
+            flush();
+            append(record);
+            return;
+        }
+        mRecords++;
+    }
+
+    private void writeRecord(RecordWriter record) throws IOException {
+        int lengthPos = mBlock.position();
+        mBlock.putInt(0);
+        record.writeTo(mBlock);
+        mBlock.putInt(lengthPos, mBlock.position() - lengthPos - 4);
+        // Keep room for the trailer
+        if (mBlock.position() > BLOCK_HEADER_SIZE + BLOCK_SIZE)
+            throw new BufferOverflowException();
+    }
+
+    /**
+     * Copies the pending records as one block into the mapped segment
+     */
+    void flush() throws IOException {
+        if (mRecords == 0)
+            return;
+        int payloadLength = mBlock.position() - BLOCK_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(mBlock.array(), mBlock.arrayOffset() + BLOCK_HEADER_SIZE, payloadLength);
+
+        mBlock.putInt(4, payloadLength);
+        mBlock.putInt(8, mRecords);
+        mBlock.putInt(12, (int) mCrc.getValue());
+        mBlock.putInt(payloadLength);
+        mBlock.putInt(BLOCK_END);
+        mBlock.flip();
+
+        if (mSegment.remaining() < mBlock.remaining())
+            startSegment(mSegmentNumber + 1);
+
+        // Everything but the magic first, a block without magic is not there yet
+        int blockStart = mSegment.position();
+        mBlock.position(4);
+        mSegment.position(blockStart + 4);
+        mSegment.put(mBlock);
+        mSegment.putInt(blockStart, BLOCK_MAGIC);
+        resetBlock();
+    }
+
+    /**
+     * Writes the mapped pages of the current segment to the file
+     */
+    void force() {
+        mSegment.force();
+    }
+
+    /**
+     * Drops all segments and pending records
+     */
+    void truncate() throws IOException {
+        resetBlock();
+        for (long segment : listSegments(mDir))
+            deleteSegment(segment);
+        startSegment(mSegmentNumber + 1);
+    }
+
+    void close() throws IOException {
+        flush();
+        mSegment.force();
+    }
+
+    private void resetBlock() {
+        mBlock.clear();
+        mBlock.position(BLOCK_HEADER_SIZE);
+        mRecords = 0;
+    }
+
+    private void startSegment(long number) throws IOException {
+        if (mSegment != null)
+            mSegment.force();
+        // Never continue in leftovers of an earlier file with that number
+        deleteSegment(number);
+        mSegment = map(segmentFile(mDir, number));
+        mSegmentNumber = number;
+        mSegment.putInt(0, FILE_MAGIC);
+        mSegment.putInt(4, VERSION);
+        mSegment.position(FILE_HEADER_SIZE);
+
+        // Drop the oldest segments instead of rewriting anything
+        for (long segment : listSegments(mDir)) {
+            if (segment <= number - mMaxSegments)
+                deleteSegment(segment);
+        }
+    }
+
+    /**
+     * @return false if the segment is not usable and a new one should be started
+     */
+    private boolean reopenSegment(long number) throws IOException {
+        File file = segmentFile(mDir, number);
+        if (file.length() != mSegmentSize)
+            return false;
+        MappedByteBuffer segment = map(file);
+        if (segment.getInt(0) != FILE_MAGIC || segment.getInt(4) != VERSION)
+            return false;
+
+        int end = FILE_HEADER_SIZE;
+        int[] block = new int[3];
+        while (parseBlock(segment, end, block))
+            end = block[0];
+        // Clear a torn block after the end so it cannot be mistaken for data later
+        for (int i = end; i < mSegmentSize; i++) {
+            if (segment.get(i) != 0)
+                segment.put(i, (byte) 0);
+        }
+
+        segment.position(end);
+        mSegment = segment;
+        mSegmentNumber = number;
+        return true;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(mSegmentSize);
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void deleteSegment(long number) {
+        //noinspection ResultOfMethodCallIgnored
+        segmentFile(mDir, number).delete();
+    }
+
+    private static File segmentFile(File dir, long number) {
+        return new File(dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return Numbers of the segments in the directory, oldest first
+     */
+    static long[] listSegments(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                String name = f.getName();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null)
+            return new long[0];
+        long[] numbers = new long[files.length];
+        int n = 0;
+        for (File f : files) {
+            String name = f.getName();
+            try {
+                numbers[n] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                n++;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        numbers = Arrays.copyOf(numbers, n);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Checks the framing of the block at position
+     *
+     * @param block Receives end of the block, payload length and record count
+     * @return false at the end of the data
+     */
+    private static boolean parseBlock(ByteBuffer segment, int position, int[] block) {
+        if (position + BLOCK_HEADER_SIZE + BLOCK_TRAILER_SIZE > segment.limit())
+            return false;
+        if (segment.getInt(position) != BLOCK_MAGIC)
+            return false;
+        int length = segment.getInt(position + 4);
+        int records = segment.getInt(position + 8);
+        if (length < 0 || length > BLOCK_SIZE || records < 0)
+            return false;
+        int trailer = position + BLOCK_HEADER_SIZE + length;
+        if (trailer + BLOCK_TRAILER_SIZE > segment.limit()
+                || segment.getInt(trailer) != length || segment.getInt(trailer + 4) != BLOCK_END)
+            return false;
+        block[0] = trailer + BLOCK_TRAILER_SIZE;
+        block[1] = length;
+        block[2] = records;
+        return true;
+    }
+
+    /**
+     * Hands the newest {@code maxRecords} records of the cache to the reader, oldest first
+     *
+     * @return Number of records read
+     */
+    static int read(File dir, int maxRecords, RecordReader reader) throws IOException {
+        long[] segments = listSegments(dir);
+
+        // Newest segments first until they hold enough records
+        List<byte[]> contents = new ArrayList<>();
+        List<List<int[]>> blocks = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        long available = 0;
+        for (int s = segments.length - 1; s >= 0 && available < maxRecords; s--) {
+            File file = segmentFile(dir, segments[s]);
+            byte[] data = readSegment(file);
+            if (data == null)
+                continue;
+            List<int[]> segmentBlocks = new ArrayList<>();
+            available += scanSegment(data, file.getName(), segmentBlocks, reader);
+            contents.add(0, data);
+            blocks.add(0, segmentBlocks);
+            names.add(0, file.getName());
+        }
+
+        long skip = Math.max(0, available - maxRecords);
+        int read = 0;
+        for (int s = 0; s < contents.size(); s++) {
+            byte[] data = contents.get(s);
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            for (int[] block : blocks.get(s)) {
+                bb.limit(block[0] + BLOCK_HEADER_SIZE + block[1]);
+                bb.position(block[0] + BLOCK_HEADER_SIZE);
+                for (int r = 0; r < block[2]; r++) {
+                    int length = bb.remaining() >= 4 ? bb.getInt() : -1;
+                    if (length < 0 || length > bb.remaining()) {
+                        reader.onCorruptBlock(names.get(s), block[0], "bad record length " + length);
+                        skip = Math.max(0, skip - (block[2] - r));
+                        break;
+                    }
+                    if (skip > 0)
+                        skip--;
+                    else {
+                        reader.onRecord(data, bb.position(), length);
+                        read++;
+                    }
+                    bb.position(bb.position() + length);
+                }
+            }
+        }
+        return read;
+    }
+
+    private static byte[] readSegment(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < FILE_HEADER_SIZE || raf.length() > Integer.MAX_VALUE)
+                return null;
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            if (bb.getInt(0) != FILE_MAGIC || bb.getInt(4) != VERSION)
+                return null;
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Collects the intact blocks of a segment as {position, payload length, records}
+     *
+     * @return Number of records in them
+     */
+    private static long scanSegment(byte[] data, String name, List<int[]> blocks, RecordReader reader) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        int[] block = new int[3];
+        int position = FILE_HEADER_SIZE;
+        long records = 0;
+        while (parseBlock(bb, position, block)) {
+            crc.reset();
+            crc.update(data, position + BLOCK_HEADER_SIZE, block[1]);
+            if ((int) crc.getValue() == bb.getInt(position + 12)) {
+                blocks.add(new int[]{position, block[1], block[2]});
+                records += block[2];
+            } else {
+                reader.onCorruptBlock(name, position, "CRC mismatch");
+            }
+            position = block[0];
+        }
+        if (position + 4 <= data.length && bb.getInt(position) != 0)
+            reader.onCorruptBlock(name, position, "unframed data");
+        return records;
+    }
+}
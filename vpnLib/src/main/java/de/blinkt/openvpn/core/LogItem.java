@@ -89,8 +89,18 @@ public class LogItem implements Parcelable {
 
     public byte[] getMarschaledBytes() throws UnsupportedEncodingException, BufferOverflowException {
         ByteBuffer bb = ByteBuffer.allocate(16384);
+        marschalTo(bb);
 
+        int pos = bb.position();
+        bb.rewind();
+        return Arrays.copyOf(bb.array(), pos);
 
+    }
+
+    /**
+     * Writes the same bytes as {@link #getMarschaledBytes()} at the position of the buffer
+     */
+    void marschalTo(ByteBuffer bb) throws UnsupportedEncodingException, BufferOverflowException {
         bb.put((byte) 0x0);               //version
         bb.putLong(logtime);              //8
         bb.putInt(mVerbosityLevel);      //4
@@ -131,15 +141,14 @@ public class LogItem implements Parcelable {
 
             }
         }
-
-        int pos = bb.position();
-        bb.rewind();
-        return Arrays.copyOf(bb.array(), pos);
-
     }
 
     public LogItem(byte[] in, int length) throws UnsupportedEncodingException {
-        ByteBuffer bb = ByteBuffer.wrap(in, 0, length);
+        this(in, 0, length);
+    }
+
+    LogItem(byte[] in, int offset, int length) throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.wrap(in, offset, length);
         bb.get(); // ignore version
         logtime = bb.getLong();
         mVerbosityLevel = bb.getInt();
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream format of the log replay from {@link OpenVPNStatusService} to a client in another
+ * process. The stream starts with the log epoch, then items follow in frames of up to 64 kB,
+ * each frame written with a single call. A frame is a short item count and per item a short
+ * length and the marshalled {@link LogItem}, items above 16 kB are left out. A count of 0 ends the stream and is followed by the
+ * sequence the client resumes from. The epoch changes whenever the service process starts, so
+ * a cursor from a previous process is never resumed from.
+ */
+final class LogReplay {
+
+    interface Source {
+        /**
+         * Same contract as {@link LogRingBuffer#readFrom}
+         */
+        long read(long cursor, LogRingBuffer.Reader<LogItem> reader);
+    }
+
+    interface Sink {
+        void onItem(LogItem item);
+    }
+
+    static final class Position {
+        final long epoch;
+        final long cursor;
+
+        Position(long epoch, long cursor) {
+            this.epoch = epoch;
+            this.cursor = cursor;
+        }
+    }
+
+    private static final int MAGIC = 0x4c4f4731; // LOG1
+    static final int FRAME_SIZE = 64 * 1024;
+    // Size of the read buffer, larger items are dropped by the writer
+    static final int MAX_ITEM_SIZE = 16384;
+
+    private static final class WriteFailed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        WriteFailed(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private LogReplay() {
+    }
+
+    /**
+     * Writes the items with a sequence from {@code from} to below {@code end}
+     */
+    static void write(final OutputStream out, Source source, long epoch, long from, final long end) throws IOException {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        frame.putInt(MAGIC);
+        frame.putLong(epoch);
+        final int[] count = new int[1];
+        // Frame starts with the item count, written when the frame is sent
+        final int[] countPos = {frame.position()};
+        frame.putShort((short) 0);
+
+        try {
+            source.read(from, (sequence, item) -> {
+                if (sequence >= end)
+                    return;
+                if (frame.remaining() < MAX_ITEM_SIZE + 2) {
+                    sendFrame(out, frame, countPos[0], count[0]);
+                    count[0] = 0;
+                    countPos[0] = 0;
+                    frame.putShort((short) 0);
+                }
+                int lengthPos = frame.position();
+                frame.putShort((short) 0);
+                try {
+                    item.marschalTo(frame);
+                } catch (UnsupportedEncodingException | BufferOverflowException e) {
+                    // Drop the item rather than the whole replay
+                    frame.position(lengthPos);
+                    return;
+                }
+                if (frame.position() - lengthPos - 2 > MAX_ITEM_SIZE) {
+                    // Would not fit the buffer of the reader
+                    frame.position(lengthPos);
+                    return;
+                }
+                frame.putShort(lengthPos, (short) (frame.position() - lengthPos - 2));
+                count[0]++;
+            });
+        } catch (WriteFailed e) {
+            throw (IOException) e.getCause();
+        }
+
+        // An empty frame ends the stream
+        if (count[0] > 0) {
+            sendFrame(out, frame, countPos[0], count[0]);
+            frame.putShort((short) 0);
+        }
+        frame.putLong(Math.max(from, end));
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+    }
+
+    private static void sendFrame(OutputStream out, ByteBuffer frame, int countPos, int count) {
+        frame.putShort(countPos, (short) count);
+        try {
+            out.write(frame.array(), 0, frame.position());
+        } catch (IOException e) {
+            throw new WriteFailed(e);
+        }
+        frame.clear();
+    }
+
+    /**
+     * Reads a replay written by {@link #write}
+     *
+     * @return Epoch of the writer and the cursor to resume from
+     */
+    static Position read(DataInputStream in, Sink sink) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a log replay stream");
+        long epoch = in.readLong();
+        byte[] buf = new byte[MAX_ITEM_SIZE];
+        int count;
+        while ((count = in.readShort()) != 0) {
+            for (int i = 0; i < count; i++) {
+                int len = in.readShort();
+                if (len < 0 || len > MAX_ITEM_SIZE)
+                    throw new IOException("Log item of " + len + " bytes in replay");
+                in.readFully(buf, 0, len);
+                sink.onItem(new LogItem(buf, len));
+            }
+        }
+        return new Position(epoch, in.readLong());
+    }
+}
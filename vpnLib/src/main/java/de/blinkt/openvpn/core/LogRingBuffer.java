@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of the most recent log items. Every item gets a sequence number, the slot
+ * of an item is its sequence modulo the capacity.
+ * <p>
+ * There is one writer at a time: {@link #publish} and {@link #clear} must be serialized by the
+ * caller. Readers never lock. They read the published sequence and then the slots, and drop
+ * slots that the writer has already reused for a newer item in the meantime, so a reader is
+ * never blocked and never blocks the writer.
+ */
+final class LogRingBuffer<T> {
+
+    interface Reader<T> {
+        void onItem(long sequence, T item);
+    }
+
+    private static final class Slot<T> {
+        final long sequence;
+        final T item;
+
+        Slot(long sequence, T item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot<T>> slots;
+    private final int mask;
+
+    // Sequence the next item gets, everything below has been published
+    private volatile long nextSequence;
+    // Items below this sequence have been cleared
+    private volatile long firstSequence;
+
+    /**
+     * @param minCapacity Number of items to retain, rounded up to a power of two
+     */
+    LogRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Appends an item, overwriting the oldest one once the ring is full. Writer only.
+     *
+     * @return Sequence number of the item
+     */
+    long publish(T item) {
+        long sequence = nextSequence;
+        slots.set((int) sequence & mask, new Slot<>(sequence, item));
+        // Volatile write publishes the slot to readers
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    /**
+     * Drops all items. Sequence numbers keep counting. Writer only.
+     */
+    void clear() {
+        firstSequence = nextSequence;
+    }
+
+    /**
+     * @return Sequence the next published item will get, i.e. the cursor of a reader that
+     * has seen everything
+     */
+    long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * @return Sequence of the oldest item still retained
+     */
+    long oldestSequence() {
+        return Math.max(firstSequence, nextSequence - capacity());
+    }
+
+    int size() {
+        return (int) (nextSequence - oldestSequence());
+    }
+
+    /**
+     * Hands all retained items with a sequence of at least {@code cursor} to the reader, oldest
+     * first. Items that were overwritten before the reader got to them are skipped, the reader
+     * sees that as a gap in the sequence numbers.
+     *
+     * @return Cursor to pass to the next call
+     */
+    long readFrom(long cursor, Reader<? super T> reader) {
+        long end = nextSequence;
+        long start = Math.max(cursor, Math.max(firstSequence, end - capacity()));
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot<T> slot = slots.get((int) sequence & mask);
+            // A newer sequence means the writer lapped us, the item is gone
+            if (slot != null && slot.sequence == sequence)
+                reader.onItem(sequence, slot.item);
+        }
+        return Math.max(cursor, end);
+    }
+
+    /**
+     * @return Copy of all retained items, oldest first
+     */
+    List<T> snapshot() {
+        final List<T> items = new ArrayList<>(capacity());
+        readFrom(0, (sequence, item) -> items.add(item));
+        return items;
+    }
+}
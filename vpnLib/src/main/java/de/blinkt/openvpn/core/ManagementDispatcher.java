@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Routes lines of the OpenVPN management interface. The ">COMMAND:" prefix is looked up in a
+ * table built once (buckets by name length, compared in place without substrings) and the
+ * argument is tokenized once into a reusable {@link ManagementLine}. Tun configuration requested
+ * with NEED-OK goes to {@link ServiceCallbacks}, everything that needs the socket, the profile
+ * or VpnStatus goes to {@link Target}. Neither side touches the Android framework here, so the
+ * dispatcher can be driven by a recorded transcript on the plain JVM.
+ */
+class ManagementDispatcher {
+
+    private enum Command {
+        INFO, PASSWORD, HOLD, NEED_OK("NEED-OK"), BYTECOUNT, STATE, PROXY, LOG, PK_SIGN, INFOMSG;
+
+        final String wireName;
+
+        Command() {
+            wireName = name();
+        }
+
+        Command(String wireName) {
+            this.wireName = wireName;
+        }
+    }
+
+    private static final Command[][] COMMANDS_BY_LENGTH;
+
+    static {
+        int maxLength = 0;
+        for (Command command : Command.values())
+            maxLength = Math.max(maxLength, command.wireName.length());
+        COMMANDS_BY_LENGTH = new Command[maxLength + 1][0];
+        for (Command command : Command.values()) {
+            Command[] bucket = COMMANDS_BY_LENGTH[command.wireName.length()];
+            bucket = Arrays.copyOf(bucket, bucket.length + 1);
+            bucket[bucket.length - 1] = command;
+            COMMANDS_BY_LENGTH[command.wireName.length()] = bucket;
+        }
+    }
+
+    private final Target mTarget;
+    private final ServiceCallbacks mService;
+    private final ManagementLine mLine = new ManagementLine();
+
+    ManagementDispatcher(Target target, ServiceCallbacks service) {
+        mTarget = target;
+        mService = service;
+    }
+
+    /**
+     * Handles one line without its terminator. Must be called from a single thread,
+     * the tokenized line is reused.
+     */
+    void dispatch(String line) {
+        if (line.startsWith(">")) {
+            int colon = line.indexOf(':');
+            Command command = colon > 0 ? lookup(line, colon) : null;
+            if (command != null) {
+                mLine.set(line, colon + 1);
+                dispatch(command, mLine);
+            } else if (colon > 0) {
+                mTarget.onUnrecognized(line, true);
+            } else {
+                mTarget.onUnrecognized(line, false);
+            }
+        } else if (line.startsWith("SUCCESS:")) {
+            /* Ignore this kind of message too */
+        } else if (line.startsWith("PROTECTFD: ")) {
+            mTarget.protectNextFd();
+        } else {
+            mTarget.onUnrecognized(line, false);
+        }
+    }
+
+    private static Command lookup(String line, int colon) {
+        int length = colon - 1;
+        if (length >= COMMANDS_BY_LENGTH.length)
+            return null;
+        for (Command command : COMMANDS_BY_LENGTH[length]) {
+            if (line.startsWith(command.wireName, 1))
+                return command;
+        }
+        return null;
+    }
+
+    private void dispatch(Command command, ManagementLine line) {
+        switch (command) {
+            case INFO:
+                /* Ignore greeting from management */
+                break;
+            case PASSWORD:
+                mTarget.onPassword(line.argument());
+                break;
+            case HOLD:
+                // >HOLD:Waiting for hold release:{SECONDS}
+                line.split(':', 3);
+                mTarget.onHold(line.intField(1));
+                break;
+            case NEED_OK:
+                processNeedCommand(line.argument());
+                break;
+            case BYTECOUNT:
+                // >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
+                line.split(',', 2);
+                mTarget.onByteCount(line.longField(0), line.longField(1));
+                break;
+            case STATE:
+                processState(line);
+                break;
+            case PROXY:
+                processProxy(line);
+                break;
+            case LOG:
+                processLogMessage(line);
+                break;
+            case PK_SIGN:
+                mTarget.onSign(line.argument());
+                break;
+            case INFOMSG:
+                if (line.argumentStartsWith("OPEN_URL:") || line.argumentStartsWith("CR_TEXT:"))
+                    mService.trigger_sso(line.argument());
+                else
+                    mTarget.onInfoMessage(line.argument());
+                break;
+        }
+    }
+
+    private void processState(ManagementLine line) {
+        // >STATE:{TIME},{STATE},{DETAILS...}
+        line.split(',', 3);
+        String detail = line.fieldEquals(2, ",,") ? "" : line.field(2);
+        mTarget.onState(line.field(1), detail);
+    }
+
+    private void processProxy(ManagementLine line) {
+        // >PROXY:{CONNECTION ENTRY},{PROTOCOL},{HOST}
+        int fields = line.split(',', 3);
+        mTarget.onProxy(line.intField(0) - 1, fields >= 2 ? line.field(1) : null);
+    }
+
+    private void processLogMessage(ManagementLine line) {
+        // >LOG:{TIME},{FLAGS},{LEVEL},{MESSAGE}
+        // flags: I informational, F fatal error, N non-fatal error, W warning, D debug
+        line.split(',', 4);
+        int ovpnlevel = line.intField(2) & 0x0F;
+        String msg = line.field(3);
+
+        if (msg.startsWith("MANAGEMENT: CMD"))
+            ovpnlevel = Math.max(4, ovpnlevel);
+
+        mTarget.onLog(line.fieldChar(1), ovpnlevel, msg);
+    }
+
+    private void processNeedCommand(String argument) {
+        int p1 = argument.indexOf('\'');
+        int p2 = argument.indexOf('\'', p1 + 1);
+
+        String needed = argument.substring(p1 + 1, p2);
+        int colon = argument.indexOf(':');
+        String extra = colon >= 0 ? argument.substring(colon + 1) : "";
+
+        String status = "ok";
+
+        switch (needed) {
+            case "PROTECTFD":
+                mTarget.protectNextFd();
+                break;
+            case "DNSSERVER":
+            case "DNS6SERVER":
+                mService.addDNS(extra);
+                break;
+            case "DNSDOMAIN":
+                mService.setDomain(extra);
+                break;
+            case "ROUTE": {
+                // "network netmask gateway dev iface" or "network netmask gateway"
+                String[] routeparts = extra.split(" ");
+                if (routeparts.length == 5) {
+                    mService.addRoute(routeparts[0], routeparts[1], routeparts[2], routeparts[4]);
+                } else if (routeparts.length >= 3) {
+                    mService.addRoute(routeparts[0], routeparts[1], routeparts[2], null);
+                } else {
+                    mTarget.onError("Unrecognized ROUTE cmd:" + Arrays.toString(routeparts) + " | " + argument);
+                }
+                break;
+            }
+            case "ROUTE6": {
+                String[] routeparts = extra.split(" ");
+                mService.addRoutev6(routeparts[0], routeparts[1]);
+                break;
+            }
+            case "IFCONFIG": {
+                String[] ifconfigparts = extra.split(" ");
+                int mtu = Integer.parseInt(ifconfigparts[2]);
+                mService.setLocalIP(ifconfigparts[0], ifconfigparts[1], mtu, ifconfigparts[3]);
+                break;
+            }
+            case "IFCONFIG6": {
+                String[] ifconfig6parts = extra.split(" ");
+                int mtu = Integer.parseInt(ifconfig6parts[1]);
+                mService.setMtu(mtu);
+                mService.setLocalIPv6(ifconfig6parts[0]);
+                break;
+            }
+            case "PERSIST_TUN_ACTION":
+                // check if tun cfg stayed the same
+                status = mService.getTunReopenStatus();
+                break;
+            case "OPENTUN":
+                if (mTarget.sendTunFd(needed, extra))
+                    return;
+                status = "cancel";
+                break;
+            default:
+                mTarget.onUnknownNeedOk(argument);
+                return;
+        }
+
+        mTarget.sendCommand(String.format(Locale.ENGLISH, "needok '%s' %s\n", needed, status));
+    }
+
+    /**
+     * Parts of OpenVPNService the management interface configures the tun device with
+     */
+    interface ServiceCallbacks {
+        void addDNS(String dns);
+
+        void setDomain(String domain);
+
+        void addRoute(String dest, String mask, String gateway, String device);
+
+        void addRoutev6(String network, String device);
+
+        void setLocalIP(String local, String netmask, int mtu, String mode);
+
+        void setMtu(int mtu);
+
+        void setLocalIPv6(String ipv6addr);
+
+        String getTunReopenStatus();
+
+        void trigger_sso(String info);
+    }
+
+    /**
+     * Side of the management thread: socket, profile, pause state and logging
+     */
+    interface Target {
+        void sendCommand(String command);
+
+        void onPassword(String argument);
+
+        void onHold(int waitSeconds);
+
+        void onByteCount(long in, long out);
+
+        void onState(String state, String detail);
+
+        void onProxy(int connectionEntry, String protocol);
+
+        /**
+         * @param flag OpenVPN log flag: I, F, N, W or D
+         */
+        void onLog(char flag, int ovpnLevel, String message);
+
+        void onSign(String argument);
+
+        void onInfoMessage(String info);
+
+        void protectNextFd();
+
+        /**
+         * @return Whether the tun fd was sent together with the needok reply
+         */
+        boolean sendTunFd(String needed, String extra);
+
+        void onUnknownNeedOk(String argument);
+
+        void onUnrecognized(String line, boolean isCommand);
+
+        void onError(String message);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Reusable view of one management interface line. The argument after ">COMMAND:" is split
+ * into fields by recording offsets only, numeric fields are parsed in place and strings are
+ * created only for the fields a handler actually asks for.
+ */
+final class ManagementLine {
+
+    private static final int MAX_FIELDS = 8;
+
+    private String line;
+    private int argumentStart;
+
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+
+    void set(String line, int argumentStart) {
+        this.line = line;
+        this.argumentStart = argumentStart;
+        this.fieldCount = 0;
+    }
+
+    String line() {
+        return line;
+    }
+
+    String argument() {
+        return line.substring(argumentStart);
+    }
+
+    boolean argumentStartsWith(String prefix) {
+        return line.startsWith(prefix, argumentStart);
+    }
+
+    /**
+     * Splits the argument at the separator like {@code argument().split(separator, limit)},
+     * the last field takes the rest of the line
+     *
+     * @return Number of fields
+     */
+    int split(char separator, int limit) {
+        limit = Math.min(limit, MAX_FIELDS);
+        int start = argumentStart;
+        fieldCount = 0;
+        while (fieldCount < limit - 1) {
+            int end = line.indexOf(separator, start);
+            if (end < 0)
+                break;
+            fieldStart[fieldCount] = start;
+            fieldEnd[fieldCount] = end;
+            fieldCount++;
+            start = end + 1;
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = line.length();
+        return ++fieldCount;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    String field(int i) {
+        checkField(i);
+        return line.substring(fieldStart[i], fieldEnd[i]);
+    }
+
+    boolean fieldEquals(int i, String value) {
+        checkField(i);
+        int length = fieldEnd[i] - fieldStart[i];
+        return length == value.length() && line.startsWith(value, fieldStart[i]);
+    }
+
+    char fieldChar(int i) {
+        checkField(i);
+        return fieldEnd[i] > fieldStart[i] ? line.charAt(fieldStart[i]) : 0;
+    }
+
+    long longField(int i) {
+        checkField(i);
+        int from = fieldStart[i];
+        int to = fieldEnd[i];
+        boolean negative = from < to && line.charAt(from) == '-';
+        if (negative)
+            from++;
+        if (from == to)
+            throw new NumberFormatException("Empty number in: " + line);
+        long value = 0;
+        for (int p = from; p < to; p++) {
+            int digit = line.charAt(p) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Not a number in: " + line);
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    int intField(int i) {
+        return (int) longField(i);
+    }
+
+    private void checkField(int i) {
+        if (i >= fieldCount)
+            throw new ArrayIndexOutOfBoundsException("Field " + i + " of " + fieldCount + " in: " + line);
+    }
+}
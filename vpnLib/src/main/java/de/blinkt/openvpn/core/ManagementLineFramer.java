@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the management interface byte stream into lines. Socket reads go straight into one
+ * ByteBuffer, new bytes are scanned for '\n' once and every complete line is decoded exactly
+ * once. Only the trailing partial line is moved to the front of the buffer, so a burst of
+ * input costs time linear in its size instead of re-splitting the accumulated string.
+ */
+class ManagementLineFramer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MIN_READ = 2048;
+
+    interface LineHandler {
+        void onLine(String line);
+    }
+
+    // Write mode: bytes [0, position) are pending input
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    // Pending bytes before this offset are known not to contain '\n'
+    private int scanned;
+
+    /**
+     * Reads once from the stream into the buffer
+     *
+     * @return Number of bytes read, -1 at end of stream
+     */
+    int read(InputStream in) throws IOException {
+        if (buffer.remaining() < MIN_READ) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + MIN_READ));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0)
+            buffer.position(buffer.position() + read);
+        return read;
+    }
+
+    /**
+     * Hands every complete line read so far to the handler, without the line terminator.
+     * A trailing "\r" is dropped as well.
+     */
+    void processLines(LineHandler handler) {
+        byte[] data = buffer.array();
+        int offset = buffer.arrayOffset();
+        int end = buffer.position();
+        int lineStart = 0;
+
+        for (int i = scanned; i < end; i++) {
+            if (data[offset + i] != '\n')
+                continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && data[offset + lineEnd - 1] == '\r')
+                lineEnd--;
+            handler.onLine(new String(data, offset + lineStart, lineEnd - lineStart, UTF_8));
+            lineStart = i + 1;
+        }
+
+        if (lineStart > 0) {
+            // Keep only the partial line
+            buffer.flip();
+            buffer.position(lineStart);
+            buffer.compact();
+        }
+        scanned = buffer.position();
+    }
+
+    /**
+     * @return Bytes of the incomplete last line
+     */
+    int pending() {
+        return buffer.position();
+    }
+}
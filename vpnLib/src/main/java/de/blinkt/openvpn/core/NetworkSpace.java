@@ -8,11 +8,9 @@ package de.blinkt.openvpn.core;
 import android.os.Build;
 import androidx.annotation.NonNull;
 
-import java.math.BigInteger;
 import java.net.Inet6Address;
 import java.util.Collection;
 import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.TreeSet;
 import java.util.Vector;
 
@@ -28,13 +26,39 @@ public class NetworkSpace {
             throw new IllegalStateException();
     }
 
+    /**
+     * Compares two 128 bit numbers as unsigned, without Long.compareUnsigned which needs API 26
+     */
+    static int compareUnsigned(long aHigh, long aLow, long bHigh, long bLow) {
+        if (aHigh != bHigh)
+            return (aHigh + Long.MIN_VALUE) < (bHigh + Long.MIN_VALUE) ? -1 : 1;
+        if (aLow != bLow)
+            return (aLow + Long.MIN_VALUE) < (bLow + Long.MIN_VALUE) ? -1 : 1;
+        return 0;
+    }
+
+    // Bits below the network mask, hostBits counted from the lowest bit of the 128 bit number
+    static long hostMaskHigh(int hostBits) {
+        if (hostBits <= 64)
+            return 0;
+        else if (hostBits >= 128)
+            return -1L;
+        return (1L << (hostBits - 64)) - 1;
+    }
+
+    static long hostMaskLow(int hostBits) {
+        if (hostBits >= 64)
+            return -1L;
+        return (1L << hostBits) - 1;
+    }
+
     static class IpAddress implements Comparable<IpAddress> {
-        private BigInteger netAddress;
+        // The address as 128 bit number, IPv4 addresses only use the lowest 32 bits of low
+        private final long high;
+        private final long low;
         public int networkMask;
         private boolean included;
         private boolean isV4;
-        private BigInteger firstAddress;
-        private BigInteger lastAddress;
 
 
         /**
@@ -44,7 +68,7 @@ public class NetworkSpace {
          */
         @Override
         public int compareTo(@NonNull IpAddress another) {
-            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            int comp = compareUnsigned(getFirstHigh(), getFirstLow(), another.getFirstHigh(), another.getFirstLow());
             if (comp != 0)
                 return comp;
 
@@ -69,12 +93,20 @@ public class NetworkSpace {
 
 
             IpAddress on = (IpAddress) o;
-            return (networkMask == on.networkMask) && on.getFirstAddress().equals(getFirstAddress());
+            return (networkMask == on.networkMask) && on.getFirstHigh() == getFirstHigh()
+                    && on.getFirstLow() == getFirstLow();
+        }
+
+        @Override
+        public int hashCode() {
+            long first = getFirstHigh() * 31 + getFirstLow();
+            return (int) (first ^ (first >>> 32)) * 31 + networkMask;
         }
 
         public IpAddress(CIDRIP ip, boolean include) {
             included = include;
-            netAddress = BigInteger.valueOf(ip.getInt());
+            high = 0;
+            low = ip.getInt();
             networkMask = ip.len;
             isV4 = true;
         }
@@ -83,46 +115,47 @@ public class NetworkSpace {
             networkMask = mask;
             included = include;
 
-            int s = 128;
-
-            netAddress = BigInteger.ZERO;
-            for (byte b : address.getAddress()) {
-                s -= 8;
-                netAddress = netAddress.add(BigInteger.valueOf((b & 0xFF)).shiftLeft(s));
+            byte[] bytes = address.getAddress();
+            long h = 0;
+            long l = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (bytes[i] & 0xFF);
+                l = (l << 8) | (bytes[i + 8] & 0xFF);
             }
+            high = h;
+            low = l;
         }
 
-        public BigInteger getLastAddress() {
-            if (lastAddress == null)
-                lastAddress = getMaskedAddress(true);
-            return lastAddress;
+        IpAddress(long high, long low, int mask, boolean included, boolean isV4) {
+            this.high = high;
+            this.low = low;
+            this.networkMask = mask;
+            this.included = included;
+            this.isV4 = isV4;
         }
 
+        boolean isIncluded() {
+            return included;
+        }
 
-        public BigInteger getFirstAddress() {
-            if (firstAddress == null)
-                firstAddress = getMaskedAddress(false);
-            return firstAddress;
+        private int getHostBits() {
+            return (isV4 ? 32 : 128) - networkMask;
         }
 
+        long getFirstHigh() {
+            return high & ~hostMaskHigh(getHostBits());
+        }
 
-        private BigInteger getMaskedAddress(boolean one) {
-            BigInteger numAddress = netAddress;
+        long getFirstLow() {
+            return low & ~hostMaskLow(getHostBits());
+        }
 
-            int numBits;
-            if (isV4) {
-                numBits = 32 - networkMask;
-            } else {
-                numBits = 128 - networkMask;
-            }
+        long getLastHigh() {
+            return high | hostMaskHigh(getHostBits());
+        }
 
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+        long getLastLow() {
+            return low | hostMaskLow(getHostBits());
         }
 
 
@@ -135,42 +168,38 @@ public class NetworkSpace {
                 return String.format(Locale.US, "%s/%d", getIPv6Address(), networkMask);
         }
 
-        IpAddress(BigInteger baseAddress, int mask, boolean included, boolean isV4) {
-            this.netAddress = baseAddress;
-            this.networkMask = mask;
-            this.included = included;
-            this.isV4 = isV4;
-        }
-
 
         public IpAddress[] split() {
-            IpAddress firstHalf = new IpAddress(getFirstAddress(), networkMask + 1, included, isV4);
-            IpAddress secondHalf = new IpAddress(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1, included, isV4);
+            int hostBits = getHostBits() - 1;
+            IpAddress firstHalf = new IpAddress(getFirstHigh(), getFirstLow(), networkMask + 1, included, isV4);
+            IpAddress secondHalf = new IpAddress(getFirstHigh() | (hostMaskHigh(hostBits + 1) ^ hostMaskHigh(hostBits)),
+                    getFirstLow() | (hostMaskLow(hostBits + 1) ^ hostMaskLow(hostBits)), networkMask + 1, included, isV4);
             if (BuildConfig.DEBUG)
-                assertTrue(secondHalf.getLastAddress().equals(getLastAddress()));
+                assertTrue(secondHalf.getLastHigh() == getLastHigh() && secondHalf.getLastLow() == getLastLow());
             return new IpAddress[]{firstHalf, secondHalf};
         }
 
         String getIPv4Address() {
             if (BuildConfig.DEBUG) {
                 assertTrue(isV4);
-                assertTrue(netAddress.longValue() <= 0xffffffffl);
-                assertTrue(netAddress.longValue() >= 0);
+                assertTrue(low <= 0xffffffffl);
+                assertTrue(low >= 0);
             }
-            long ip = netAddress.longValue();
+            long ip = low;
             return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) % 256, (ip >> 16) % 256, (ip >> 8) % 256, ip % 256);
         }
 
         String getIPv6Address() {
             if (BuildConfig.DEBUG) assertTrue(!isV4);
-            BigInteger r = netAddress;
+            long rHigh = high;
+            long rLow = low;
 
             String ipv6str = null;
             boolean lastPart = true;
 
-            while (r.compareTo(BigInteger.ZERO) == 1) {
+            while (rHigh != 0 || rLow != 0) {
 
-                long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
+                long part = rLow & 0xffff;
                 if (ipv6str != null || part != 0) {
                     if (ipv6str == null && !lastPart)
                             ipv6str = ":";
@@ -181,7 +210,8 @@ public class NetworkSpace {
                         ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
                 }
 
-                r = r.shiftRight(16);
+                rLow = (rLow >>> 16) | (rHigh << 48);
+                rHigh = rHigh >>> 16;
                 lastPart = false;
             }
             if (ipv6str == null)
@@ -193,13 +223,8 @@ public class NetworkSpace {
 
         public boolean containsNet(IpAddress network) {
             // this.first >= net.first &&  this.last <= net.last
-            BigInteger ourFirst = getFirstAddress();
-            BigInteger ourLast = getLastAddress();
-            BigInteger netFirst = network.getFirstAddress();
-            BigInteger netLast = network.getLastAddress();
-
-            boolean a = ourFirst.compareTo(netFirst) != 1;
-            boolean b = ourLast.compareTo(netLast) != -1;
+            boolean a = compareUnsigned(getFirstHigh(), getFirstLow(), network.getFirstHigh(), network.getFirstLow()) != 1;
+            boolean b = compareUnsigned(getLastHigh(), getLastLow(), network.getLastHigh(), network.getLastLow()) != -1;
             return a && b;
 
         }
@@ -239,96 +264,128 @@ public class NetworkSpace {
         mIpAddresses.add(new IpAddress(address, mask, included));
     }
 
-    TreeSet<IpAddress> generateIPList() {
-
-        PriorityQueue<IpAddress> networks = new PriorityQueue<IpAddress>(mIpAddresses);
-
-        TreeSet<IpAddress> ipsDone = new TreeSet<IpAddress>();
-
-        IpAddress currentNet = networks.poll();
-        if (currentNet == null)
-            return ipsDone;
-
-        while (currentNet != null) {
-            // Check if it and the next of it are compatible
-            IpAddress nextNet = networks.poll();
-
-            if (BuildConfig.DEBUG) assertTrue(currentNet!=null);
-            if (nextNet == null || currentNet.getLastAddress().compareTo(nextNet.getFirstAddress()) == -1) {
-                // Everything good, no overlapping nothing to do
-                ipsDone.add(currentNet);
-
-                currentNet = nextNet;
-            } else {
-                // This network is smaller or equal to the next but has the same base address
-                if (currentNet.getFirstAddress().equals(nextNet.getFirstAddress()) && currentNet.networkMask >= nextNet.networkMask) {
-                    if (currentNet.included == nextNet.included) {
-                        // Included in the next next and same type
-                        // Simply forget our current network
-                        currentNet = nextNet;
-                    } else {
-                        // our currentNet is included in next and types differ. Need to split the next network
-                        IpAddress[] newNets = nextNet.split();
-
-
-                        // TODO: The contains method of the Priority is stupid linear search
-
-                        // First add the second half to keep the order in networks
-                        if (!networks.contains(newNets[1]))
-                            networks.add(newNets[1]);
-
-                        if (newNets[0].getLastAddress().equals(currentNet.getLastAddress())) {
-                            if (BuildConfig.DEBUG)
-                                assertTrue(newNets[0].networkMask == currentNet.networkMask);
-                            // Don't add the lower half that would conflict with currentNet
-                        } else {
-                            if (!networks.contains(newNets[0]))
-                                networks.add(newNets[0]);
-                        }
-                        // Keep currentNet as is
-                    }
-                } else {
-                    if (BuildConfig.DEBUG) {
-                        assertTrue(currentNet.networkMask < nextNet.networkMask);
-                        assertTrue(nextNet.getFirstAddress().compareTo(currentNet.getFirstAddress()) == 1);
-                        assertTrue(currentNet.getLastAddress().compareTo(nextNet.getLastAddress()) != -1);
-                    }
-                    // This network is bigger than the next and last ip of current >= next
-
-                    //noinspection StatementWithEmptyBody
-                    if (currentNet.included == nextNet.included) {
-                        // Next network is in included in our network with the same type,
-                        // simply ignore the next and move on
-                    } else {
-                        // We need to split our network
-                        IpAddress[] newNets = currentNet.split();
-
-
-                        if (newNets[1].networkMask == nextNet.networkMask) {
-                            if (BuildConfig.DEBUG) {
-                                assertTrue(newNets[1].getFirstAddress().equals(nextNet.getFirstAddress()));
-                                assertTrue(newNets[1].getLastAddress().equals(currentNet.getLastAddress()));
-                                // split second equal the next network, do not add it
-                            }
-                            networks.add(nextNet);
-                        } else {
-                            // Add the smaller network first
-                            networks.add(newNets[1]);
-                            networks.add(nextNet);
-                        }
-                        currentNet = newNets[0];
+    void addIPv4(long address, int mask, boolean include) {
+        mIpAddresses.add(new IpAddress(0, address, mask, include, true));
+    }
 
-                    }
-                }
+    void addIPv6(long high, long low, int mask, boolean included) {
+        mIpAddresses.add(new IpAddress(high, low, mask, included, false));
+    }
+
+    /**
+     * Resolves the overlapping networks into disjoint ones, a more specific network wins over
+     * the network containing it. A network is only split on the way to a nested network of the
+     * other type, so the list is the smallest one that keeps the networks as given.
+     *
+     * @return disjoint networks sorted by address
+     */
+    Vector<IpAddress> generateIPList() {
+        // Sorted by address with smaller networks first, the sweep wants the containing network
+        // first, so reverse each run of networks starting at the same address
+        IpAddress[] nets = mIpAddresses.toArray(new IpAddress[0]);
+        for (int i = 0; i < nets.length; ) {
+            int j = i + 1;
+            while (j < nets.length && nets[j].getFirstHigh() == nets[i].getFirstHigh()
+                    && nets[j].getFirstLow() == nets[i].getFirstLow())
+                j++;
+            for (int a = i, b = j - 1; a < b; a++, b--) {
+                IpAddress t = nets[a];
+                nets[a] = nets[b];
+                nets[b] = t;
+            }
+            i = j;
+        }
+        return new RouteSweep(nets).run();
+    }
+
+    /**
+     * Walks the networks in address order. Each network not inside an earlier one is emitted
+     * whole unless a network of the other type is nested in it, then it is halved towards the
+     * nested networks. Whether a range of networks holds the other type is answered from prefix
+     * counts, so the work is O(n log n) plus the splits, with no object for a network that stays
+     * whole.
+     */
+    private static final class RouteSweep {
+        private final IpAddress[] nets;
+        private final long[] firstHigh;
+        private final long[] firstLow;
+        // Number of included networks before index i
+        private final int[] includedBefore;
+        private final Vector<IpAddress> result = new Vector<IpAddress>();
+
+        RouteSweep(IpAddress[] nets) {
+            this.nets = nets;
+            firstHigh = new long[nets.length];
+            firstLow = new long[nets.length];
+            includedBefore = new int[nets.length + 1];
+            for (int i = 0; i < nets.length; i++) {
+                firstHigh[i] = nets[i].getFirstHigh();
+                firstLow[i] = nets[i].getFirstLow();
+                includedBefore[i + 1] = includedBefore[i] + (nets[i].included ? 1 : 0);
             }
+        }
 
+        Vector<IpAddress> run() {
+            int i = 0;
+            while (i < nets.length) {
+                IpAddress root = nets[i];
+                int end = lowerBound(root.getLastHigh(), root.getLastLow(), i + 1, nets.length, true);
+                emit(root, root.getFirstHigh(), root.getFirstLow(), root.networkMask, root.included, i + 1, end);
+                i = end;
+            }
+            return result;
         }
 
-        return ipsDone;
+        /**
+         * @param exact the given network equal to the block, if any
+         * @param from  first network strictly inside the block
+         * @param to    end of the networks strictly inside the block
+         */
+        private void emit(IpAddress exact, long high, long low, int mask, boolean included, int from, int to) {
+            int nested = includedBefore[to] - includedBefore[from];
+            if (nested == (included ? to - from : 0)) {
+                if (exact != null)
+                    result.add(exact);
+                else
+                    result.add(new IpAddress(high, low, mask, included, nets[0].isV4));
+                return;
+            }
+
+            int hostBits = (nets[0].isV4 ? 32 : 128) - mask - 1;
+            long midHigh = high | (hostMaskHigh(hostBits + 1) ^ hostMaskHigh(hostBits));
+            long midLow = low | (hostMaskLow(hostBits + 1) ^ hostMaskLow(hostBits));
+            int split = lowerBound(midHigh, midLow, from, to, false);
+            half(high, low, mask + 1, included, from, split);
+            half(midHigh, midLow, mask + 1, included, split, to);
+        }
+
+        private void half(long high, long low, int mask, boolean included, int from, int to) {
+            // Networks on the same address are ordered larger first, so an equal one comes first
+            if (from < to && firstHigh[from] == high && firstLow[from] == low && nets[from].networkMask == mask)
+                emit(nets[from], high, low, mask, nets[from].included, from + 1, to);
+            else
+                emit(null, high, low, mask, included, from, to);
+        }
+
+        /**
+         * First index in [from, to) whose network starts at or above the address, or above it
+         * if after is set
+         */
+        private int lowerBound(long high, long low, int from, int to, boolean after) {
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                int c = compareUnsigned(firstHigh[mid], firstLow[mid], high, low);
+                if (c < 0 || (after && c == 0))
+                    from = mid + 1;
+                else
+                    to = mid;
+            }
+            return from;
+        }
     }
 
     Collection<IpAddress> getPositiveIPList() {
-        TreeSet<IpAddress> ipsSorted = generateIPList();
+        Vector<IpAddress> ipsSorted = generateIPList();
 
         Vector<IpAddress> ips = new Vector<IpAddress>();
         for (IpAddress ia : ipsSorted) {
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Decides when the status notification is posted again. Every post is a call into
+ * system_server, while the text changes with each state and each byte count. Moving to another
+ * channel is posted at once, a new text on the same channel at most once per
+ * {@link #MIN_INTERVAL_MS} and only while the screen is on, an unchanged text not at all. The
+ * last text offered always wins, so the notification never stays behind a dropped update.
+ * Not thread safe, the caller holds its own lock.
+ */
+final class NotificationThrottle {
+
+    static final long MIN_INTERVAL_MS = 1000;
+    /**
+     * Nothing to post now, either unchanged or waiting for the screen
+     */
+    static final long WAIT = -1;
+    static final long NOW = 0;
+
+    private String shownChannel;
+    private String shownText;
+    private long shownAt;
+
+    private String pendingChannel;
+    private String pendingText;
+    private boolean pending;
+
+    /**
+     * @param urgent posted at once like a channel change, e.g. when the user has to act
+     * @return {@link #NOW} if the caller posts the offered content, {@link #WAIT}, or the delay
+     * after which {@link #flush} should be called
+     */
+    long offer(long now, String channel, String text, boolean urgent, boolean screenOn) {
+        pendingChannel = channel;
+        pendingText = text;
+        pending = true;
+        if (shownChannel == null || !shownChannel.equals(channel) || urgent)
+            return show(now);
+        return flush(now, screenOn);
+    }
+
+    /**
+     * Called when the delay has passed or the screen turned on
+     *
+     * @return same as {@link #offer}, {@link #NOW} means the last offered content is posted
+     */
+    long flush(long now, boolean screenOn) {
+        if (!pending)
+            return WAIT;
+        if (shownChannel.equals(pendingChannel) && equals(shownText, pendingText)) {
+            pending = false;
+            return WAIT;
+        }
+        if (!screenOn)
+            return WAIT;
+        long next = shownAt + MIN_INTERVAL_MS;
+        if (now >= next || now < shownAt)
+            return show(now);
+        return next - now;
+    }
+
+    boolean hasPending() {
+        return pending;
+    }
+
+    /**
+     * Forgets what is shown, after the notification was removed
+     */
+    void reset() {
+        shownChannel = null;
+        shownText = null;
+        pending = false;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private long show(long now) {
+        shownChannel = pendingChannel;
+        shownText = pendingText;
+        shownAt = now;
+        pending = false;
+        return NOW;
+    }
+}
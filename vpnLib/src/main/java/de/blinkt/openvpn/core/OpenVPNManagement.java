@@ -16,6 +16,9 @@ public interface OpenVPNManagement {
         screenOff,
     }
 
+    /**
+     * Byte count interval in seconds while the statistics are on screen
+     */
     int mBytecountInterval = 2;
 
     void reconnect();
@@ -37,6 +40,12 @@ public interface OpenVPNManagement {
 
     void setPauseCallback(PausedStateCallback callback);
 
+    /**
+     * Changes how often OpenVPN reports the byte count
+     * @param seconds  interval in seconds, 0 stops the reports
+     */
+    void setBytecountInterval(int seconds);
+
     /**
      * Send the response to a challenge response
      * @param response  Base64 encoded response
@@ -32,7 +32,9 @@ import android.os.Handler.Callback;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -50,8 +52,8 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
-import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Vector;
@@ -69,10 +71,7 @@ import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_CONNECTED;
 import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_WAITING_FOR_USER_INPUT;
 import static de.blinkt.openvpn.core.NetworkSpace.IpAddress;
 
-public class OpenVPNService extends VpnService implements StateListener, Callback, ByteCountListener, IOpenVPNServiceInternal {
-
-    private String byteIn, byteOut;
-    private String duration;
+public class OpenVPNService extends VpnService implements StateListener, Callback, ByteCountListener, IOpenVPNServiceInternal, ManagementDispatcher.ServiceCallbacks {
 
     public static final String START_SERVICE = "de.blinkt.openvpn.START_SERVICE";
     public static final String START_SERVICE_STICKY = "de.blinkt.openvpn.START_SERVICE_STICKY";
@@ -100,6 +99,29 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private final NetworkSpace mRoutesv6 = new NetworkSpace();
     private final Object mProcessLock = new Object();
     private String lastChannel;
+    private final Object mNotificationLock = new Object();
+    private final NotificationThrottle mNotificationThrottle = new NotificationThrottle();
+    // Reused per channel, built again when the title or the pause action changes
+    private final HashMap<String, Notification.Builder> mNotificationBuilders = new HashMap<>();
+    private String mNotificationBuildersKey;
+    private int mForegroundNotificationId;
+    private boolean mNotificationFlushPosted;
+    // Last content offered, posted once the throttle lets it through
+    private String mNotificationMsg;
+    private String mNotificationTicker;
+    private String mNotificationChannel;
+    private long mNotificationWhen;
+    private ConnectionStatus mNotificationStatus;
+    private Intent mNotificationIntent;
+    private final Runnable mFlushNotification = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mNotificationLock) {
+                mNotificationFlushPosted = false;
+                dispatchNotification(mNotificationThrottle.flush(System.currentTimeMillis(), isScreenOn()));
+            }
+        }
+    };
     private Thread mProcessThread = null;
     private VpnProfile mProfile;
     private String mDomain = null;
@@ -268,11 +290,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mProcessThread = null;
         }
         VpnStatus.removeByteCountListener(this);
+        TotalTraffic.saveTotal(this);
         unregisterDeviceStateReceiver();
         ProfileManager.setConntectedVpnProfileDisconnected(this);
         mOpenVPNThread = null;
         if (!mStarting) {
             stopForeground(!mNotificationAlwaysVisible);
+            resetNotification();
 
             if (!mNotificationAlwaysVisible) {
                 stopSelf();
@@ -292,51 +316,95 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         return channelId;
     }
 
+    /**
+     * Offers new content for the status notification. It is posted at once on a channel change,
+     * otherwise coalesced by {@link NotificationThrottle}, so byte count ticks and bursts of
+     * state changes do not each cost a call into system_server.
+     */
     private void showNotification(final String msg, String tickerText, @NonNull String channel,
                                   long when, ConnectionStatus status, Intent intent) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            channel = createNotificationChannel(channel);
+        synchronized (mNotificationLock) {
+            mNotificationMsg = msg;
+            mNotificationTicker = tickerText;
+            mNotificationChannel = channel;
+            mNotificationWhen = when;
+            mNotificationStatus = status;
+            mNotificationIntent = intent;
+            dispatchNotification(mNotificationThrottle.offer(System.currentTimeMillis(), channel, msg,
+                    status == LEVEL_WAITING_FOR_USER_INPUT, isScreenOn()));
         }
+    }
 
-        NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        Notification.Builder nBuilder = new Notification.Builder(this);
+    private void dispatchNotification(long next) {
+        if (next == NotificationThrottle.NOW) {
+            renderNotification();
+        } else if (next > 0 && !mNotificationFlushPosted && guiHandler != null) {
+            mNotificationFlushPosted = true;
+            guiHandler.postDelayed(mFlushNotification, next);
+        }
+    }
 
-        int priority;
+    private void resetNotification() {
+        synchronized (mNotificationLock) {
+            mNotificationThrottle.reset();
+            mForegroundNotificationId = 0;
+            if (guiHandler != null)
+                guiHandler.removeCallbacks(mFlushNotification);
+            mNotificationFlushPosted = false;
+        }
+    }
+
+    private boolean isScreenOn() {
+        DeviceStateReceiver receiver = mDeviceStateReceiver;
+        return receiver == null || receiver.isScreenOn();
+    }
+
+    private int getNotificationPriority(String channel) {
         if (channel.equals(NOTIFICATION_CHANNEL_BG_ID))
-            priority = PRIORITY_MIN;
+            return PRIORITY_MIN;
         else if (channel.equals(NOTIFICATION_CHANNEL_USERREQ_ID))
-            priority = PRIORITY_MAX;
+            return PRIORITY_MAX;
         else
-            priority = PRIORITY_DEFAULT;
+            return PRIORITY_DEFAULT;
+    }
+
+    /**
+     * Everything of the notification that does not change with the status text
+     */
+    private Notification.Builder getNotificationBuilder(String channel) {
+        boolean paused = mDeviceStateReceiver != null && mDeviceStateReceiver.isUserPaused();
+        String key = (mProfile != null ? mProfile.getUUIDString() + mProfile.mName : "") + paused;
+        if (!key.equals(mNotificationBuildersKey)) {
+            mNotificationBuilders.clear();
+            mNotificationBuildersKey = key;
+        }
+        Notification.Builder nBuilder = mNotificationBuilders.get(channel);
+        if (nBuilder != null)
+            return nBuilder;
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            createNotificationChannel(channel);
+        }
+
+        nBuilder = new Notification.Builder(this);
         if (mProfile != null)
             nBuilder.setContentTitle(getString(R.string.notifcation_title, mProfile.mName));
         else
             nBuilder.setContentTitle(getString(R.string.notifcation_title_notconnect));
 
-        nBuilder.setContentText(msg);
         nBuilder.setOnlyAlertOnce(true);
         nBuilder.setOngoing(true);
         nBuilder.setSmallIcon(R.drawable.ic_notification);
-        if (status == LEVEL_WAITING_FOR_USER_INPUT) {
-            PendingIntent pIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
-            nBuilder.setContentIntent(pIntent);
+        PendingIntent contentPendingIntent = getContentIntent();
+        if (contentPendingIntent != null) {
+            nBuilder.setContentIntent(contentPendingIntent);
         } else {
-            PendingIntent contentPendingIntent = getContentIntent();
-            if (contentPendingIntent != null) {
-                nBuilder.setContentIntent(contentPendingIntent);
-            } else {
-                nBuilder.setContentIntent(getGraphPendingIntent());
-            }
+            nBuilder.setContentIntent(getGraphPendingIntent());
         }
 
-        if (when != 0)
-            nBuilder.setWhen(when);
-
-
         // Try to set the priority available since API 16 (Jellybean)
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-            jbNotificationExtras(priority, nBuilder);
+            jbNotificationExtras(getNotificationPriority(channel), nBuilder);
             addVpnActionsToNotification(nBuilder);
         }
 
@@ -351,21 +419,52 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
                 nBuilder.setShortcutId(mProfile.getUUIDString());
 
         }
+        mNotificationBuilders.put(channel, nBuilder);
+        return nBuilder;
+    }
 
-        if (tickerText != null && !tickerText.equals(""))
-            nBuilder.setTicker(tickerText);
+    /**
+     * Posts the last offered content, called with mNotificationLock held
+     */
+    private void renderNotification() {
+        final String msg = mNotificationMsg;
+        String channel = mNotificationChannel;
+        int priority = getNotificationPriority(channel);
+
+        NotificationManager mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        Notification.Builder nBuilder = getNotificationBuilder(channel);
+
+        nBuilder.setContentText(msg);
+        boolean userInput = mNotificationStatus == LEVEL_WAITING_FOR_USER_INPUT && mNotificationIntent != null;
+        if (userInput) {
+            PendingIntent pIntent = PendingIntent.getActivity(this, 0, mNotificationIntent, PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+            nBuilder.setContentIntent(pIntent);
+            // The next content gets the default intent from a fresh builder
+            mNotificationBuilders.remove(channel);
+        }
+
+        nBuilder.setWhen(mNotificationWhen != 0 ? mNotificationWhen : System.currentTimeMillis());
+
+        if (mNotificationTicker != null && !mNotificationTicker.equals(""))
+            nBuilder.setTicker(mNotificationTicker);
+        else
+            nBuilder.setTicker(null);
         try {
             Notification notification = nBuilder.build();
 
             int notificationId = channel.hashCode();
 
-            mNotificationManager.notify(notificationId, notification);
-
-            startForeground(notificationId, notification);
-
-            if (lastChannel != null && !channel.equals(lastChannel)) {
-                // Cancel old notification
-                mNotificationManager.cancel(lastChannel.hashCode());
+            if (notificationId != mForegroundNotificationId) {
+                // Also posts the notification
+                startForeground(notificationId, notification);
+                mForegroundNotificationId = notificationId;
+                if (lastChannel != null && !channel.equals(lastChannel)) {
+                    // Cancel old notification
+                    mNotificationManager.cancel(lastChannel.hashCode());
+                }
+                lastChannel = channel;
+            } else {
+                mNotificationManager.notify(notificationId, notification);
             }
         } catch (Throwable th) {
             Log.e(getClass().getCanonicalName(), "Error when show notification", th);
@@ -493,19 +592,32 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_ON);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
         mDeviceStateReceiver = new DeviceStateReceiver(magnagement);
 
         // Fetch initial network state
         mDeviceStateReceiver.networkStateChange(this);
+        mDeviceStateReceiver.readDeviceState(this);
 
         registerReceiver(mDeviceStateReceiver, filter);
         VpnStatus.addByteCountListener(mDeviceStateReceiver);
+        ByteCountStats.setAttachObserver(mDeviceStateReceiver);
+        mDeviceStateReceiver.setScreenOnCallback(new Runnable() {
+            @Override
+            public void run() {
+                // Show what was held back while the screen was off
+                guiHandler.removeCallbacks(mFlushNotification);
+                mFlushNotification.run();
+            }
+        });
 
         /*if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
             addLollipopCMListener(); */
     }
 
     synchronized void unregisterDeviceStateReceiver() {
+        ByteCountStats.setAttachObserver(null);
         if (mDeviceStateReceiver != null)
             try {
                 VpnStatus.removeByteCountListener(mDeviceStateReceiver);
@@ -626,6 +738,8 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
 
         ProfileManager.setConnectedVpnProfile(this, mProfile);
         VpnStatus.setConnectedVPNProfile(mProfile.getUUIDString());
+        TotalTraffic.setServer(mProfile.mName,
+                mProfile.mConnections.length > 0 ? mProfile.mConnections[0].mServerName : null);
 
         return START_STICKY;
     }
@@ -776,11 +890,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         }
 
         if (mDeviceStateReceiver != null) {
+            ByteCountStats.setAttachObserver(null);
             this.unregisterReceiver(mDeviceStateReceiver);
         }
         // Just in case unregister for state
         VpnStatus.removeStateListener(this);
         VpnStatus.flushLog();
+        TotalTraffic.saveTotal(this);
     }
 
     private String getTunConfigString() {
@@ -862,8 +978,27 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             builder.setMtu(mMtu);
         }
 
+        RouteCompiler.Compiled bypass = loadBypassLists();
+        // Android 13 excludes networks itself, before the routes have to go around them
+        boolean bypassByBuilder = bypass != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU;
+
         Collection<IpAddress> positiveIPv4Routes = mRoutes.getPositiveIPList();
         Collection<IpAddress> positiveIPv6Routes = mRoutesv6.getPositiveIPList();
+        if (bypass != null)
+            bypass = limitBypassLists(bypass, positiveIPv4Routes.size() + positiveIPv6Routes.size(), bypassByBuilder);
+        if (bypass != null && !bypassByBuilder) {
+            Collection<IpAddress> bypassIPv4Routes = bypass.overlay(mRoutes, true).getPositiveIPList();
+            Collection<IpAddress> bypassIPv6Routes = bypass.overlay(mRoutesv6, false).getPositiveIPList();
+            if (bypassIPv4Routes.size() + bypassIPv6Routes.size() > RouteCompiler.MAX_ROUTES) {
+                // The server routes split the ones around the bypass networks further
+                VpnStatus.logError(String.format(Locale.US, "Bypass lists need %d routes, more than %d, ignoring them",
+                        bypassIPv4Routes.size() + bypassIPv6Routes.size(), RouteCompiler.MAX_ROUTES));
+                bypass = null;
+            } else {
+                positiveIPv4Routes = bypassIPv4Routes;
+                positiveIPv6Routes = bypassIPv6Routes;
+            }
+        }
 
         if ("samsung".equals(Build.BRAND) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mDnslist.size() >= 1) {
             // Check if the first DNS Server is in the VPN range
@@ -909,6 +1044,12 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             }
         }
 
+        if (bypassByBuilder && bypass != null) {
+            int rejected = bypass.excludeFrom(builder);
+            if (rejected > 0)
+                VpnStatus.logWarning(String.format(Locale.US, "%d bypass networks were rejected", rejected));
+        }
+
 
         if (mDomain != null)
             builder.addSearchDomain(mDomain);
@@ -935,7 +1076,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             ipv6info = mLocalIPv6;
         }
 
-        if ((!mRoutes.getNetworks(false).isEmpty() || !mRoutesv6.getNetworks(false).isEmpty()) && isLockdownEnabledCompat()) {
+        if ((!mRoutes.getNetworks(false).isEmpty() || !mRoutesv6.getNetworks(false).isEmpty() || bypass != null) && isLockdownEnabledCompat()) {
             VpnStatus.logInfo("VPN lockdown enabled (do not allow apps to bypass VPN) enabled. Route exclusion will not allow apps to bypass VPN (e.g. bypass VPN for local networks)");
         }
         if (mDomain != null) builder.addSearchDomain(mDomain);
@@ -943,7 +1084,11 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         VpnStatus.logInfo(R.string.dns_server_info, TextUtils.join(", ", mDnslist), mDomain);
         VpnStatus.logInfo(R.string.routes_info_incl, TextUtils.join(", ", mRoutes.getNetworks(true)), TextUtils.join(", ", mRoutesv6.getNetworks(true)));
         VpnStatus.logInfo(R.string.routes_info_excl, TextUtils.join(", ", mRoutes.getNetworks(false)), TextUtils.join(", ", mRoutesv6.getNetworks(false)));
-        VpnStatus.logDebug(R.string.routes_debug, TextUtils.join(", ", positiveIPv4Routes), TextUtils.join(", ", positiveIPv6Routes));
+        if (bypass == null)
+            VpnStatus.logDebug(R.string.routes_debug, TextUtils.join(", ", positiveIPv4Routes), TextUtils.join(", ", positiveIPv6Routes));
+        else
+            // The routes around the bypass networks are far too many to log one by one
+            VpnStatus.logDebug(String.format(Locale.US, "Routes: %d IPv4 and %d IPv6 networks", positiveIPv4Routes.size(), positiveIPv6Routes.size()));
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             setAllowedVpnPackages(builder);
         }
@@ -1108,6 +1253,49 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         }
     }
 
+    /**
+     * Compiles the bypass lists of the profile, null if it has none or they cannot be read
+     */
+    private RouteCompiler.Compiled loadBypassLists() {
+        if (mProfile == null || TextUtils.isEmpty(mProfile.mBypassLists))
+            return null;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // Excluded routes are not reliable before 4.4, see NetworkSpace.getPositiveIPList
+            VpnStatus.logWarning("Bypass lists require Android 4.4 or later, ignoring them");
+            return null;
+        }
+        try {
+            long start = SystemClock.elapsedRealtime();
+            RouteCompiler.Compiled bypass = RouteCompiler.load(this, mProfile.mBypassLists);
+            VpnStatus.logInfo(String.format(Locale.US, "Bypass lists %s: %d IPv4 and %d IPv6 networks (%d ms)",
+                    mProfile.mBypassLists.trim(), bypass.getIPv4Count(), bypass.getIPv6Count(),
+                    SystemClock.elapsedRealtime() - start));
+            if (bypass.invalidLines > 0)
+                VpnStatus.logWarning(String.format(Locale.US, "Bypass lists: ignored %d invalid lines", bypass.invalidLines));
+            return bypass;
+        } catch (IOException e) {
+            VpnStatus.logException("Loading bypass lists", e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the smallest bypass networks until establishing the VPN stays within
+     * {@link RouteCompiler#MAX_ROUTES}, null if the routes of the server leave no room
+     */
+    private RouteCompiler.Compiled limitBypassLists(RouteCompiler.Compiled bypass, int serverRoutes, boolean excluded) {
+        RouteCompiler.Compiled limited = bypass.limit(RouteCompiler.MAX_ROUTES - serverRoutes, excluded);
+        int networks = bypass.getIPv4Count() + bypass.getIPv6Count();
+        if (limited == null) {
+            VpnStatus.logError(String.format(Locale.US, "Bypass lists: %d server routes leave no room below %d routes, ignoring them",
+                    serverRoutes, RouteCompiler.MAX_ROUTES));
+        } else if (limited != bypass) {
+            VpnStatus.logWarning(String.format(Locale.US, "Bypass lists: only the %d largest of %d networks fit in %d routes, the others stay in the tunnel",
+                    limited.getIPv4Count() + limited.getIPv6Count(), networks, RouteCompiler.MAX_ROUTES));
+        }
+        return limited;
+    }
+
     /**
      * Route that is always included, used by the v3 core
      */
@@ -1244,6 +1432,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             if (level == LEVEL_CONNECTED) {
                 mDisplayBytecount = true;
                 mConnecttime = System.currentTimeMillis();
+                mLastReceive = mConnecttime;
                 if (!runningOnAndroidTV())
                     channel = NOTIFICATION_CHANNEL_BG_ID;
             } else {
@@ -1274,47 +1463,38 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         sendMessage(state);
     }
 
-    long c = Calendar.getInstance().getTimeInMillis();
-    long time;
-    int lastPacketReceive = 0;
-    String seconds = "0", minutes, hours;
+    private long mLastReceive;
 
     @Override
-    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+    public void updateByteCount(long in, long out, long diffIn, long diffOut, long intervalMs) {
         TotalTraffic.calcTraffic(this, in, out, diffIn, diffOut);
+
+        // The interval changes with what is on screen and merged counts span several, take the
+        // rate over the time the differences were counted in
+        long now = System.currentTimeMillis();
+        long elapsedMs = Math.max(1000, intervalMs);
+        long inPerSecond = diffIn * 1000 / elapsedMs;
+        long outPerSecond = diffOut * 1000 / elapsedMs;
+
         if (mDisplayBytecount) {
             String netstat = String.format(getString(R.string.statusline_bytecount),
                     humanReadableByteCount(in, false, getResources()),
-                    humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, true, getResources()),
+                    humanReadableByteCount(inPerSecond, true, getResources()),
                     humanReadableByteCount(out, false, getResources()),
-                    humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, true, getResources()));
+                    humanReadableByteCount(outPerSecond, true, getResources()));
 
 
             showNotification(netstat, null, NOTIFICATION_CHANNEL_BG_ID, mConnecttime, LEVEL_CONNECTED, null);
-            byteIn = String.format("↓%2$s", getString(R.string.statusline_bytecount),
-                    humanReadableByteCount(in,false, getResources())) + " - " + humanReadableByteCount(diffIn / OpenVPNManagement.mBytecountInterval, false, getResources()) + "/s";
-            byteOut = String.format("↑%2$s", getString(R.string.statusline_bytecount),
-                    humanReadableByteCount(out, false,getResources())) + " - " + humanReadableByteCount(diffOut / OpenVPNManagement.mBytecountInterval, false, getResources()) + "/s";
-            time = Calendar.getInstance().getTimeInMillis() - c;
-            lastPacketReceive = Integer.parseInt(convertTwoDigit((int) (time / 1000) % 60)) - Integer.parseInt(seconds);
-            seconds = convertTwoDigit((int) (time / 1000) % 60);
-            minutes = convertTwoDigit((int) ((time / (1000 * 60)) % 60));
-            hours = convertTwoDigit((int) ((time / (1000 * 60 * 60)) % 24));
-            duration = hours + ":" + minutes + ":" + seconds;
-            lastPacketReceive = checkPacketReceive(lastPacketReceive);
-            sendMessage(duration, String.valueOf(lastPacketReceive), byteIn, byteOut);
-        }
 
-    }
+            if (diffIn > 0)
+                mLastReceive = now;
+            // Nothing is computed for the UI while it is not showing
+            if (ByteCountStats.hasListeners()) {
+                ByteCountStats.publish(in, out, inPerSecond, outPerSecond,
+                        now - mConnecttime, now - mLastReceive);
+            }
+        }
 
-    public int checkPacketReceive(int value) {
-        value -= 2;
-        if (value < 0) return 0;
-        else return value;
-    }
-    public String convertTwoDigit(int value) {
-        if (value < 10) return "0" + value;
-        else return value + "";
     }
 
     @Override
@@ -1418,15 +1598,6 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         this.state = state;
         LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
     }
-    //sending message to main activity
-    private void sendMessage(String duration, String lastPacketReceive, String byteIn, String byteOut) {
-        Intent intent = new Intent("connectionState");
-        intent.putExtra("duration", duration);
-        intent.putExtra("lastPacketReceive", lastPacketReceive);
-        intent.putExtra("byteIn", byteIn);
-        intent.putExtra("byteOut", byteOut);
-        LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
-    }
     public class LocalBinder extends Binder {
         public OpenVPNService getService() {
             // Return this instance of LocalService so clients can call public methods
@@ -18,9 +18,13 @@ import android.os.RemoteException;
 import androidx.annotation.Nullable;
 import android.util.Pair;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by arne on 08.11.16.
@@ -40,6 +44,9 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
     @Override
     public void onCreate() {
         super.onCreate();
+        synchronized (mLogBroadcastLock) {
+            mLogBroadcastCursor = VpnStatus.getLogSequence();
+        }
         VpnStatus.addLogListener(this);
         VpnStatus.addByteCountListener(this);
         VpnStatus.addStateListener(this);
@@ -62,42 +69,30 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
         @Override
         public ParcelFileDescriptor registerStatusCallback(IStatusCallbacks cb) throws RemoteException {
-            final LogItem[] logbuffer = VpnStatus.getlogbuffer();
+            return registerStatusCallbackFrom(cb, 0, 0);
+        }
+
+        @Override
+        public ParcelFileDescriptor registerStatusCallbackFrom(IStatusCallbacks cb, long epoch, long sequence) throws RemoteException {
             if (mLastUpdateMessage != null)
                 sendUpdate(cb, mLastUpdateMessage);
 
-            mCallbacks.register(cb);
+            // A cursor of an earlier service process means nothing here
+            final long from = epoch == VpnStatus.LOG_EPOCH ? sequence : 0;
+            final long end;
+            synchronized (mLogBroadcastLock) {
+                // Everything from end on reaches the callback through the handler
+                end = mLogBroadcastCursor;
+                mCallbacks.register(cb);
+            }
             try {
                 final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
-                new Thread("pushLogs") {
+                mReplayExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        DataOutputStream fd = new DataOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
-                        try {
-                            synchronized (VpnStatus.readFileLock) {
-                                if (!VpnStatus.readFileLog) {
-                                    VpnStatus.readFileLock.wait();
-                                }
-                            }
-                        } catch (InterruptedException e) {
-                            VpnStatus.logException(e);
-                        }
-                        try {
-
-                            for (LogItem logItem : logbuffer) {
-                                byte[] bytes = logItem.getMarschaledBytes();
-                                fd.writeShort(bytes.length);
-                                fd.write(bytes);
-                            }
-                            // Mark end
-                            fd.writeShort(0x7fff);
-                            fd.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
+                        replayLog(pipe[1], from, end);
                     }
-                }.start();
+                });
                 return pipe[0];
             } catch (IOException e) {
                 e.printStackTrace();
@@ -130,14 +125,30 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
     };
 
+    private static void replayLog(ParcelFileDescriptor pfd, long from, long end) {
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+        try {
+            LogReplay.write(out, VpnStatus::readLog, VpnStatus.LOG_EPOCH, from, end);
+        } catch (IOException e) {
+            // Client went away
+            e.printStackTrace();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     @Override
     public void newLog(LogItem logItem) {
-        Message msg = mHandler.obtainMessage(SEND_NEW_LOGITEM, logItem);
-        msg.sendToTarget();
+        // The handler sends everything logged since its last run
+        if (!mHandler.hasMessages(SEND_NEW_LOGITEM))
+            mHandler.sendEmptyMessage(SEND_NEW_LOGITEM);
     }
 
     @Override
-    public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+    public void updateByteCount(long in, long out, long diffIn, long diffOut, long intervalMs) {
         Message msg = mHandler.obtainMessage(SEND_NEW_BYTECOUNT, Pair.create(in, out));
         msg.sendToTarget();
     }
@@ -177,6 +188,26 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
 
     private static final OpenVPNStatusHandler mHandler = new OpenVPNStatusHandler();
 
+    private static final Object mLogBroadcastLock = new Object();
+    // Log items below this sequence have been sent to the registered callbacks
+    private static long mLogBroadcastCursor;
+
+    private static final int REPLAY_THREADS = 2;
+    // Shared by all clients, idle threads exit
+    private static final ThreadPoolExecutor mReplayExecutor = new ThreadPoolExecutor(REPLAY_THREADS,
+            REPLAY_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pushLogs");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        mReplayExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private static final int SEND_NEW_LOGITEM = 100;
     private static final int SEND_NEW_STATE = 101;
     private static final int SEND_NEW_BYTECOUNT = 102;
@@ -196,6 +227,10 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             if (service == null || service.get() == null)
                 return;
             callbacks = service.get().mCallbacks;
+            if (msg.what == SEND_NEW_LOGITEM) {
+                sendNewLogItems(callbacks);
+                return;
+            }
             // Broadcast to all clients the new value.
             final int N = callbacks.beginBroadcast();
             for (int i = 0; i < N; i++) {
@@ -204,9 +239,6 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
                     IStatusCallbacks broadcastItem = callbacks.getBroadcastItem(i);
 
                     switch (msg.what) {
-                        case SEND_NEW_LOGITEM:
-                            broadcastItem.newLogItem((LogItem) msg.obj);
-                            break;
                         case SEND_NEW_BYTECOUNT:
                             Pair<Long, Long> inout = (Pair<Long, Long>) msg.obj;
                             broadcastItem.updateByteCount(inout.first, inout.second);
@@ -226,6 +258,22 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
             }
             callbacks.finishBroadcast();
         }
+
+        private void sendNewLogItems(final RemoteCallbackList<IStatusCallbacks> callbacks) {
+            synchronized (mLogBroadcastLock) {
+                final int N = callbacks.beginBroadcast();
+                mLogBroadcastCursor = VpnStatus.readLog(mLogBroadcastCursor, (sequence, item) -> {
+                    for (int i = 0; i < N; i++) {
+                        try {
+                            callbacks.getBroadcastItem(i).newLogItem(sequence, item);
+                        } catch (RemoteException e) {
+                            // The RemoteCallbackList removes the dead object
+                        }
+                    }
+                });
+                callbacks.finishBroadcast();
+            }
+        }
     }
 
     private static void sendUpdate(IStatusCallbacks broadcastItem,
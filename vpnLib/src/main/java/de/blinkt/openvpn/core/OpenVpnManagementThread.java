@@ -41,6 +41,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
     private LocalServerSocket mServerSocket;
     private boolean mWaitingForRelease = false;
+    private volatile int mCurrentBytecountInterval = mBytecountInterval;
     private long mLastHoldRelease = 0;
     private LocalSocket mServerSocketLocal;
 
@@ -91,12 +92,13 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     };
     private transient Connection mCurrentProxyConnection;
+    private final ManagementDispatcher mDispatcher;
 
     public OpenVpnManagementThread(VpnProfile profile, OpenVPNService openVpnService) {
         mProfile = profile;
         mOpenVPNService = openVpnService;
         mResumeHandler = new Handler(openVpnService.getMainLooper());
-
+        mDispatcher = new ManagementDispatcher(new DispatchTarget(), openVpnService);
     }
 
     private static boolean stopOpenVPN() {
@@ -170,10 +172,9 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
+        ManagementLineFramer framer = new ManagementLineFramer();
         //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
 
-        String pendingInput = "";
         synchronized (active) {
             active.add(this);
         }
@@ -197,7 +198,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
             while (true) {
 
-                int numbytesread = instream.read(buffer);
+                int numbytesread = framer.read(instream);
                 if (numbytesread == -1)
                     return;
 
@@ -211,12 +212,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                     Collections.addAll(mFDList, fds);
                 }
 
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-
-                pendingInput += input;
-
-                pendingInput = processInput(pendingInput);
-
+                framer.processLines(mDispatcher::dispatch);
 
             }
         } catch (IOException e) {
@@ -266,119 +262,21 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private String processInput(String pendingInput) {
-
-
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else
-                pendingInput = tokens[1];
-        }
-        return pendingInput;
-    }
-
-    private void processCommand(String command) {
-        //Log.i(TAG, "Line from managment" + command);
-
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
-
-            switch (cmd) {
-                case "INFO":
-                /* Ignore greeting from management */
-                    return;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown)
-                        processState(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "PK_SIGN":
-                    processSignCommand(argument);
-                    break;
-                case "INFOMSG":
-                    processInfoMessage(argument);
-                    break;
-                default:
-                    VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
-                    Log.i(TAG, "Got unrecognized command" + command);
-                    break;
-            }
-        } else if (command.startsWith("SUCCESS:")) {
-            /* Ignore this kind of message too */
-            return;
-        } else if (command.startsWith("PROTECTFD: ")) {
-            FileDescriptor fdtoprotect = mFDList.pollFirst();
-            if (fdtoprotect != null)
-                protectFileDescriptor(fdtoprotect);
-        } else {
-            Log.i(TAG, "Got unrecognized line from managment" + command);
-            VpnStatus.logWarning("MGMT: Got unrecognized line from management:" + command);
-        }
-    }
-
-    private void processInfoMessage(String info)
-    {
-        if (info.startsWith("OPEN_URL:") || info.startsWith("CR_TEXT:"))
-        {
-            mOpenVPNService.trigger_sso(info);
-        }
-        else
-        {
-            VpnStatus.logDebug("Info message from server:" + info);
-        }
-    }
-
-    private void processLogMessage(String argument) {
-        String[] args = argument.split(",", 4);
-        // 0 unix time stamp
-        // 1 log level N,I,E etc.
-                /*
-                  (b) zero or more message flags in a single string:
-          I -- informational
-          F -- fatal error
-          N -- non-fatal error
-          W -- warning
-          D -- debug, and
-                 */
-        // 2 log message
-
-        Log.d("OpenVPN", argument);
+    private void processLogMessage(char flag, int ovpnlevel, String msg) {
+        Log.d("OpenVPN", msg);
 
         VpnStatus.LogLevel level;
-        switch (args[1]) {
-            case "I":
+        switch (flag) {
+            case 'I':
                 level = VpnStatus.LogLevel.INFO;
                 break;
-            case "W":
+            case 'W':
                 level = VpnStatus.LogLevel.WARNING;
                 break;
-            case "D":
+            case 'D':
                 level = VpnStatus.LogLevel.VERBOSE;
                 break;
-            case "F":
+            case 'F':
                 level = VpnStatus.LogLevel.ERROR;
                 break;
             default:
@@ -386,12 +284,6 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                 break;
         }
 
-        int ovpnlevel = Integer.parseInt(args[2]) & 0x0F;
-        String msg = args[3];
-
-        if (msg.startsWith("MANAGEMENT: CMD"))
-            ovpnlevel = Math.max(4, ovpnlevel);
-
         VpnStatus.logMessageOpenVPN(level, ovpnlevel, msg);
     }
 
@@ -402,9 +294,8 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             return mPauseCallback.shouldBeRunning();
     }
 
-    private void handleHold(String argument) {
+    private void handleHold(int waittime) {
         mWaitingForRelease = true;
-        int waittime = Integer.parseInt(argument.split(":")[1]);
         if (shouldBeRunning()) {
             if (waittime > 1)
                 VpnStatus.updateStateString("CONNECTRETRY", String.valueOf(waittime),
@@ -432,22 +323,29 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         mWaitingForRelease = false;
         mLastHoldRelease = System.currentTimeMillis();
         managmentCommand("hold release\n");
-        managmentCommand("bytecount " + mBytecountInterval + "\n");
+        managmentCommand("bytecount " + mCurrentBytecountInterval + "\n");
         managmentCommand("state on\n");
         //managmentCommand("log on all\n");
     }
 
+    @Override
+    public void setBytecountInterval(int seconds) {
+        if (seconds == mCurrentBytecountInterval)
+            return;
+        mCurrentBytecountInterval = seconds;
+        // Otherwise sent with the hold release
+        if (!mWaitingForRelease)
+            managmentCommand("bytecount " + seconds + "\n");
+    }
+
     public void releaseHold() {
         if (mWaitingForRelease)
             releaseHoldCmd();
     }
 
-    private void processProxyCMD(String argument) {
-        String[] args = argument.split(",", 3);
-
+    private void processProxyCMD(int connectionEntryNumber, String proto) {
         Connection.ProxyType proxyType = Connection.ProxyType.NONE;
 
-        int connectionEntryNumber = Integer.parseInt(args[0]) - 1;
         String proxyport = null;
         String proxyname = null;
         boolean proxyUseAuth = false;
@@ -480,8 +378,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
 
 
-        if (args.length >= 2 && proxyType == Connection.ProxyType.HTTP) {
-            String proto = args[1];
+        if (proto != null && proxyType == Connection.ProxyType.HTTP) {
             if (proto.equals("UDP")) {
                 proxyname = null;
                 VpnStatus.logInfo("Not using an HTTP proxy since the connection uses UDP");
@@ -521,106 +418,6 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
-    private void processState(String argument) {
-        String[] args = argument.split(",", 3);
-        String currentstate = args[1];
-
-        if (args[2].equals(",,"))
-            VpnStatus.updateStateString(currentstate, "");
-        else
-            VpnStatus.updateStateString(currentstate, args[2]);
-    }
-
-    private void processByteCount(String argument) {
-        //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
-        int comma = argument.indexOf(',');
-        long in = Long.parseLong(argument.substring(0, comma));
-        long out = Long.parseLong(argument.substring(comma + 1));
-
-        VpnStatus.updateByteCount(in, out);
-
-    }
-
-    private void processNeedCommand(String argument) {
-        int p1 = argument.indexOf('\'');
-        int p2 = argument.indexOf('\'', p1 + 1);
-
-        String needed = argument.substring(p1 + 1, p2);
-        String extra = argument.split(":", 2)[1];
-
-        String status = "ok";
-
-
-        switch (needed) {
-            case "PROTECTFD":
-                FileDescriptor fdtoprotect = mFDList.pollFirst();
-                protectFileDescriptor(fdtoprotect);
-                break;
-            case "DNSSERVER":
-            case "DNS6SERVER":
-                mOpenVPNService.addDNS(extra);
-                break;
-            case "DNSDOMAIN":
-                mOpenVPNService.setDomain(extra);
-                break;
-            case "ROUTE": {
-                String[] routeparts = extra.split(" ");
-
-            /*
-            buf_printf (&out, "%s %s %s dev %s", network, netmask, gateway, rgi->iface);
-            else
-            buf_printf (&out, "%s %s %s", network, netmask, gateway);
-            */
-
-                if (routeparts.length == 5) {
-                    //if (BuildConfig.DEBUG)
-                    //                assertEquals("dev", routeparts[3]);
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], routeparts[4]);
-                } else if (routeparts.length >= 3) {
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], null);
-                } else {
-                    VpnStatus.logError("Unrecognized ROUTE cmd:" + Arrays.toString(routeparts) + " | " + argument);
-                }
-
-                break;
-            }
-            case "ROUTE6": {
-                String[] routeparts = extra.split(" ");
-                mOpenVPNService.addRoutev6(routeparts[0], routeparts[1]);
-                break;
-            }
-            case "IFCONFIG":
-                String[] ifconfigparts = extra.split(" ");
-                int mtu = Integer.parseInt(ifconfigparts[2]);
-                mOpenVPNService.setLocalIP(ifconfigparts[0], ifconfigparts[1], mtu, ifconfigparts[3]);
-                break;
-            case "IFCONFIG6":
-                String[] ifconfig6parts = extra.split(" ");
-                mtu = Integer.parseInt(ifconfig6parts[1]);
-                mOpenVPNService.setMtu(mtu);
-                mOpenVPNService.setLocalIPv6(ifconfig6parts[0]);
-                break;
-            case "PERSIST_TUN_ACTION":
-                // check if tun cfg stayed the same
-                status = mOpenVPNService.getTunReopenStatus();
-                break;
-            case "OPENTUN":
-                if (sendTunFD(needed, extra))
-                    return;
-                else
-                    status = "cancel";
-                // This not nice or anything but setFileDescriptors accepts only FilDescriptor class :(
-
-                break;
-            default:
-                Log.e(TAG, "Unknown needok command " + argument);
-                return;
-        }
-
-        String cmd = String.format("needok '%s' %s\n", needed, status);
-        managmentCommand(cmd);
-    }
-
     private boolean sendTunFD(String needed, String extra) {
         if (!extra.equals("tun")) {
             // We only support tun
@@ -797,4 +594,88 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         return stopSucceed;
     }
 
+
+    /**
+     * Receives the commands routed by {@link ManagementDispatcher}
+     */
+    private class DispatchTarget implements ManagementDispatcher.Target {
+        @Override
+        public void sendCommand(String command) {
+            managmentCommand(command);
+        }
+
+        @Override
+        public void onPassword(String argument) {
+            processPWCommand(argument);
+        }
+
+        @Override
+        public void onHold(int waitSeconds) {
+            handleHold(waitSeconds);
+        }
+
+        @Override
+        public void onByteCount(long in, long out) {
+            VpnStatus.updateByteCount(in, out);
+        }
+
+        @Override
+        public void onState(String state, String detail) {
+            if (!mShuttingDown)
+                VpnStatus.updateStateString(state, detail);
+        }
+
+        @Override
+        public void onProxy(int connectionEntry, String protocol) {
+            processProxyCMD(connectionEntry, protocol);
+        }
+
+        @Override
+        public void onLog(char flag, int ovpnLevel, String message) {
+            processLogMessage(flag, ovpnLevel, message);
+        }
+
+        @Override
+        public void onSign(String argument) {
+            processSignCommand(argument);
+        }
+
+        @Override
+        public void onInfoMessage(String info) {
+            VpnStatus.logDebug("Info message from server:" + info);
+        }
+
+        @Override
+        public void protectNextFd() {
+            FileDescriptor fdtoprotect = mFDList.pollFirst();
+            if (fdtoprotect != null)
+                protectFileDescriptor(fdtoprotect);
+        }
+
+        @Override
+        public boolean sendTunFd(String needed, String extra) {
+            return sendTunFD(needed, extra);
+        }
+
+        @Override
+        public void onUnknownNeedOk(String argument) {
+            Log.e(TAG, "Unknown needok command " + argument);
+        }
+
+        @Override
+        public void onUnrecognized(String line, boolean isCommand) {
+            if (isCommand) {
+                VpnStatus.logWarning("MGMT: Got unrecognized command" + line);
+                Log.i(TAG, "Got unrecognized command" + line);
+            } else {
+                Log.i(TAG, "Got unrecognized line from managment" + line);
+                VpnStatus.logWarning("MGMT: Got unrecognized line from management:" + line);
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            VpnStatus.logError(message);
+        }
+    }
 }
@@ -133,6 +133,13 @@ public class ProfileManager {
         saveProfile(c, tmp, true, true);
     }
 
+    /**
+     * @return Whether the profile is the temporary profile already saved by {@link #setTemporaryProfile}
+     */
+    public static boolean isCurrentTemporaryProfile(VpnProfile profile) {
+        return profile != null && profile == tmpprofile;
+    }
+
     public static boolean isTempProfile() {
         return mLastConnectedVpn != null && mLastConnectedVpn  == tmpprofile;
     }
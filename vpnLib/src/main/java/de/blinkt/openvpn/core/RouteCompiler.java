@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.net.IpPrefix;
+import android.net.VpnService;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Compiles bypass lists, networks that go around the tunnel such as all networks of a country
+ * or an AS, into the smallest set of networks covering them. A list is a file with one network
+ * per line in CIDR notation, IPv4 and IPv6 mixed, # starts a comment. Lists are looked up in
+ * the bypass directory of the files dir first, so they can be updated, then in the assets.
+ * <p>
+ * Compiling 50k prefixes takes a few hundred ms, so the result is kept in memory and in the
+ * cache dir, keyed by the lists and their versions. Connecting again, also after the process
+ * was restarted, only reads the compiled networks.
+ */
+public final class RouteCompiler {
+
+    static final String LIST_DIR = "bypass";
+    static final String LIST_SUFFIX = ".cidr";
+    private static final String CACHE_PREFIX = "bypass-";
+    private static final int CACHE_MAGIC = 0x42595031; // BYP1
+    private static final int MAX_LINE = 128;
+    /**
+     * Routes, positive and excluded, a VPN may be established with. The builder hands all of
+     * them to the system in one binder transaction, at roughly 150 bytes each, and that
+     * transaction has to stay well below the 1 MB buffer the whole process shares.
+     */
+    static final int MAX_ROUTES = 2000;
+
+    private static final ConfigHashCache<Compiled> COMPILED = new ConfigHashCache<>(4);
+
+    /**
+     * Growable list of networks in primitive arrays, the address as 128 bit number with IPv4
+     * addresses in the lowest 32 bits of low
+     */
+    static final class Prefixes {
+        long[] high;
+        long[] low;
+        byte[] len;
+        int size;
+        // Scratch for parsing IPv6 addresses
+        final long[] groups = new long[8];
+
+        Prefixes(int capacity) {
+            capacity = Math.max(capacity, 16);
+            high = new long[capacity];
+            low = new long[capacity];
+            len = new byte[capacity];
+        }
+
+        void add(long h, long l, int mask) {
+            if (size == low.length) {
+                int capacity = size * 2;
+                long[] newHigh = new long[capacity];
+                long[] newLow = new long[capacity];
+                byte[] newLen = new byte[capacity];
+                System.arraycopy(high, 0, newHigh, 0, size);
+                System.arraycopy(low, 0, newLow, 0, size);
+                System.arraycopy(len, 0, newLen, 0, size);
+                high = newHigh;
+                low = newLow;
+                len = newLen;
+            }
+            high[size] = h;
+            low[size] = l;
+            len[size] = (byte) mask;
+            size++;
+        }
+
+        int getLen(int i) {
+            // Stored as byte, /128 does not fit signed
+            return len[i] & 0xff;
+        }
+    }
+
+    /**
+     * The compiled networks of one or more bypass lists
+     */
+    public static final class Compiled {
+        final Prefixes v4;
+        final Prefixes v6;
+        // Lines of the lists that were not a network
+        int invalidLines;
+
+        Compiled(Prefixes v4, Prefixes v6) {
+            this.v4 = v4;
+            this.v6 = v6;
+        }
+
+        public int getIPv4Count() {
+            return v4.size;
+        }
+
+        public int getIPv6Count() {
+            return v6.size;
+        }
+
+        /**
+         * The largest networks only, few enough that the routes they need fit into maxRoutes.
+         * The traffic of the dropped networks stays in the tunnel, nothing outside the lists
+         * bypasses it.
+         *
+         * @param excluded the networks are passed to {@link #excludeFrom}, otherwise they are
+         *                 laid over routes covering everything with {@link #overlay}
+         * @return this if all networks fit, null if not even the whole address space does
+         */
+        Compiled limit(int maxRoutes, boolean excluded) {
+            int maxLen4 = 32;
+            int maxLen6 = 128;
+            while (true) {
+                int routes4 = countRoutes(v4, maxLen4, true, excluded);
+                int routes6 = countRoutes(v6, maxLen6, false, excluded);
+                if (routes4 + routes6 <= maxRoutes)
+                    break;
+                // Drop the smallest networks of the family that needs more routes
+                int longest4 = longest(v4, maxLen4);
+                int longest6 = longest(v6, maxLen6);
+                if (longest6 >= 0 && (routes6 >= routes4 || longest4 < 0))
+                    maxLen6 = longest6 - 1;
+                else if (longest4 >= 0)
+                    maxLen4 = longest4 - 1;
+                else
+                    return null;
+            }
+            if (maxLen4 == 32 && maxLen6 == 128)
+                return this;
+            Compiled limited = new Compiled(upTo(v4, maxLen4), upTo(v6, maxLen6));
+            limited.invalidLines = invalidLines;
+            return limited;
+        }
+
+        /**
+         * A copy of routes with the bypass networks added as excluded. On the same network the
+         * route of routes wins.
+         */
+        NetworkSpace overlay(NetworkSpace routes, boolean ipv4) {
+            NetworkSpace space = new NetworkSpace();
+            space.mIpAddresses.addAll(routes.mIpAddresses);
+            Prefixes prefixes = ipv4 ? v4 : v6;
+            for (int i = 0; i < prefixes.size; i++) {
+                if (ipv4)
+                    space.addIPv4(prefixes.low[i], prefixes.getLen(i), false);
+                else
+                    space.addIPv6(prefixes.high[i], prefixes.low[i], prefixes.getLen(i), false);
+            }
+            return space;
+        }
+
+        /**
+         * Excludes the bypass networks directly, the platform keeps them out of the routes
+         *
+         * @return number of networks the builder rejected
+         */
+        @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+        int excludeFrom(VpnService.Builder builder) {
+            int rejected = 0;
+            byte[] v4addr = new byte[4];
+            byte[] v6addr = new byte[16];
+            for (int i = 0; i < v4.size; i++)
+                rejected += exclude(builder, 0, v4.low[i], v4addr, v4.getLen(i));
+            for (int i = 0; i < v6.size; i++)
+                rejected += exclude(builder, v6.high[i], v6.low[i], v6addr, v6.getLen(i));
+            return rejected;
+        }
+
+        @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+        private static int exclude(VpnService.Builder builder, long high, long low, byte[] addr, int len) {
+            for (int b = 0; b < addr.length; b++) {
+                int shift = (addr.length - 1 - b) * 8;
+                addr[b] = (byte) (shift >= 64 ? high >>> (shift - 64) : low >>> shift);
+            }
+            try {
+                // getByAddress copies the bytes and never does a lookup
+                builder.excludeRoute(new IpPrefix(InetAddress.getByAddress(addr), len));
+                return 0;
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                return 1;
+            }
+        }
+    }
+
+    private RouteCompiler() {
+    }
+
+    /**
+     * @return Routes needed for the networks no longer than maxLen: the networks themselves when
+     * excluded, otherwise the networks covering the rest of the address space
+     */
+    static int countRoutes(Prefixes prefixes, int maxLen, boolean ipv4, boolean excluded) {
+        int width = ipv4 ? 32 : 128;
+        int count = 0;
+        // First address not covered by a network or a counted route yet
+        long nextHigh = 0;
+        long nextLow = 0;
+        for (int i = 0; i < prefixes.size; i++) {
+            int len = prefixes.getLen(i);
+            if (len > maxLen)
+                continue;
+            if (excluded) {
+                count++;
+                continue;
+            }
+            long high = prefixes.high[i];
+            long low = prefixes.low[i];
+            // The networks are sorted and disjoint, a gap in front needs routes
+            if (NetworkSpace.compareUnsigned(high, low, nextHigh, nextLow) > 0)
+                count += addRange(null, nextHigh, nextLow, low == 0 ? high - 1 : high, low - 1, width);
+            int hostBits = width - len;
+            long lastHigh = high | NetworkSpace.hostMaskHigh(hostBits);
+            long lastLow = low | NetworkSpace.hostMaskLow(hostBits);
+            if (lastHigh == (ipv4 ? 0 : -1L) && lastLow == (ipv4 ? 0xffffffffL : -1L))
+                return count;
+            nextLow = lastLow + 1;
+            nextHigh = nextLow == 0 ? lastHigh + 1 : lastHigh;
+        }
+        if (!excluded)
+            count += addRange(null, nextHigh, nextLow, ipv4 ? 0 : -1L, ipv4 ? 0xffffffffL : -1L, width);
+        return count;
+    }
+
+    /**
+     * @return Longest prefix length of the networks no longer than maxLen, -1 if there are none
+     */
+    private static int longest(Prefixes prefixes, int maxLen) {
+        int longest = -1;
+        for (int i = 0; i < prefixes.size; i++) {
+            int len = prefixes.getLen(i);
+            if (len <= maxLen && len > longest)
+                longest = len;
+        }
+        return longest;
+    }
+
+    private static Prefixes upTo(Prefixes prefixes, int maxLen) {
+        Prefixes out = new Prefixes(prefixes.size);
+        for (int i = 0; i < prefixes.size; i++) {
+            if (prefixes.getLen(i) <= maxLen)
+                out.add(prefixes.high[i], prefixes.low[i], prefixes.getLen(i));
+        }
+        return out;
+    }
+
+    /**
+     * @param lists names of the bypass lists, separated by white space
+     * @return the compiled networks, null if lists is empty
+     */
+    public static Compiled load(Context context, String lists) throws IOException {
+        if (lists == null || lists.trim().isEmpty())
+            return null;
+        String[] names = lists.trim().split("\\s+");
+
+        StringBuilder version = new StringBuilder();
+        for (String name : names) {
+            File file = getListFile(context, name);
+            if (file.exists())
+                version.append(name).append(':').append(file.length()).append(':').append(file.lastModified());
+            else
+                // Assets only change with the app
+                version.append(name).append(":asset:").append(getAppUpdateTime(context));
+            version.append('\n');
+        }
+        String key = ConfigHashCache.key(version.toString());
+
+        Compiled compiled = COMPILED.get(key);
+        if (compiled != null)
+            return compiled;
+
+        File cacheFile = new File(context.getCacheDir(), CACHE_PREFIX + key);
+        if (cacheFile.exists()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                compiled = read(in);
+            } catch (IOException e) {
+                VpnStatus.logException("Reading compiled bypass lists", e);
+            }
+        }
+
+        if (compiled == null) {
+            Prefixes v4 = new Prefixes(1024);
+            Prefixes v6 = new Prefixes(256);
+            int invalid = 0;
+            for (String name : names) {
+                File file = getListFile(context, name);
+                try (InputStream in = file.exists() ? new FileInputStream(file)
+                        : context.getAssets().open(LIST_DIR + "/" + name + LIST_SUFFIX)) {
+                    invalid += parse(in, v4, v6);
+                }
+            }
+            compiled = new Compiled(compact(v4, true), compact(v6, false));
+            compiled.invalidLines = invalid;
+            writeCache(context, cacheFile, compiled);
+        }
+        COMPILED.put(key, compiled);
+        return compiled;
+    }
+
+    private static File getListFile(Context context, String name) {
+        return new File(new File(context.getFilesDir(), LIST_DIR), name + LIST_SUFFIX);
+    }
+
+    private static long getAppUpdateTime(Context context) {
+        // An update installs a new APK
+        return new File(context.getApplicationInfo().sourceDir).lastModified();
+    }
+
+    private static void writeCache(Context context, File cacheFile, Compiled compiled) {
+        // Compiled files of lists that changed are not needed anymore
+        File[] old = context.getCacheDir().listFiles();
+        if (old != null)
+            for (File f : old)
+                if (f.getName().startsWith(CACHE_PREFIX))
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            write(compiled, out);
+        } catch (IOException e) {
+            VpnStatus.logException("Writing compiled bypass lists", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(cacheFile))
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+    }
+
+    /**
+     * Reads networks from a list, without allocating per line
+     *
+     * @return number of lines that are not a network
+     */
+    static int parse(InputStream input, Prefixes v4, Prefixes v6) throws IOException {
+        InputStream in = new BufferedInputStream(input, 64 * 1024);
+        byte[] line = new byte[MAX_LINE];
+        int length = 0;
+        boolean tooLong = false;
+        int invalid = 0;
+        int c;
+        do {
+            c = in.read();
+            if (c == '\n' || c == -1) {
+                if (tooLong || !parseLine(line, length, v4, v6))
+                    invalid++;
+                length = 0;
+                tooLong = false;
+            } else if (length < MAX_LINE) {
+                line[length++] = (byte) c;
+            } else {
+                tooLong = true;
+            }
+        } while (c != -1);
+        return invalid;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static int digit(byte b, int radix) {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        if (radix == 16 && b >= 'a' && b <= 'f')
+            return b - 'a' + 10;
+        if (radix == 16 && b >= 'A' && b <= 'F')
+            return b - 'A' + 10;
+        return -1;
+    }
+
+    static boolean parseLine(byte[] line, int length, Prefixes v4, Prefixes v6) {
+        int end = 0;
+        while (end < length && line[end] != '#')
+            end++;
+        int start = 0;
+        while (start < end && isSpace(line[start]))
+            start++;
+        while (end > start && isSpace(line[end - 1]))
+            end--;
+        if (start == end)
+            return true;
+
+        int slash = end;
+        boolean ipv6 = false;
+        for (int i = start; i < end; i++) {
+            if (line[i] == ':')
+                ipv6 = true;
+            else if (line[i] == '/' && slash == end)
+                slash = i;
+        }
+
+        int width = ipv6 ? 128 : 32;
+        int mask = width;
+        if (slash < end) {
+            if (slash + 1 == end || end - slash > 4)
+                return false;
+            mask = 0;
+            for (int i = slash + 1; i < end; i++) {
+                int d = digit(line[i], 10);
+                if (d < 0)
+                    return false;
+                mask = mask * 10 + d;
+            }
+            if (mask > width)
+                return false;
+        }
+
+        if (ipv6)
+            return parseIPv6(line, start, slash, mask, v6);
+
+        long address = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i <= slash; i++) {
+            if (i == slash || line[i] == '.') {
+                if (value < 0 || value > 255)
+                    return false;
+                address = (address << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                int d = digit(line[i], 10);
+                if (d < 0)
+                    return false;
+                value = (value < 0 ? 0 : value * 10) + d;
+            }
+        }
+        if (octets != 4)
+            return false;
+        v4.add(0, address & ~NetworkSpace.hostMaskLow(32 - mask), mask);
+        return true;
+    }
+
+    private static boolean parseIPv6(byte[] line, int start, int end, int mask, Prefixes v6) {
+        // Groups before and after ::
+        long[] groups = v6.groups;
+        int count = 0;
+        int gap = -1;
+        int i = start;
+        if (end - start >= 2 && line[i] == ':' && line[i + 1] == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < end) {
+            int value = 0;
+            int digits = 0;
+            while (i < end && line[i] != ':') {
+                int d = digit(line[i], 16);
+                if (d < 0 || ++digits > 4)
+                    return false;
+                value = value * 16 + d;
+                i++;
+            }
+            if (digits == 0 || count == 8)
+                return false;
+            groups[count++] = value;
+            if (i < end) {
+                // Skip the colon, a second one is the gap
+                i++;
+                if (i < end && line[i] == ':') {
+                    if (gap >= 0)
+                        return false;
+                    gap = count;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+        if (gap < 0 ? count != 8 : count > 7)
+            return false;
+
+        long high = 0;
+        long low = 0;
+        int zeros = 8 - count;
+        int g = 0;
+        for (int pos = 0; pos < 8; pos++) {
+            long value;
+            if (gap >= 0 && pos >= gap && pos < gap + zeros)
+                value = 0;
+            else
+                value = groups[g++];
+            if (pos < 4)
+                high = (high << 16) | value;
+            else
+                low = (low << 16) | value;
+        }
+        int hostBits = 128 - mask;
+        v6.add(high & ~NetworkSpace.hostMaskHigh(hostBits), low & ~NetworkSpace.hostMaskLow(hostBits), mask);
+        return true;
+    }
+
+    /**
+     * The smallest list of networks covering the same addresses, sorted by address
+     */
+    static Prefixes compact(Prefixes in, boolean ipv4) {
+        int width = ipv4 ? 32 : 128;
+        long[] high = new long[in.size];
+        long[] low = new long[in.size];
+        long[] lastHigh = new long[in.size];
+        long[] lastLow = new long[in.size];
+        for (int i = 0; i < in.size; i++) {
+            int hostBits = width - in.getLen(i);
+            high[i] = in.high[i];
+            low[i] = in.low[i];
+            lastHigh[i] = in.high[i] | NetworkSpace.hostMaskHigh(hostBits);
+            lastLow[i] = in.low[i] | NetworkSpace.hostMaskLow(hostBits);
+        }
+        sort(high, low, lastHigh, lastLow, 0, in.size - 1);
+
+        Prefixes out = new Prefixes(in.size / 2);
+        int i = 0;
+        while (i < in.size) {
+            // Join overlapping and adjacent ranges
+            long startHigh = high[i];
+            long startLow = low[i];
+            long endHigh = lastHigh[i];
+            long endLow = lastLow[i];
+            i++;
+            while (i < in.size) {
+                boolean endIsMax = !ipv4 && endHigh == -1L && endLow == -1L;
+                long nextHigh = endLow == -1L ? endHigh + 1 : endHigh;
+                long nextLow = endLow + 1;
+                if (!endIsMax && NetworkSpace.compareUnsigned(high[i], low[i], nextHigh, nextLow) > 0)
+                    break;
+                if (NetworkSpace.compareUnsigned(lastHigh[i], lastLow[i], endHigh, endLow) > 0) {
+                    endHigh = lastHigh[i];
+                    endLow = lastLow[i];
+                }
+                i++;
+            }
+            addRange(out, startHigh, startLow, endHigh, endLow, width);
+        }
+        return out;
+    }
+
+    /**
+     * Splits a range into the fewest networks, each as large as its start address allows
+     *
+     * @param out receives the networks, null to only count them
+     * @return number of networks
+     */
+    private static int addRange(Prefixes out, long startHigh, long startLow, long endHigh, long endLow, int width) {
+        int count = 0;
+        while (true) {
+            // Largest block aligned at start
+            int align = startLow != 0 ? Long.numberOfTrailingZeros(startLow)
+                    : startHigh != 0 ? 64 + Long.numberOfTrailingZeros(startHigh) : 128;
+            int bits = Math.min(align, width);
+            // that ends within the range
+            while (bits > 0) {
+                long blockEndHigh = startHigh | NetworkSpace.hostMaskHigh(bits);
+                long blockEndLow = startLow | NetworkSpace.hostMaskLow(bits);
+                if (NetworkSpace.compareUnsigned(blockEndHigh, blockEndLow, endHigh, endLow) <= 0)
+                    break;
+                bits--;
+            }
+            if (out != null)
+                out.add(startHigh, startLow, width - bits);
+            count++;
+
+            long blockEndHigh = startHigh | NetworkSpace.hostMaskHigh(bits);
+            long blockEndLow = startLow | NetworkSpace.hostMaskLow(bits);
+            if (blockEndHigh == endHigh && blockEndLow == endLow)
+                return count;
+            startLow = blockEndLow + 1;
+            startHigh = startLow == 0 ? blockEndHigh + 1 : blockEndHigh;
+        }
+    }
+
+    /**
+     * Quicksort of the ranges by start address, the order on the same start does not matter
+     */
+    private static void sort(long[] high, long[] low, long[] lastHigh, long[] lastLow, int left, int right) {
+        while (right - left > 16) {
+            int mid = (left + right) >>> 1;
+            long pivotHigh = high[mid];
+            long pivotLow = low[mid];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (NetworkSpace.compareUnsigned(high[i], low[i], pivotHigh, pivotLow) < 0)
+                    i++;
+                while (NetworkSpace.compareUnsigned(high[j], low[j], pivotHigh, pivotLow) > 0)
+                    j--;
+                if (i <= j)
+                    swap(high, low, lastHigh, lastLow, i++, j--);
+            }
+            // Recurse into the smaller part to bound the stack
+            if (j - left < right - i) {
+                sort(high, low, lastHigh, lastLow, left, j);
+                left = i;
+            } else {
+                sort(high, low, lastHigh, lastLow, i, right);
+                right = j;
+            }
+        }
+        for (int i = left + 1; i <= right; i++)
+            for (int j = i; j > left && NetworkSpace.compareUnsigned(high[j - 1], low[j - 1], high[j], low[j]) > 0; j--)
+                swap(high, low, lastHigh, lastLow, j - 1, j);
+    }
+
+    private static void swap(long[] high, long[] low, long[] lastHigh, long[] lastLow, int a, int b) {
+        long t = high[a];
+        high[a] = high[b];
+        high[b] = t;
+        t = low[a];
+        low[a] = low[b];
+        low[b] = t;
+        t = lastHigh[a];
+        lastHigh[a] = lastHigh[b];
+        lastHigh[b] = t;
+        t = lastLow[a];
+        lastLow[a] = lastLow[b];
+        lastLow[b] = t;
+    }
+
+    static void write(Compiled compiled, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeInt(CACHE_MAGIC);
+        out.writeInt(compiled.invalidLines);
+        out.writeInt(compiled.v4.size);
+        for (int i = 0; i < compiled.v4.size; i++) {
+            out.writeInt((int) compiled.v4.low[i]);
+            out.writeByte(compiled.v4.len[i]);
+        }
+        out.writeInt(compiled.v6.size);
+        for (int i = 0; i < compiled.v6.size; i++) {
+            out.writeLong(compiled.v6.high[i]);
+            out.writeLong(compiled.v6.low[i]);
+            out.writeByte(compiled.v6.len[i]);
+        }
+        out.flush();
+    }
+
+    static Compiled read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        if (in.readInt() != CACHE_MAGIC)
+            throw new IOException("Not a compiled bypass list");
+        int invalid = in.readInt();
+        int count = in.readInt();
+        Prefixes v4 = new Prefixes(count);
+        for (int i = 0; i < count; i++)
+            v4.add(0, in.readInt() & 0xffffffffL, in.readUnsignedByte());
+        count = in.readInt();
+        Prefixes v6 = new Prefixes(count);
+        for (int i = 0; i < count; i++)
+            v6.add(in.readLong(), in.readLong(), in.readUnsignedByte());
+        Compiled compiled = new Compiled(v4, v6);
+        compiled.invalidLines = invalid;
+        return compiled;
+    }
+}
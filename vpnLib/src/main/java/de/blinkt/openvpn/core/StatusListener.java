@@ -20,6 +20,7 @@ import de.blinkt.openvpn.core.VpnStatus.LogLevel;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by arne on 09.11.16.
@@ -28,9 +29,15 @@ import java.io.IOException;
 public class StatusListener implements VpnStatus.LogListener {
     private File mCacheDir;
     private Context mContext;
+    // Where the log of the service process left off, a rebind only fetches what came after
+    private long mLogEpoch;
+    private long mReplayEnd;
+    // Sequence after the last item that arrived through the callback, 0 if none since the last bind
+    private final AtomicLong mLiveLogEnd = new AtomicLong();
     private IStatusCallbacks mCallback = new IStatusCallbacks.Stub() {
         @Override
-        public void newLogItem(LogItem item) throws RemoteException {
+        public void newLogItem(long sequence, LogItem item) throws RemoteException {
+            mLiveLogEnd.set(sequence + 1);
             VpnStatus.newLogItem(item);
         }
 
@@ -64,18 +71,17 @@ public class StatusListener implements VpnStatus.LogListener {
                     // Not a local service
                     VpnStatus.setConnectedVPNProfile(serviceStatus.getLastConnectedVPN());
                     VpnStatus.setTrafficHistory(serviceStatus.getTrafficHistory());
-                    ParcelFileDescriptor pfd = serviceStatus.registerStatusCallback(mCallback);
+                    long resumeFrom = Math.max(mReplayEnd, mLiveLogEnd.getAndSet(0));
+                    ParcelFileDescriptor pfd = serviceStatus.registerStatusCallbackFrom(mCallback, mLogEpoch, resumeFrom);
                     DataInputStream fd = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
-
-                    short len = fd.readShort();
-                    byte[] buf = new byte[65336];
-                    while (len != 0x7fff) {
-                        fd.readFully(buf, 0, len);
-                        LogItem logitem = new LogItem(buf, len);
-                        VpnStatus.newLogItem(logitem, false);
-                        len = fd.readShort();
+                    LogReplay.Position position;
+                    try {
+                        position = LogReplay.read(fd, item -> VpnStatus.newLogItem(item, false));
+                    } finally {
+                        fd.close();
                     }
-                    fd.close();
+                    mLogEpoch = position.epoch;
+                    mReplayEnd = position.cursor;
 
 
                 } else {
@@ -8,14 +8,17 @@ package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.Vector;
 
 import static java.lang.Math.max;
 
 /**
- * Created by arne on 23.05.17.
+ * Byte counter history in four resolutions: seconds, minutes, hours and days. Every resolution is
+ * a ring of (timestamp, in, out) triples in one long[]. Since the counters are cumulative, the
+ * first sample of a new minute is the minute sample, so downsampling is just a copy into the next
+ * ring. Entries older than {@link #PERIODS_TO_KEEP} periods of the next resolution are dropped
+ * from the front of a ring, a full ring overwrites its oldest entry. Adding a sample is O(1) and
+ * does not allocate besides the returned {@link LastDiff}.
  */
 
 public class TrafficHistory implements Parcelable {
@@ -23,23 +26,84 @@ public class TrafficHistory implements Parcelable {
     public static final long PERIODS_TO_KEEP = 5;
     public static final int TIME_PERIOD_MINTUES = 60 * 1000;
     public static final int TIME_PERIOD_HOURS = 3600 * 1000;
-    private LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
+    public static final long TIME_PERIOD_DAYS = 24L * 3600 * 1000;
+
+    static final int SECONDS = 0;
+    static final int MINUTES = 1;
+    static final int HOURS = 2;
+    static final int DAYS = 3;
+
+    // Period of the next resolution, a sample that starts a new one is passed on
+    private static final long[] NEXT_PERIOD = {TIME_PERIOD_MINTUES, TIME_PERIOD_HOURS, TIME_PERIOD_DAYS, 0};
+    // Days have no coarser resolution, keep about two months
+    private static final int[] CAPACITY = {512, 512, 128, 64};
+
+    private static final int FIELDS = 3;
+    private static final long FORMAT_VERSION = 2;
+
+    private final Series[] series = new Series[CAPACITY.length];
+
+    /**
+     * Ring of (timestamp, in, out) samples
+     */
+    static final class Series {
+        final long[] data;
+        final int capacity;
+        int head;
+        int size;
+        // Timestamp of the last sample passed on to the next resolution
+        long lastPassedOn;
+
+        Series(int capacity) {
+            this.capacity = capacity;
+            data = new long[capacity * FIELDS];
+        }
 
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+        void add(long timestamp, long in, long out) {
+            int slot;
+            if (size == capacity) {
+                slot = head;
+                head = (head + 1) % capacity;
+            } else {
+                slot = (head + size) % capacity;
+                size++;
+            }
+            slot *= FIELDS;
+            data[slot] = timestamp;
+            data[slot + 1] = in;
+            data[slot + 2] = out;
+        }
 
-    public TrafficHistory() {
+        /**
+         * Drops samples that are period * PERIODS_TO_KEEP or more older than now
+         */
+        void trim(long now, long period) {
+            while (size > 0 && (now - data[head * FIELDS]) / period >= PERIODS_TO_KEEP) {
+                head = (head + 1) % capacity;
+                size--;
+            }
+        }
 
+        /**
+         * @param i 0 is the oldest sample
+         */
+        long get(int i, int field) {
+            return data[((head + i) % capacity) * FIELDS + field];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    public TrafficHistory() {
+        for (int i = 0; i < series.length; i++)
+            series[i] = new Series(CAPACITY[i]);
     }
 
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        this();
+        readFromArray(in.createLongArray());
     }
 
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
@@ -54,28 +118,27 @@ public class TrafficHistory implements Parcelable {
         }
     };
 
+    /**
+     * @param tdp Sample to compare with the newest one, or null for the difference between the
+     *            two newest samples
+     */
     public LastDiff getLastDiff(TrafficDatapoint tdp) {
+        Series seconds = series[SECONDS];
+        int n = seconds.size();
 
-        TrafficDatapoint lasttdp;
-
-
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
-
-        else
-            lasttdp = trafficHistorySeconds.getLast();
-
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
-            }
+        if (tdp != null) {
+            if (n == 0)
+                return new LastDiff(0, 0, tdp.in, tdp.out);
+            return new LastDiff(seconds.get(n - 1, 1), seconds.get(n - 1, 2), tdp.in, tdp.out);
         }
 
-        return new LastDiff(lasttdp, tdp);
+        if (n == 0)
+            return new LastDiff(0, 0, 0, 0);
+        long in = seconds.get(n - 1, 1);
+        long out = seconds.get(n - 1, 2);
+        if (n < 2)
+            return new LastDiff(in, out, in, out);
+        return new LastDiff(seconds.get(n - 2, 1), seconds.get(n - 2, 2), in, out);
     }
 
     @Override
@@ -85,24 +148,90 @@ public class TrafficHistory implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+        dest.writeLongArray(toArray());
+    }
+
+    /**
+     * All resolutions packed into one array: version, per resolution the number of samples and
+     * the timestamp last passed on, then the samples of every resolution oldest first
+     */
+    long[] toArray() {
+        int total = 0;
+        for (Series s : series)
+            total += s.size();
+        long[] packed = new long[1 + 2 * series.length + total * FIELDS];
+        int pos = 0;
+        packed[pos++] = FORMAT_VERSION;
+        for (Series s : series) {
+            packed[pos++] = s.size();
+            packed[pos++] = s.lastPassedOn;
+        }
+        for (Series s : series) {
+            // At most two bulk copies per ring
+            int first = Math.min(s.size(), s.capacity - s.head);
+            System.arraycopy(s.data, s.head * FIELDS, packed, pos, first * FIELDS);
+            pos += first * FIELDS;
+            System.arraycopy(s.data, 0, packed, pos, (s.size() - first) * FIELDS);
+            pos += (s.size() - first) * FIELDS;
+        }
+        return packed;
+    }
 
+    static TrafficHistory fromArray(long[] packed) {
+        TrafficHistory th = new TrafficHistory();
+        th.readFromArray(packed);
+        return th;
+    }
+
+    private void readFromArray(long[] packed) {
+        if (packed == null || packed.length < 1 + 2 * series.length || packed[0] != FORMAT_VERSION)
+            return;
+        int pos = 1;
+        int[] sizes = new int[series.length];
+        for (int i = 0; i < series.length; i++) {
+            sizes[i] = (int) packed[pos++];
+            series[i].lastPassedOn = packed[pos++];
+        }
+        for (int i = 0; i < series.length; i++) {
+            Series s = series[i];
+            // Keep the newest samples if the sender had bigger rings
+            int skip = max(0, sizes[i] - s.capacity);
+            int count = sizes[i] - skip;
+            System.arraycopy(packed, pos + skip * FIELDS, s.data, 0, count * FIELDS);
+            s.head = 0;
+            s.size = count;
+            pos += sizes[i] * FIELDS;
+        }
+    }
+
+    public LinkedList<TrafficDatapoint> getDays() {
+        return asList(series[DAYS]);
     }
 
     public LinkedList<TrafficDatapoint> getHours() {
-        return trafficHistoryHours;
+        return asList(series[HOURS]);
     }
 
     public LinkedList<TrafficDatapoint> getMinutes() {
-        return trafficHistoryMinutes;
+        return asList(series[MINUTES]);
     }
 
     public LinkedList<TrafficDatapoint> getSeconds() {
-        return trafficHistorySeconds;
+        return asList(series[SECONDS]);
+    }
+
+    /**
+     * @param resolution {@link #SECONDS}, {@link #MINUTES}, {@link #HOURS} or {@link #DAYS}
+     */
+    Series getSeries(int resolution) {
+        return series[resolution];
+    }
+
+    private static LinkedList<TrafficDatapoint> asList(Series s) {
+        LinkedList<TrafficDatapoint> list = new LinkedList<>();
+        for (int i = 0; i < s.size(); i++)
+            list.add(new TrafficDatapoint(s.get(i, 1), s.get(i, 2), s.get(i, 0)));
+        return list;
     }
 
     public static LinkedList<TrafficDatapoint> getDummyList() {
@@ -155,89 +284,59 @@ public class TrafficHistory implements Parcelable {
     }
 
     LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
-
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
-        return diff;
-    }
-
-    private void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
-
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
-        }
-
-        removeAndAverage(tdp, true);
+        return add(in, out, System.currentTimeMillis());
     }
 
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
-
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
-
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
-        }
-
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
-
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
-
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
-            }
-            tpList.removeAll(toRemove);
+    LastDiff add(long in, long out, long timestamp) {
+        Series seconds = series[SECONDS];
+        int n = seconds.size();
+        LastDiff diff = n == 0 ? new LastDiff(0, 0, in, out)
+                : new LastDiff(seconds.get(n - 1, 1), seconds.get(n - 1, 2), in, out);
+
+        // Pass the sample down while it starts a new period of the next resolution
+        for (int i = 0; i < series.length; i++) {
+            Series s = series[i];
+            s.add(timestamp, in, out);
+            long period = NEXT_PERIOD[i];
+            if (period == 0 || timestamp / period <= s.lastPassedOn / period)
+                break;
+            s.lastPassedOn = timestamp;
+            s.trim(timestamp, period);
         }
+        return diff;
     }
 
     static class LastDiff {
 
-        final private TrafficDatapoint tdp;
-        final private TrafficDatapoint lasttdp;
+        private final long lastIn;
+        private final long lastOut;
+        private final long in;
+        private final long out;
 
-        private LastDiff(TrafficDatapoint lasttdp, TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
+        private LastDiff(long lastIn, long lastOut, long in, long out) {
+            this.lastIn = lastIn;
+            this.lastOut = lastOut;
+            this.in = in;
+            this.out = out;
         }
 
         public long getDiffOut() {
-            return max(0, tdp.out - lasttdp.out);
+            return max(0, out - lastOut);
         }
 
         public long getDiffIn() {
-            return max(0, tdp.in - lasttdp.in);
+            return max(0, in - lastIn);
         }
 
         public long getIn() {
-            return tdp.in;
+            return in;
         }
 
         public long getOut() {
-            return tdp.out;
+            return out;
         }
 
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+/**
+ * Traffic of the last window, for deciding whether the connection is idle. The window is a ring
+ * of buckets with a running sum, so adding and asking cost the same however many byte counts
+ * arrive. Next to the sum an exponentially weighted rate follows the recent traffic, which notices
+ * an idle connection long before the traffic of the last burst has left the window.
+ */
+final class TrafficWindow {
+
+    private static final int BUCKETS = 12;
+
+    private final long windowMs;
+    private final long bucketMs;
+    private final long[] buckets = new long[BUCKETS];
+    // Time constant of the rate, a quarter of the window
+    private final double tauMs;
+
+    private int current;
+    private long currentStart;
+    private long sum;
+
+    private double rate;
+    private long lastUpdate;
+    private long started;
+
+    TrafficWindow(long windowMs) {
+        this.windowMs = windowMs;
+        bucketMs = Math.max(1, windowMs / BUCKETS);
+        tauMs = windowMs / 4.0;
+    }
+
+    long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * Starts over as if the window was full of traffic, the connection has to prove it is idle
+     *
+     * @param seed bytes assumed in the window at the start
+     */
+    synchronized void start(long now, long seed) {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = 0;
+        current = 0;
+        currentStart = now;
+        buckets[0] = seed;
+        sum = seed;
+        rate = seed * 1000.0 / windowMs;
+        lastUpdate = now;
+        started = now;
+    }
+
+    synchronized void add(long now, long bytes) {
+        advance(now);
+        buckets[current] += bytes;
+        sum += bytes;
+
+        long dt = now - lastUpdate;
+        if (dt > 0) {
+            double alpha = 1 - Math.exp(-dt / tauMs);
+            rate += alpha * (bytes * 1000.0 / dt - rate);
+            lastUpdate = now;
+        } else {
+            // Same instant, the bytes belong to the interval just folded in
+            rate += bytes * 1000.0 / Math.max(1, tauMs);
+        }
+    }
+
+    synchronized long sum(long now) {
+        advance(now);
+        return sum;
+    }
+
+    /**
+     * Bytes per second, weighted towards the recent traffic
+     */
+    synchronized double rate() {
+        return rate;
+    }
+
+    /**
+     * True if the window holds less than limit, or if after one time constant the recent rate
+     * projected over the whole window stays below half of limit
+     */
+    synchronized boolean isIdle(long now, long limit) {
+        if (sum(now) < limit)
+            return true;
+        return now - started >= tauMs && rate * windowMs / 1000 < limit / 2.0;
+    }
+
+    private void advance(long now) {
+        long steps = (now - currentStart) / bucketMs;
+        if (steps <= 0)
+            return;
+        if (steps >= BUCKETS) {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = 0;
+            sum = 0;
+            current = 0;
+            currentStart = now;
+            return;
+        }
+        for (int i = 0; i < steps; i++) {
+            current = (current + 1) % BUCKETS;
+            sum -= buckets[current];
+            buckets[current] = 0;
+        }
+        currentStart += steps * bucketMs;
+    }
+}
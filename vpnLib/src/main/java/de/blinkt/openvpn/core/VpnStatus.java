@@ -15,20 +15,31 @@ import android.os.Message;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
-import java.util.Vector;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import de.blinkt.openvpn.R;
 
 public class VpnStatus {
 
 
-    private static final LinkedList<LogItem> logbuffer;
+    private static final LogRingBuffer<LogItem> logbuffer;
+    // Serializes the writers of logbuffer, readers do not take it
+    private static final Object logWriteLock = new Object();
+    // Guards the last state, so a new state listener gets the state that was current when it registered
+    private static final Object stateLock = new Object();
+    // Guards trafficHistory and keeps the byte counts published in the order they were added
+    private static final Object byteCountLock = new Object();
+    // When the last byte count arrived and the time it covered, guarded by byteCountLock
+    private static long mLastByteCountTime;
+    private static long mLastByteCountInterval = OpenVPNManagement.mBytecountInterval * 1000L;
 
-    private static Vector<LogListener> logListener;
-    private static Vector<StateListener> stateListener;
-    private static Vector<ByteCountListener> byteCountListener;
+    // Events queued per listener before the oldest debug log lines are dropped
+    private static final int LISTENER_QUEUE_SIZE = 256;
+    private static final ListenerRegistry listeners;
 
     private static String mLaststatemsg = "";
 
@@ -41,8 +52,8 @@ public class VpnStatus {
     private static HandlerThread mHandlerThread;
 
     private static String mLastConnectedVPNUUID;
-    static boolean readFileLog =false;
-    final static java.lang.Object readFileLock = new Object();
+    // Identifies the log sequence numbers of this process, see LogReplay
+    static final long LOG_EPOCH = new Random().nextLong();
 
 
     public static TrafficHistory trafficHistory;
@@ -137,8 +148,7 @@ public class VpnStatus {
 
     public static void setConnectedVPNProfile(String uuid) {
         mLastConnectedVPNUUID = uuid;
-        for (StateListener sl: stateListener)
-            sl.setConnectedVPN(uuid);
+        listeners.publish(new ConnectedVPNEvent(uuid));
     }
 
 
@@ -200,10 +210,13 @@ public class VpnStatus {
     private static LogFileHandler mLogFileHandler;
 
     static {
-        logbuffer = new LinkedList<>();
-        logListener = new Vector<>();
-        stateListener = new Vector<>();
-        byteCountListener = new Vector<>();
+        logbuffer = new LogRingBuffer<>(MAXLOGENTRIES);
+        ExecutorService listenerExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "VpnStatusListener");
+            t.setDaemon(true);
+            return t;
+        });
+        listeners = new ListenerRegistry(listenerExecutor, LISTENER_QUEUE_SIZE);
         trafficHistory = new TrafficHistory();
 
         logInformation();
@@ -222,16 +235,22 @@ public class VpnStatus {
     }
 
     public interface ByteCountListener {
-        void updateByteCount(long in, long out, long diffIn, long diffOut);
+        /**
+         * @param intervalMs Time the differences were counted over. Counts a listener fell
+         *                   behind on arrive merged, so this can span several byte count intervals
+         */
+        void updateByteCount(long in, long out, long diffIn, long diffOut, long intervalMs);
     }
 
-    public synchronized static void logMessage(LogLevel level, String prefix, String message) {
+    public static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
 
     }
 
-    public synchronized static void clearLog() {
-        logbuffer.clear();
+    public static void clearLog() {
+        synchronized (logWriteLock) {
+            logbuffer.clear();
+        }
         logInformation();
         if (mLogFileHandler != null)
             mLogFileHandler.sendEmptyMessage(LogFileHandler.TRIM_LOG_FILE);
@@ -249,33 +268,44 @@ public class VpnStatus {
                 nativeAPI, Build.VERSION.RELEASE, Build.ID, Build.FINGERPRINT, "", "");
     }
 
-    public synchronized static void addLogListener(LogListener ll) {
-        logListener.add(ll);
+    public static void addLogListener(LogListener ll) {
+        listeners.add(ll, ListenerRegistry.KIND_LOG, null);
     }
 
-    public synchronized static void removeLogListener(LogListener ll) {
-        logListener.remove(ll);
+    public static void removeLogListener(LogListener ll) {
+        listeners.remove(ll, ListenerRegistry.KIND_LOG);
     }
 
-    public synchronized static void addByteCountListener(ByteCountListener bcl) {
-        TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
-        bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(),diff.getDiffOut());
-        byteCountListener.add(bcl);
+    public static void addByteCountListener(ByteCountListener bcl) {
+        synchronized (byteCountLock) {
+            TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
+            listeners.add(bcl, ListenerRegistry.KIND_BYTECOUNT,
+                    new ByteCountEvent(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut(),
+                            mLastByteCountInterval));
+        }
     }
 
-    public synchronized static void removeByteCountListener(ByteCountListener bcl) {
-        byteCountListener.remove(bcl);
+    public static void removeByteCountListener(ByteCountListener bcl) {
+        listeners.remove(bcl, ListenerRegistry.KIND_BYTECOUNT);
     }
 
 
-    public synchronized static void addStateListener(StateListener sl) {
-        if (!stateListener.contains(sl)) {
-            stateListener.add(sl);
+    public static void addStateListener(StateListener sl) {
+        synchronized (stateLock) {
+            StateEvent current = null;
             if (mLaststate != null)
-                sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel, mLastIntent);
+                current = new StateEvent(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel, mLastIntent);
+            listeners.add(sl, ListenerRegistry.KIND_STATE, current);
         }
     }
 
+    /**
+     * @return Queue length, lag and drops of every registered listener
+     */
+    public static List<ListenerStats> getListenerStats() {
+        return listeners.getStats();
+    }
+
     private static int getLocalizedState(String state) {
         switch (state) {
             case "CONNECTING":
@@ -352,17 +382,31 @@ public class VpnStatus {
     }
 
 
-    public synchronized static void removeStateListener(StateListener sl) {
-        stateListener.remove(sl);
+    public static void removeStateListener(StateListener sl) {
+        listeners.remove(sl, ListenerRegistry.KIND_STATE);
     }
 
 
-    synchronized public static LogItem[] getlogbuffer() {
+    public static LogItem[] getlogbuffer() {
+        // Does not block the writers, items logged while copying may or may not be included
+        List<LogItem> items = logbuffer.snapshot();
+        return items.toArray(new LogItem[items.size()]);
+    }
 
-        // The stoned way of java to return an array from a vector
-        // brought to you by eclipse auto complete
-        return logbuffer.toArray(new LogItem[logbuffer.size()]);
+    /**
+     * @return Cursor that {@link #readLog} continues from to see only items logged after this call
+     */
+    static long getLogSequence() {
+        return logbuffer.nextSequence();
+    }
 
+    /**
+     * Hands the retained log items from the cursor on to the reader without blocking loggers
+     *
+     * @return Cursor for the next call
+     */
+    static long readLog(long cursor, LogRingBuffer.Reader<LogItem> reader) {
+        return logbuffer.readFrom(cursor, reader);
     }
 
     static void updateStateString(String state, String msg) {
@@ -375,29 +419,29 @@ public class VpnStatus {
         updateStateString(state, msg, rid, level);
     }
 
-    public synchronized static void updateStateString(String state, String msg, int resid, ConnectionStatus level)
+    public static void updateStateString(String state, String msg, int resid, ConnectionStatus level)
     {
         updateStateString(state, msg, resid, level, null);
     }
 
-    public synchronized static void updateStateString(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
-        // Workound for OpenVPN doing AUTH and wait and being connected
-        // Simply ignore these state
-        if (mLastLevel == ConnectionStatus.LEVEL_CONNECTED &&
-                (state.equals("WAIT") || state.equals("AUTH"))) {
-            newLogItem(new LogItem((LogLevel.DEBUG), String.format("Ignoring OpenVPN Status in CONNECTED state (%s->%s): %s", state, level.toString(), msg)));
-            return;
-        }
+    public static void updateStateString(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
+        synchronized (stateLock) {
+            // Workound for OpenVPN doing AUTH and wait and being connected
+            // Simply ignore these state
+            if (mLastLevel == ConnectionStatus.LEVEL_CONNECTED &&
+                    (state.equals("WAIT") || state.equals("AUTH"))) {
+                newLogItem(new LogItem((LogLevel.DEBUG), String.format("Ignoring OpenVPN Status in CONNECTED state (%s->%s): %s", state, level.toString(), msg)));
+                return;
+            }
 
-        mLaststate = state;
-        mLaststatemsg = msg;
-        mLastStateresid = resid;
-        mLastLevel = level;
-        mLastIntent = intent;
+            mLaststate = state;
+            mLaststatemsg = msg;
+            mLastStateresid = resid;
+            mLastLevel = level;
+            mLastIntent = intent;
 
 
-        for (StateListener sl : stateListener) {
-            sl.updateState(state, msg, resid, level, intent);
+            listeners.publish(new StateEvent(state, msg, resid, level, intent));
         }
         //newLogItem(new LogItem((LogLevel.DEBUG), String.format("New OpenVPN Status (%s->%s): %s",state,level.toString(),msg)));
     }
@@ -423,27 +467,18 @@ public class VpnStatus {
     }
 
 
-    synchronized static void newLogItem(LogItem logItem, boolean cachedLine) {
-        if (cachedLine) {
-            logbuffer.addFirst(logItem);
-        } else {
-            logbuffer.addLast(logItem);
-            if (mLogFileHandler != null) {
+    static void newLogItem(LogItem logItem, boolean cachedLine) {
+        synchronized (logWriteLock) {
+            // Lines restored from the log cache are not written back and keep their file order
+            logbuffer.publish(logItem);
+            if (!cachedLine && mLogFileHandler != null) {
                 Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
                 mLogFileHandler.sendMessage(m);
             }
         }
-
-        if (logbuffer.size() > MAXLOGENTRIES + MAXLOGENTRIES / 2) {
-            while (logbuffer.size() > MAXLOGENTRIES)
-                logbuffer.removeFirst();
-            if (mLogFileHandler != null)
-                mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
-        }
-
-        for (LogListener ll : logListener) {
-            ll.newLog(logItem);
-        }
+        // Outside the write lock: the lines of one thread reach listeners in order, lines logged
+        // at the same time by two threads may reach them in a different order than the buffer has
+        listeners.publish(new LogEvent(logItem));
     }
 
 
@@ -475,11 +510,112 @@ public class VpnStatus {
     }
 
 
-    public static synchronized void updateByteCount(long in, long out) {
-        TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
+    public static void updateByteCount(long in, long out) {
+        synchronized (byteCountLock) {
+            TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
+
+            // The counters are cumulative, so the difference covers all the time since the last count
+            long now = System.currentTimeMillis();
+            if (mLastByteCountTime != 0)
+                mLastByteCountInterval = Math.max(1, now - mLastByteCountTime);
+            mLastByteCountTime = now;
+
+            listeners.publish(new ByteCountEvent(in, out, diff.getDiffIn(), diff.getDiffOut(),
+                    mLastByteCountInterval));
+        }
+    }
+
+    private static class LogEvent extends ListenerRegistry.Event {
+        private final LogItem mLogItem;
+
+        LogEvent(LogItem logItem) {
+            super(ListenerRegistry.KIND_LOG);
+            mLogItem = logItem;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((LogListener) listener).newLog(mLogItem);
+        }
+
+        @Override
+        int dropPriority() {
+            LogLevel level = mLogItem.getLogLevel();
+            return level == LogLevel.DEBUG || level == LogLevel.VERBOSE ? 0 : 1;
+        }
+    }
+
+    private static class StateEvent extends ListenerRegistry.Event {
+        private final String mState;
+        private final String mMsg;
+        private final int mResid;
+        private final ConnectionStatus mLevel;
+        private final Intent mIntent;
+
+        StateEvent(String state, String msg, int resid, ConnectionStatus level, Intent intent) {
+            super(ListenerRegistry.KIND_STATE);
+            mState = state;
+            mMsg = msg;
+            mResid = resid;
+            mLevel = level;
+            mIntent = intent;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((StateListener) listener).updateState(mState, mMsg, mResid, mLevel, mIntent);
+        }
+    }
+
+    private static class ConnectedVPNEvent extends ListenerRegistry.Event {
+        private final String mUuid;
+
+        ConnectedVPNEvent(String uuid) {
+            super(ListenerRegistry.KIND_STATE);
+            mUuid = uuid;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((StateListener) listener).setConnectedVPN(mUuid);
+        }
+    }
+
+    private static class ByteCountEvent extends ListenerRegistry.Event {
+        private final long mIn;
+        private final long mOut;
+        private final long mDiffIn;
+        private final long mDiffOut;
+        private final long mIntervalMs;
+
+        ByteCountEvent(long in, long out, long diffIn, long diffOut, long intervalMs) {
+            super(ListenerRegistry.KIND_BYTECOUNT);
+            mIn = in;
+            mOut = out;
+            mDiffIn = diffIn;
+            mDiffOut = diffOut;
+            mIntervalMs = intervalMs;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((ByteCountListener) listener).updateByteCount(mIn, mOut, mDiffIn, mDiffOut, mIntervalMs);
+        }
+
+        @Override
+        int dropPriority() {
+            return 2;
+        }
 
-        for (ByteCountListener bcl : byteCountListener) {
-            bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+        @Override
+        ListenerRegistry.Event coalesce(ListenerRegistry.Event newer) {
+            if (!(newer instanceof ByteCountEvent))
+                return null;
+            // Totals from the newer count, the differences and their intervals add up so both
+            // traffic sums and rates stay right
+            ByteCountEvent n = (ByteCountEvent) newer;
+            return new ByteCountEvent(n.mIn, n.mOut, mDiffIn + n.mDiffIn, mDiffOut + n.mDiffOut,
+                    mIntervalMs + n.mIntervalMs);
         }
     }
 }
@@ -1,37 +1,61 @@
 package de.blinkt.openvpn.utils;
 
 import android.content.Context;
-import android.content.Intent;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import de.blinkt.openvpn.core.OpenVPNService;
+import de.blinkt.openvpn.core.VpnStatus;
 
 public class TotalTraffic {
 
-    public static final String TRAFFIC_ACTION = "traffic_action";
-
-    public static final String DOWNLOAD_ALL = "download_all";
-    public static final String DOWNLOAD_SESSION = "download_session";
-    public static final String UPLOAD_ALL = "upload_all";
-    public static final String UPLOAD_SESSION = "upload_session";
+    private static final String TRAFFIC_JOURNAL = "traffic.journal";
 
     public static long inTotal;
     public static long outTotal;
 
+    private static TrafficStore store;
+    private static String server;
+    private static String country;
 
-    public static void calcTraffic(Context context, long in, long out, long diffIn, long diffOut) {
-        List<String> totalTraffic = getTotalTraffic(context, diffIn, diffOut);
+    /**
+     * Server and country the following byte counts are accounted to
+     */
+    public static synchronized void setServer(String countryName, String serverName) {
+        country = countryName;
+        server = serverName;
+    }
 
-        Intent traffic = new Intent();
-        traffic.setAction(TRAFFIC_ACTION);
-        traffic.putExtra(DOWNLOAD_ALL, totalTraffic.get(0));
-        traffic.putExtra(DOWNLOAD_SESSION, OpenVPNService.humanReadableByteCount(in, false, context.getResources()));
-        traffic.putExtra(UPLOAD_ALL, totalTraffic.get(1));
-        traffic.putExtra(UPLOAD_SESSION, OpenVPNService.humanReadableByteCount(out, false, context.getResources()));
+    /**
+     * Per day, server and country usage, or null if the journal cannot be opened
+     */
+    public static synchronized TrafficStore getStore(Context context) {
+        if (store == null) {
+            File journal = new File(context.getFilesDir(), TRAFFIC_JOURNAL);
+            try {
+                store = new TrafficStore(journal);
+            } catch (IOException e) {
+                VpnStatus.logException("Opening traffic journal", e);
+                journal.delete();
+                try {
+                    store = new TrafficStore(journal);
+                } catch (IOException e2) {
+                    VpnStatus.logException("Recreating traffic journal", e2);
+                }
+            }
+        }
+        return store;
+    }
 
-        context.sendBroadcast(traffic);
+    /**
+     * Adds a byte count tick to the totals and the journal, nothing is formatted here
+     */
+    public static void calcTraffic(Context context, long in, long out, long diffIn, long diffOut) {
+        addToTotals(context, diffIn, diffOut);
+        accountTraffic(context, diffIn, diffOut);
     }
 
     public static List<String> getTotalTraffic(Context context) {
@@ -41,6 +65,15 @@ public class TotalTraffic {
     public static List<String> getTotalTraffic(Context context, long in, long out) {
         List<String> totalTraffic = new ArrayList<String>();
 
+        addToTotals(context, in, out);
+
+        totalTraffic.add(OpenVPNService.humanReadableByteCount(inTotal, false, context.getResources()));
+        totalTraffic.add(OpenVPNService.humanReadableByteCount(outTotal, false, context.getResources()));
+
+        return totalTraffic;
+    }
+
+    private static synchronized void addToTotals(Context context, long in, long out) {
         if (inTotal == 0)
             inTotal = PropertiesService.getDownloaded(context);
 
@@ -49,14 +82,35 @@ public class TotalTraffic {
 
         inTotal = inTotal + in;
         outTotal = outTotal + out;
+    }
 
-        totalTraffic.add(OpenVPNService.humanReadableByteCount(inTotal, false, context.getResources()));
-        totalTraffic.add(OpenVPNService.humanReadableByteCount(outTotal, false, context.getResources()));
+    private static synchronized void accountTraffic(Context context, long diffIn, long diffOut) {
+        TrafficStore ts = getStore(context);
+        if (ts == null)
+            return;
+        long now = System.currentTimeMillis();
+        ts.add(server, country, now, diffIn, diffOut);
+        try {
+            // The all time totals are written with the journal instead of on every tick
+            if (ts.flushIfDue(now))
+                saveTotals(context);
+        } catch (IOException e) {
+            VpnStatus.logException("Writing traffic journal", e);
+        }
+    }
 
-        return totalTraffic;
+    public static synchronized void saveTotal(Context context) {
+        TrafficStore ts = getStore(context);
+        try {
+            if (ts != null)
+                ts.flush();
+        } catch (IOException e) {
+            VpnStatus.logException("Writing traffic journal", e);
+        }
+        saveTotals(context);
     }
 
-    public static void saveTotal(Context context) {
+    private static void saveTotals(Context context) {
         if (inTotal != 0)
             PropertiesService.setDownloaded(context, inTotal);
 
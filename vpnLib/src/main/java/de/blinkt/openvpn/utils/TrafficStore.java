@@ -0,0 +1,339 @@
+package de.blinkt.openvpn.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Traffic usage per day and server, kept in an append-only journal. Byte counts are summed in
+ * memory and written as one record per (day, server) every {@link #flushIfDue(long)} interval,
+ * so a connection costs one small append a minute instead of a preference write per tick.
+ * The journal is read into an aggregate on open and rewritten when it holds many more records
+ * than days and servers, which also drops days older than {@link #KEEP_DAYS}.
+ */
+public class TrafficStore {
+
+    public static final long FLUSH_INTERVAL_MS = 60 * 1000;
+    public static final int KEEP_DAYS = 400;
+
+    private static final long DAY_MS = 24L * 3600 * 1000;
+    private static final int MAGIC = 0x54524631; // TRF1
+    private static final int COMPACT_SLACK = 256;
+
+    private final File file;
+    private final long flushInterval;
+    private final Map<Key, long[]> totals = new HashMap<>();
+    private final Map<Key, long[]> pending = new HashMap<>();
+    private int recordsOnDisk;
+    private long lastFlush;
+
+    public static class Usage {
+        private long bytesIn;
+        private long bytesOut;
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getTotal() {
+            return bytesIn + bytesOut;
+        }
+    }
+
+    private static final class Key {
+        final int day;
+        final String server;
+        final String country;
+
+        Key(int day, String server, String country) {
+            this.day = day;
+            this.server = server == null ? "" : server;
+            this.country = country == null ? "" : country;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return day == k.day && server.equals(k.server) && country.equals(k.country);
+        }
+
+        @Override
+        public int hashCode() {
+            return (day * 31 + server.hashCode()) * 31 + country.hashCode();
+        }
+    }
+
+    public TrafficStore(File file) throws IOException {
+        this(file, FLUSH_INTERVAL_MS);
+    }
+
+    public TrafficStore(File file, long flushInterval) throws IOException {
+        this.file = file;
+        this.flushInterval = flushInterval;
+        load();
+    }
+
+    /**
+     * Days since the epoch in the default time zone, the key used for all records
+     */
+    public static int dayOf(long timestamp) {
+        return (int) ((timestamp + TimeZone.getDefault().getOffset(timestamp)) / DAY_MS);
+    }
+
+    /**
+     * First day of the week containing timestamp, following the default locale
+     */
+    public static int firstDayOfWeek(long timestamp) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timestamp);
+        int back = (cal.get(Calendar.DAY_OF_WEEK) - cal.getFirstDayOfWeek() + 7) % 7;
+        return dayOf(timestamp) - back;
+    }
+
+    public synchronized void add(String server, String country, long timestamp, long diffIn, long diffOut) {
+        if (diffIn <= 0 && diffOut <= 0)
+            return;
+        Key key = new Key(dayOf(timestamp), server, country);
+        long[] sum = pending.get(key);
+        if (sum == null) {
+            sum = new long[2];
+            pending.put(key, sum);
+        }
+        sum[0] += Math.max(0, diffIn);
+        sum[1] += Math.max(0, diffOut);
+    }
+
+    /**
+     * Writes the pending counts if the last write is at least the flush interval ago
+     *
+     * @return true if something was written
+     */
+    public synchronized boolean flushIfDue(long now) throws IOException {
+        if (lastFlush == 0)
+            lastFlush = now;
+        if (now - lastFlush < flushInterval)
+            return false;
+        lastFlush = now;
+        return flush();
+    }
+
+    public synchronized boolean flush() throws IOException {
+        if (pending.isEmpty())
+            return false;
+
+        boolean fresh = !file.exists() || file.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            if (fresh)
+                out.writeInt(MAGIC);
+            for (Map.Entry<Key, long[]> e : pending.entrySet()) {
+                writeRecord(out, e.getKey(), e.getValue());
+                merge(e.getKey(), e.getValue()[0], e.getValue()[1]);
+                recordsOnDisk++;
+            }
+        } finally {
+            out.close();
+        }
+        pending.clear();
+
+        if (recordsOnDisk > 2 * totals.size() + COMPACT_SLACK)
+            compact(dayOf(System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Usage between the two days including both, counting what is not flushed yet
+     *
+     * @param server  only this server, or null for all
+     * @param country only this country, or null for all
+     */
+    public synchronized Usage query(int fromDay, int toDay, String server, String country) {
+        Usage usage = new Usage();
+        sum(totals, usage, fromDay, toDay, server, country);
+        sum(pending, usage, fromDay, toDay, server, country);
+        return usage;
+    }
+
+    public Usage today() {
+        int day = dayOf(System.currentTimeMillis());
+        return query(day, day, null, null);
+    }
+
+    public Usage thisWeek() {
+        long now = System.currentTimeMillis();
+        return query(firstDayOfWeek(now), dayOf(now), null, null);
+    }
+
+    /**
+     * Usage between the two days including both, per country
+     */
+    public synchronized Map<String, Usage> byCountry(int fromDay, int toDay) {
+        Map<String, Usage> result = new HashMap<>();
+        group(totals, result, fromDay, toDay, true);
+        group(pending, result, fromDay, toDay, true);
+        return result;
+    }
+
+    /**
+     * Usage between the two days including both, per server
+     */
+    public synchronized Map<String, Usage> byServer(int fromDay, int toDay) {
+        Map<String, Usage> result = new HashMap<>();
+        group(totals, result, fromDay, toDay, false);
+        group(pending, result, fromDay, toDay, false);
+        return result;
+    }
+
+    public synchronized void clear() {
+        totals.clear();
+        pending.clear();
+        recordsOnDisk = 0;
+        file.delete();
+    }
+
+    int getRecordsOnDisk() {
+        return recordsOnDisk;
+    }
+
+    private static void sum(Map<Key, long[]> map, Usage usage, int fromDay, int toDay, String server, String country) {
+        for (Map.Entry<Key, long[]> e : map.entrySet()) {
+            Key k = e.getKey();
+            if (k.day < fromDay || k.day > toDay)
+                continue;
+            if (server != null && !server.equals(k.server))
+                continue;
+            if (country != null && !country.equals(k.country))
+                continue;
+            usage.bytesIn += e.getValue()[0];
+            usage.bytesOut += e.getValue()[1];
+        }
+    }
+
+    private static void group(Map<Key, long[]> map, Map<String, Usage> result, int fromDay, int toDay, boolean byCountry) {
+        for (Map.Entry<Key, long[]> e : map.entrySet()) {
+            Key k = e.getKey();
+            if (k.day < fromDay || k.day > toDay)
+                continue;
+            String name = byCountry ? k.country : k.server;
+            Usage usage = result.get(name);
+            if (usage == null) {
+                usage = new Usage();
+                result.put(name, usage);
+            }
+            usage.bytesIn += e.getValue()[0];
+            usage.bytesOut += e.getValue()[1];
+        }
+    }
+
+    private void merge(Key key, long in, long out) {
+        long[] sum = totals.get(key);
+        if (sum == null) {
+            sum = new long[2];
+            totals.put(key, sum);
+        }
+        sum[0] += in;
+        sum[1] += out;
+    }
+
+    private static void writeRecord(DataOutputStream out, Key key, long[] counts) throws IOException {
+        out.writeInt(key.day);
+        out.writeUTF(key.server);
+        out.writeUTF(key.country);
+        out.writeLong(counts[0]);
+        out.writeLong(counts[1]);
+    }
+
+    private void load() throws IOException {
+        if (!file.exists())
+            return;
+
+        // Compaction keeps the journal to a few hundred records, read it in one go
+        byte[] journal = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            new DataInputStream(fis).readFully(journal);
+        } finally {
+            fis.close();
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(journal);
+        DataInputStream in = new DataInputStream(bytes);
+        int good = 0;
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a traffic journal: " + file);
+            good = 4;
+            while (bytes.available() > 0) {
+                int day = in.readInt();
+                String server = in.readUTF();
+                String country = in.readUTF();
+                long bytesIn = in.readLong();
+                long bytesOut = in.readLong();
+                merge(new Key(day, server, country), bytesIn, bytesOut);
+                recordsOnDisk++;
+                good = journal.length - bytes.available();
+            }
+        } catch (EOFException ignored) {
+            // A record cut off when the process died while writing it
+        }
+
+        if (good < journal.length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        }
+        compact(dayOf(System.currentTimeMillis()));
+    }
+
+    /**
+     * Rewrites the journal with one record per day and server if it has grown past the slack or
+     * holds expired days
+     */
+    private void compact(int today) throws IOException {
+        boolean expired = false;
+        for (Iterator<Key> it = totals.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().day <= today - KEEP_DAYS) {
+                it.remove();
+                expired = true;
+            }
+        }
+        if (!expired && recordsOnDisk <= 2 * totals.size() + COMPACT_SLACK)
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            for (Map.Entry<Key, long[]> e : totals.entrySet())
+                writeRecord(out, e.getKey(), e.getValue());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        recordsOnDisk = totals.size();
+    }
+}
@@ -0,0 +1,177 @@
+package de.blinkt.openvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import de.blinkt.openvpn.core.ConfigParser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Profile reuse of the connect path in {@link OpenVpnApi#prepareProfile}. Profiles are parsed by
+ * the real ConfigParser, only checkProfile, which needs a Context, is left out.
+ */
+public class OpenVpnApiTest {
+
+    private static final String PACKAGE = "com.example.vpn";
+
+    @Test
+    public void reusesParsedProfileForSameConfig() throws Exception {
+        Host host = new Host();
+        String config = config(new Random(1));
+
+        VpnProfile first = connect(host, config, "JP", "vpn", "vpn", null);
+        VpnProfile second = connect(host, config, "JP", "vpn", "vpn", null);
+
+        assertSame(first, second);
+        assertEquals(1, host.parsed);
+        assertEquals(1, host.saved);
+        assertTrue(first.mConnections[0].mServerName.startsWith("219.100.37.1"));
+    }
+
+    @Test
+    public void parsesOtherConfig() throws Exception {
+        Host host = new Host();
+
+        VpnProfile first = connect(host, config(new Random(2)), "JP", "vpn", "vpn", null);
+        VpnProfile second = connect(host, config(new Random(3)), "JP", "vpn", "vpn", null);
+
+        assertNotSame(first, second);
+        assertEquals(2, host.parsed);
+        assertEquals(2, host.saved);
+    }
+
+    @Test
+    public void savesAgainWhenSettingsChange() throws Exception {
+        Host host = new Host();
+        String config = config(new Random(4));
+        connect(host, config, "JP", "vpn", "vpn", null);
+
+        connect(host, config, "KR", "vpn", "vpn", null);
+        assertEquals(2, host.saved);
+        connect(host, config, "KR", "user", "vpn", null);
+        assertEquals(3, host.saved);
+        connect(host, config, "KR", "user", "secret", null);
+        assertEquals(4, host.saved);
+        VpnProfile profile = connect(host, config, "KR", "user", "secret", "jp");
+        assertEquals(5, host.saved);
+
+        assertEquals("KR", profile.mName);
+        assertEquals("user", profile.mUsername);
+        assertEquals("secret", profile.mPassword);
+        assertEquals("jp", profile.mBypassLists);
+        assertEquals(PACKAGE, profile.mProfileCreator);
+        assertEquals(1, host.parsed);
+    }
+
+    @Test
+    public void savesAgainWhenAnotherProfileWasSaved() throws Exception {
+        Host host = new Host();
+        String config = config(new Random(5));
+        connect(host, config, "JP", "vpn", "vpn", null);
+        connect(host, config(new Random(6)), "JP", "vpn", "vpn", null);
+
+        connect(host, config, "JP", "vpn", "vpn", null);
+        assertEquals(3, host.saved);
+        assertEquals(2, host.parsed);
+    }
+
+    @Test
+    public void reconnectIsMuchFasterThanFirstConnect() throws Exception {
+        Host host = new Host();
+        int count = 300;
+        String[] configs = new String[count];
+        for (int i = 0; i < count; i++)
+            configs[i] = config(new Random(1000 + i));
+
+        // Warm up on other configs
+        for (int i = 0; i < count; i++) {
+            String config = config(new Random(5000 + i));
+            connect(host, config, "JP", "vpn", "vpn", null);
+            connect(host, config, "JP", "vpn", "vpn", null);
+        }
+
+        long firstConnects = 0;
+        long reconnects = 0;
+        for (String config : configs) {
+            long start = System.nanoTime();
+            connect(host, config, "JP", "vpn", "vpn", null);
+            long middle = System.nanoTime();
+            connect(host, config, "JP", "vpn", "vpn", null);
+            firstConnects += middle - start;
+            reconnects += System.nanoTime() - middle;
+        }
+
+        assertEquals(2 * count, host.parsed);
+        assertEquals(2 * count, host.saved);
+        // Hashing the config has to stay well below parsing it
+        assertTrue("first connects " + firstConnects / count + " ns, reconnects " + reconnects / count + " ns",
+                reconnects * 3 < firstConnects);
+    }
+
+    private static VpnProfile connect(Host host, String config, String name, String user, String pw, String bypass) throws Exception {
+        return OpenVpnApi.prepareProfile(host, config, PACKAGE, name, user, pw, bypass);
+    }
+
+    private static final class Host implements OpenVpnApi.ProfileHost {
+        int parsed;
+        int saved;
+        VpnProfile savedProfile;
+
+        @Override
+        public VpnProfile parse(String inlineConfig) {
+            parsed++;
+            ConfigParser cp = new ConfigParser();
+            try {
+                cp.parseConfig(new StringReader(inlineConfig));
+                return cp.convertProfile();
+            } catch (IOException | ConfigParser.ConfigParseError e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public boolean isSaved(VpnProfile profile) {
+            return profile == savedProfile;
+        }
+
+        @Override
+        public void save(VpnProfile profile) {
+            saved++;
+            savedProfile = profile;
+        }
+    }
+
+    /**
+     * A config shaped like the ones VPN Gate hands out
+     */
+    private static String config(Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("###############################################################################\n");
+        sb.append("# OpenVPN 2.0 Sample Configuration File\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("# comment line ").append(i).append('\n');
+        }
+        sb.append("dev tun\nproto udp\nremote 219.100.37.1").append(random.nextInt(100)).append(" 1194\n");
+        sb.append("cipher AES-128-CBC\nauth SHA1\nresolv-retry infinite\nnobind\npersist-key\n");
+        sb.append("persist-tun\nclient\nverb 3\n");
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (String block : new String[]{"ca", "cert", "key"}) {
+            sb.append('<').append(block).append(">\n-----BEGIN CERTIFICATE-----\n");
+            for (int line = 0; line < 30; line++) {
+                for (int c = 0; c < 64; c++) {
+                    sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                sb.append('\n');
+            }
+            sb.append("-----END CERTIFICATE-----\n</").append(block).append(">\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Subscription handling of {@link ByteCountStats} and the byte count interval it drives
+ */
+public class ByteCountStatsTest {
+
+    private static class Recorder implements ByteCountStats.StatsListener {
+        int calls;
+        long lastIn;
+        long lastConnectedMs;
+
+        @Override
+        public void onStats(long in, long out, long inPerSecond, long outPerSecond, long connectedMs, long sinceReceiveMs) {
+            calls++;
+            lastIn = in;
+            lastConnectedMs = connectedMs;
+        }
+    }
+
+    @Test
+    public void deliversOnlyToAttachedListeners() {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        assertFalse(ByteCountStats.hasListeners());
+
+        ByteCountStats.addStatsListener(a);
+        ByteCountStats.addStatsListener(a);
+        ByteCountStats.addStatsListener(b);
+        assertTrue(ByteCountStats.hasListeners());
+        ByteCountStats.publish(1000, 100, 500, 50, 2000, 0);
+        assertEquals(1, a.calls);
+        assertEquals(1000, b.lastIn);
+        assertEquals(2000, b.lastConnectedMs);
+
+        ByteCountStats.removeStatsListener(a);
+        ByteCountStats.publish(2000, 200, 500, 50, 4000, 0);
+        assertEquals(1, a.calls);
+        assertEquals(2, b.calls);
+
+        ByteCountStats.removeStatsListener(b);
+        ByteCountStats.removeStatsListener(b);
+        assertFalse(ByteCountStats.hasListeners());
+    }
+
+    @Test
+    public void tellsObserverAboutFirstAndLastListener() {
+        final StringBuilder changes = new StringBuilder();
+        ByteCountStats.setAttachObserver(new ByteCountStats.AttachObserver() {
+            @Override
+            public void onAttachChanged(boolean attached) {
+                changes.append(attached ? '+' : '-');
+            }
+        });
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        ByteCountStats.removeStatsListener(a);
+        ByteCountStats.addStatsListener(a);
+        ByteCountStats.addStatsListener(b);
+        ByteCountStats.removeStatsListener(a);
+        ByteCountStats.removeStatsListener(b);
+        ByteCountStats.addStatsListener(b);
+        ByteCountStats.removeStatsListener(b);
+        ByteCountStats.setAttachObserver(null);
+        assertEquals("+-+-", changes.toString());
+    }
+
+    @Test
+    public void intervalFollowsWhatIsVisible() {
+        assertEquals(BytecountPolicy.FAST, BytecountPolicy.interval(true, true, false));
+        assertEquals(BytecountPolicy.SLOW, BytecountPolicy.interval(false, true, false));
+        assertEquals(BytecountPolicy.SLOW, BytecountPolicy.interval(true, true, true));
+    }
+
+    @Test
+    public void keepsCountingWithTheScreenOff() {
+        // Totals and the traffic journal need counts up to the end of the connection
+        assertEquals(BytecountPolicy.SLOW, BytecountPolicy.interval(false, false, false));
+        assertEquals(BytecountPolicy.SLOW, BytecountPolicy.interval(true, false, false));
+        assertEquals(BytecountPolicy.SLOW, BytecountPolicy.interval(false, false, true));
+    }
+}
@@ -0,0 +1,62 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * LRU behaviour and keys of {@link ConfigHashCache}. How the connect path uses it is covered by
+ * OpenVpnApiTest.
+ */
+public class ConfigHashCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ConfigHashCache<String> cache = new ConfigHashCache<>(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+    }
+
+    @Test
+    public void keyIsStableAndContentBased() {
+        String config = config(new Random(1));
+        assertEquals(ConfigHashCache.key(config), ConfigHashCache.key(new String(config.toCharArray())));
+        assertNotEquals(ConfigHashCache.key(config), ConfigHashCache.key(config + "\n"));
+        assertEquals(64, ConfigHashCache.key(config).length());
+    }
+
+    private static String config(Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("###############################################################################\n");
+        sb.append("# OpenVPN 2.0 Sample Configuration File\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("# comment line ").append(i).append('\n');
+        }
+        sb.append("dev tun\nproto udp\nremote 219.100.37.").append(random.nextInt(255)).append(" 1194\n");
+        sb.append("cipher AES-128-CBC\nauth SHA1\nresolv-retry infinite\nnobind\npersist-key\n");
+        sb.append("persist-tun\nclient\nverb 3\n");
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (String block : new String[]{"ca", "cert", "key"}) {
+            sb.append('<').append(block).append(">\n-----BEGIN CERTIFICATE-----\n");
+            for (int line = 0; line < 30; line++) {
+                for (int c = 0; c < 64; c++) {
+                    sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                sb.append('\n');
+            }
+            sb.append("-----END CERTIFICATE-----\n</").append(block).append(">\n");
+        }
+        return sb.toString();
+    }
+}
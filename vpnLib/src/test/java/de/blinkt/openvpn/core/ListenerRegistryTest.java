@@ -0,0 +1,285 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queueing, overflow and lag accounting of {@link ListenerRegistry}
+ */
+public class ListenerRegistryTest {
+
+    private static final int DEBUG = 0;
+    private static final int INFO = 1;
+
+    /**
+     * Runs queued tasks only when asked to, so the test controls when listeners catch up
+     */
+    private static class ManualExecutor implements java.util.concurrent.Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.poll().run();
+        }
+    }
+
+    private static class Recorder {
+        final List<String> events = new ArrayList<>();
+    }
+
+    private static class Log extends ListenerRegistry.Event {
+        final String text;
+        final int priority;
+
+        Log(String text, int priority) {
+            super(ListenerRegistry.KIND_LOG);
+            this.text = text;
+            this.priority = priority;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((Recorder) listener).events.add(text);
+        }
+
+        @Override
+        int dropPriority() {
+            return priority;
+        }
+    }
+
+    private static class State extends ListenerRegistry.Event {
+        final String state;
+
+        State(String state) {
+            super(ListenerRegistry.KIND_STATE);
+            this.state = state;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((Recorder) listener).events.add("state " + state);
+        }
+    }
+
+    private static class Bytes extends ListenerRegistry.Event {
+        final long total;
+        final long diff;
+
+        Bytes(long total, long diff) {
+            super(ListenerRegistry.KIND_BYTECOUNT);
+            this.total = total;
+            this.diff = diff;
+        }
+
+        @Override
+        void deliver(Object listener) {
+            ((Recorder) listener).events.add("bytes " + total + "/" + diff);
+        }
+
+        @Override
+        int dropPriority() {
+            return 2;
+        }
+
+        @Override
+        ListenerRegistry.Event coalesce(ListenerRegistry.Event newer) {
+            if (!(newer instanceof Bytes))
+                return null;
+            return new Bytes(((Bytes) newer).total, diff + ((Bytes) newer).diff);
+        }
+    }
+
+    @Test
+    public void deliversInitialEventFirstAndOnlySubscribedKinds() {
+        ManualExecutor executor = new ManualExecutor();
+        ListenerRegistry registry = new ListenerRegistry(executor, 16);
+        Recorder recorder = new Recorder();
+
+        assertTrue(registry.add(recorder, ListenerRegistry.KIND_STATE, new State("NOPROCESS")));
+        assertFalse(registry.add(recorder, ListenerRegistry.KIND_STATE, new State("again")));
+        registry.publish(new Log("not subscribed", INFO));
+        registry.publish(new State("CONNECTED"));
+        executor.runAll();
+
+        assertEquals("[state NOPROCESS, state CONNECTED]", recorder.events.toString());
+
+        registry.remove(recorder, ListenerRegistry.KIND_STATE);
+        registry.publish(new State("EXITING"));
+        executor.runAll();
+        assertEquals(2, recorder.events.size());
+        assertTrue(registry.getStats().isEmpty());
+    }
+
+    @Test
+    public void coalescesTrailingByteCountsOnly() {
+        ManualExecutor executor = new ManualExecutor();
+        ListenerRegistry registry = new ListenerRegistry(executor, 16);
+        Recorder recorder = new Recorder();
+        registry.add(recorder, ListenerRegistry.KIND_BYTECOUNT | ListenerRegistry.KIND_STATE, null);
+
+        registry.publish(new Bytes(10, 10));
+        registry.publish(new Bytes(30, 20));
+        registry.publish(new State("RECONNECTING"));
+        registry.publish(new Bytes(35, 5));
+        registry.publish(new Bytes(50, 15));
+        executor.runAll();
+
+        // Byte counts are not moved across the state change
+        assertEquals("[bytes 30/30, state RECONNECTING, bytes 50/20]", recorder.events.toString());
+        assertEquals(2, registry.getStats().get(0).getCoalesced());
+    }
+
+    @Test
+    public void dropsDebugLogsFirstAndNeverStates() {
+        ManualExecutor executor = new ManualExecutor();
+        ListenerRegistry registry = new ListenerRegistry(executor, 4);
+        Recorder recorder = new Recorder();
+        registry.add(recorder, ListenerRegistry.KIND_LOG | ListenerRegistry.KIND_STATE, null);
+
+        registry.publish(new Log("debug 1", DEBUG));
+        registry.publish(new Log("info 1", INFO));
+        registry.publish(new Log("debug 2", DEBUG));
+        registry.publish(new Log("info 2", INFO));
+        // Full: pushes out debug 1, then debug 2
+        registry.publish(new Log("info 3", INFO));
+        registry.publish(new State("CONNECTED"));
+        // Only info and states left, a new debug line is the one dropped
+        registry.publish(new Log("debug 3", DEBUG));
+        // States push out the info lines, then queue beyond the bound
+        registry.publish(new State("RECONNECTING"));
+        registry.publish(new State("WAIT"));
+        registry.publish(new State("AUTH"));
+        registry.publish(new State("CONNECTED"));
+
+        ListenerStats stats = registry.getStats().get(0);
+        assertEquals(5, stats.getPending());
+        assertEquals(6, stats.getDropped());
+
+        executor.runAll();
+        assertEquals("[state CONNECTED, state RECONNECTING, state WAIT, state AUTH, state CONNECTED]",
+                recorder.events.toString());
+    }
+
+    @Test
+    public void throwingListenerKeepsGettingEvents() {
+        ManualExecutor executor = new ManualExecutor();
+        final List<String> failures = new ArrayList<>();
+        ListenerRegistry registry = new ListenerRegistry(executor, 16) {
+            @Override
+            void onDeliveryFailed(Object listener, RuntimeException e) {
+                failures.add(e.getMessage());
+            }
+        };
+        Recorder recorder = new Recorder();
+        registry.add(recorder, ListenerRegistry.KIND_STATE, null);
+
+        registry.publish(new State("CONNECTING"));
+        registry.publish(new ListenerRegistry.Event(ListenerRegistry.KIND_STATE) {
+            @Override
+            void deliver(Object listener) {
+                throw new IllegalStateException("broken");
+            }
+        });
+        registry.publish(new State("CONNECTED"));
+        executor.runAll();
+
+        assertEquals("[broken]", failures.toString());
+        assertEquals("[state CONNECTING, state CONNECTED]", recorder.events.toString());
+
+        // The queue is not left marked as scheduled
+        registry.publish(new State("EXITING"));
+        executor.runAll();
+        assertEquals(3, recorder.events.size());
+    }
+
+    @Test
+    public void slowListenerDoesNotStallPublisherOrOthers() throws InterruptedException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ListenerRegistry registry = new ListenerRegistry(executor, 64);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder slow = new Recorder() {
+        };
+        final AtomicInteger fastDelivered = new AtomicInteger();
+        registry.add(slow, ListenerRegistry.KIND_LOG, new ListenerRegistry.Event(ListenerRegistry.KIND_LOG) {
+            @Override
+            void deliver(Object listener) {
+                try {
+                    started.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Object fast = new Object();
+        registry.add(fast, ListenerRegistry.KIND_LOG, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000; i++) {
+            registry.publish(new ListenerRegistry.Event(ListenerRegistry.KIND_LOG) {
+                @Override
+                void deliver(Object listener) {
+                    if (!(listener instanceof Recorder))
+                        fastDelivered.incrementAndGet();
+                }
+
+                @Override
+                int dropPriority() {
+                    return DEBUG;
+                }
+            });
+        }
+
+        long published = System.currentTimeMillis();
+
+        // Wait until the fast listener has worked through its queue
+        long deadline = published + 5000;
+        long checked;
+        ListenerStats slowStats;
+        ListenerStats fastStats;
+        do {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.yield();
+            checked = System.currentTimeMillis();
+            slowStats = null;
+            fastStats = null;
+            for (ListenerStats stats : registry.getStats()) {
+                if (stats.getListener().equals(Object.class.getName()))
+                    fastStats = stats;
+                else
+                    slowStats = stats;
+            }
+        } while (fastStats.getPending() != 0);
+        // The fast listener kept up apart from what the publishing burst overran
+        assertEquals(1000, fastDelivered.get() + fastStats.getDropped());
+        assertTrue(fastDelivered.get() >= 64);
+        assertEquals(64, slowStats.getPending());
+        assertEquals(1000 - 64, slowStats.getDropped());
+        // Its oldest event has been waiting since before the burst ended
+        assertTrue(slowStats.getLagMillis() >= checked - published);
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+}
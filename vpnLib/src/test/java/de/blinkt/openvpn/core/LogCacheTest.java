@@ -0,0 +1,205 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips, segment rotation, damage handling and oversized records of {@link LogCache}
+ */
+public class LogCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SMALL_SEGMENT = 64 * 1024;
+
+    private static class Collector implements LogCache.RecordReader {
+        final List<String> records = new ArrayList<>();
+        final List<String> corrupt = new ArrayList<>();
+
+        @Override
+        public void onRecord(byte[] data, int offset, int length) {
+            records.add(new String(data, offset, length, UTF_8));
+        }
+
+        @Override
+        public void onCorruptBlock(String segment, int position, String reason) {
+            corrupt.add(segment + ": " + reason);
+        }
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("logcache", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    private static String line(int i) {
+        return "line " + i + " MANAGEMENT: >BYTECOUNT:" + i * 1500L;
+    }
+
+    private static void write(LogCache cache, int from, int to, int flushEvery) throws IOException {
+        for (int i = from; i < to; i++) {
+            final byte[] bytes = line(i).getBytes(UTF_8);
+            cache.append(bb -> bb.put(bytes));
+            if (flushEvery > 0 && i % flushEvery == flushEvery - 1)
+                cache.flush();
+        }
+    }
+
+    @Test
+    public void roundTripsAndContinuesAfterReopen() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir);
+        write(cache, 0, 3000, 7);
+        cache.close();
+
+        cache = new LogCache(dir);
+        write(cache, 3000, 3010, 0);
+        cache.close();
+        assertEquals(1, LogCache.listSegments(dir).length);
+
+        Collector all = new Collector();
+        assertEquals(3010, LogCache.read(dir, Integer.MAX_VALUE, all));
+        assertEquals(line(0), all.records.get(0));
+        assertEquals(line(3009), all.records.get(3009));
+
+        Collector newest = new Collector();
+        assertEquals(1000, LogCache.read(dir, 1000, newest));
+        assertEquals(all.records.subList(2010, 3010), newest.records);
+        assertTrue(all.corrupt.isEmpty());
+    }
+
+    @Test
+    public void rotatesAndDropsOldestSegments() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir, SMALL_SEGMENT, 3);
+        write(cache, 0, 20000, 50);
+        cache.close();
+
+        long[] segments = LogCache.listSegments(dir);
+        assertEquals(3, segments.length);
+        assertEquals(segments[0] + 2, segments[2]);
+
+        Collector collector = new Collector();
+        int read = LogCache.read(dir, Integer.MAX_VALUE, collector);
+        // Whatever is left ends with the newest line and has no holes
+        assertEquals(line(19999), collector.records.get(read - 1));
+        assertEquals(line(20000 - read), collector.records.get(0));
+        assertTrue(read > 2000);
+        assertTrue(collector.corrupt.isEmpty());
+    }
+
+    @Test
+    public void truncateDropsEverything() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir, SMALL_SEGMENT, 3);
+        write(cache, 0, 5000, 50);
+        cache.truncate();
+        write(cache, 5000, 5002, 0);
+        cache.close();
+
+        Collector collector = new Collector();
+        LogCache.read(dir, 1000, collector);
+        assertEquals(2, collector.records.size());
+        assertEquals(line(5000), collector.records.get(0));
+    }
+
+    @Test
+    public void skipsDamagedBlockAndTornBlock() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir);
+        write(cache, 0, 30, 10);
+        cache.close();
+
+        File segment = new File(dir, "segment-" + LogCache.listSegments(dir)[0] + ".log");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(LogCache.FILE_HEADER_SIZE + 4);
+        int firstLength = raf.readInt();
+        long secondBlock = LogCache.FILE_HEADER_SIZE + LogCache.BLOCK_HEADER_SIZE + firstLength
+                + LogCache.BLOCK_TRAILER_SIZE;
+        raf.seek(secondBlock + 4);
+        int secondLength = raf.readInt();
+        long thirdBlock = secondBlock + LogCache.BLOCK_HEADER_SIZE + secondLength + LogCache.BLOCK_TRAILER_SIZE;
+        raf.seek(thirdBlock + 4);
+        int thirdLength = raf.readInt();
+        long end = thirdBlock + LogCache.BLOCK_HEADER_SIZE + thirdLength + LogCache.BLOCK_TRAILER_SIZE;
+
+        // Flip a payload byte of the second block
+        long target = secondBlock + LogCache.BLOCK_HEADER_SIZE + 10;
+        raf.seek(target);
+        int b = raf.read();
+        raf.seek(target);
+        raf.write(b ^ 0xff);
+        // A block copied without its magic, as when the process died during flush
+        raf.seek(end + 4);
+        raf.writeInt(500);
+        raf.close();
+
+        Collector collector = new Collector();
+        assertEquals(20, LogCache.read(dir, 1000, collector));
+        assertEquals(line(9), collector.records.get(9));
+        assertEquals(line(20), collector.records.get(10));
+        assertEquals(1, collector.corrupt.size());
+
+        // Reopening clears the torn block and appends behind the intact ones
+        cache = new LogCache(dir);
+        write(cache, 30, 31, 0);
+        cache.close();
+        collector = new Collector();
+        assertEquals(21, LogCache.read(dir, 1000, collector));
+        assertEquals(line(30), collector.records.get(20));
+    }
+
+    @Test
+    public void recordLargerThanABlockLeavesTheBlockIntact() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir);
+        write(cache, 0, 3, 0);
+        final byte[] huge = new byte[LogCache.BLOCK_SIZE + 1];
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                cache.append(bb -> bb.put(huge));
+                fail("record larger than a block accepted");
+            } catch (BufferOverflowException expected) {
+            }
+        }
+        write(cache, 3, 5, 0);
+        cache.close();
+
+        Collector collector = new Collector();
+        assertEquals(5, LogCache.read(dir, 1000, collector));
+        assertEquals(line(4), collector.records.get(4));
+        assertTrue(collector.corrupt.isEmpty());
+    }
+
+    @Test
+    public void keepsTheNewestSegmentsUnderSustainedLogging() throws IOException {
+        File dir = tempDir();
+        LogCache cache = new LogCache(dir);
+        int line = 0;
+        // Several segment rotations
+        for (int burst = 0; burst < 4000; burst++, line += 50) {
+            write(cache, line, line + 50, 0);
+            cache.flush();
+        }
+        cache.close();
+
+        Collector collector = new Collector();
+        assertEquals(1000, LogCache.read(dir, 1000, collector));
+        assertEquals(line(line - 1), collector.records.get(999));
+        assertTrue(collector.corrupt.isEmpty());
+        assertEquals(LogCache.MAX_SEGMENTS, LogCache.listSegments(dir).length);
+    }
+}
@@ -0,0 +1,105 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Framing, bounds and resuming of the {@link LogReplay} stream
+ */
+public class LogReplayTest {
+
+    private static final long EPOCH = 42;
+
+    private static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static LogRingBuffer<LogItem> log(int items) {
+        LogRingBuffer<LogItem> log = new LogRingBuffer<>(1024);
+        for (int i = 0; i < items; i++)
+            log.publish(new LogItem(VpnStatus.LogLevel.INFO, "line " + i + " MANAGEMENT: >BYTECOUNT:" + i * 1500L));
+        return log;
+    }
+
+    private static List<String> read(byte[] stream, long[] position) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        LogReplay.Position p = LogReplay.read(new DataInputStream(new ByteArrayInputStream(stream)),
+                item -> lines.add(item.getString(null)));
+        position[0] = p.epoch;
+        position[1] = p.cursor;
+        return lines;
+    }
+
+    @Test
+    public void replaysInFewFrames() throws IOException {
+        LogRingBuffer<LogItem> log = log(1000);
+        CountingStream out = new CountingStream();
+        LogReplay.write(out, log::readFrom, EPOCH, 0, log.nextSequence());
+
+        long[] position = new long[2];
+        List<String> lines = read(out.toByteArray(), position);
+        assertEquals(1000, lines.size());
+        assertEquals("line 0 MANAGEMENT: >BYTECOUNT:0", lines.get(0));
+        assertEquals("line 999 MANAGEMENT: >BYTECOUNT:1498500", lines.get(999));
+        assertEquals(EPOCH, position[0]);
+        assertEquals(1000, position[1]);
+        // Frames of 64 kB, not one write per item
+        assertTrue(out.writes <= out.size() / (LogReplay.FRAME_SIZE / 2) + 2);
+    }
+
+    @Test
+    public void dropsItemsTooLargeForTheReader() throws IOException {
+        LogRingBuffer<LogItem> log = new LogRingBuffer<>(16);
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() <= LogReplay.MAX_ITEM_SIZE)
+            huge.append("0123456789abcdef");
+        log.publish(new LogItem(VpnStatus.LogLevel.INFO, "before"));
+        // Over 16 kB for the read buffer and over 32 kB for the short length
+        log.publish(new LogItem(VpnStatus.LogLevel.INFO, huge.toString()));
+        log.publish(new LogItem(VpnStatus.LogLevel.INFO, huge.toString() + huge));
+        log.publish(new LogItem(VpnStatus.LogLevel.INFO, "after"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogReplay.write(out, log::readFrom, EPOCH, 0, log.nextSequence());
+
+        long[] position = new long[2];
+        List<String> lines = read(out.toByteArray(), position);
+        assertEquals("[before, after]", lines.toString());
+        assertEquals(4, position[1]);
+    }
+
+    @Test
+    public void resumesFromCursorUpToEnd() throws IOException {
+        LogRingBuffer<LogItem> log = log(300);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Items from 250 on go to the client through the callbacks
+        LogReplay.write(out, log::readFrom, EPOCH, 200, 250);
+
+        long[] position = new long[2];
+        List<String> lines = read(out.toByteArray(), position);
+        assertEquals(50, lines.size());
+        assertEquals("line 200 MANAGEMENT: >BYTECOUNT:300000", lines.get(0));
+        assertEquals(250, position[1]);
+
+        // Nothing new since the last replay is just the end marker
+        out = new ByteArrayOutputStream();
+        LogReplay.write(out, log::readFrom, EPOCH, 250, 250);
+        assertEquals(0, read(out.toByteArray(), position).size());
+        assertEquals(250, position[1]);
+        assertEquals(4 + 8 + 2 + 8, out.size());
+    }
+}
@@ -0,0 +1,126 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the retention and cursor semantics of {@link LogRingBuffer} and that readers only ever
+ * see consistent, ordered items while a writer laps the ring, without ever holding the writer up.
+ */
+public class LogRingBufferTest {
+
+    @Test
+    public void keepsTheLastCapacityItems() {
+        LogRingBuffer<Long> ring = new LogRingBuffer<>(1000);
+        assertEquals(1024, ring.capacity());
+
+        for (long i = 0; i < 3000; i++)
+            assertEquals(i, ring.publish(i));
+
+        List<Long> items = ring.snapshot();
+        assertEquals(1024, items.size());
+        assertEquals(Long.valueOf(3000 - 1024), items.get(0));
+        assertEquals(Long.valueOf(2999), items.get(items.size() - 1));
+        assertEquals(3000 - 1024, ring.oldestSequence());
+    }
+
+    @Test
+    public void tailsFromCursorAndAcrossClear() {
+        LogRingBuffer<String> ring = new LogRingBuffer<>(8);
+        ring.publish("a");
+        ring.publish("b");
+        long cursor = ring.nextSequence();
+        ring.publish("c");
+
+        final List<String> seen = new ArrayList<>();
+        cursor = ring.readFrom(cursor, (sequence, item) -> seen.add(sequence + item));
+        assertEquals(3, cursor);
+        assertEquals("[2c]", seen.toString());
+
+        // Nothing new
+        assertEquals(3, ring.readFrom(cursor, (sequence, item) -> seen.add(sequence + item)));
+
+        ring.clear();
+        assertEquals(0, ring.size());
+        ring.publish("d");
+        seen.clear();
+        ring.readFrom(0, (sequence, item) -> seen.add(sequence + item));
+        assertEquals("[3d]", seen.toString());
+    }
+
+    @Test
+    public void readersSeeOrderedItemsWhileWriterLaps() throws InterruptedException {
+        final LogRingBuffer<Long> ring = new LogRingBuffer<>(64);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final long writes = 500000;
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                long cursor = 0;
+                final long[] last = {-1};
+                while (!done.get() || cursor < ring.nextSequence()) {
+                    cursor = ring.readFrom(cursor, (sequence, item) -> {
+                        if (item != sequence || sequence <= last[0])
+                            failure.set("item " + item + " at " + sequence + " after " + last[0]);
+                        last[0] = sequence;
+                    });
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (long i = 0; i < writes; i++)
+            ring.publish(i);
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+
+        assertNull(failure.get());
+        assertEquals(writes, ring.nextSequence());
+    }
+
+    @Test
+    public void stalledReaderDoesNotBlockTheWriter() throws InterruptedException {
+        final LogRingBuffer<Long> ring = new LogRingBuffer<>(64);
+        ring.publish(-1L);
+        final CountDownLatch inReader = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> ring.readFrom(0, (sequence, item) -> {
+            inReader.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        reader.start();
+        assertTrue(inReader.await(10, TimeUnit.SECONDS));
+
+        // The reader is parked in the middle of readFrom, the writer still laps the ring
+        Thread writer = new Thread(() -> {
+            for (long i = 0; i < 4 * ring.capacity(); i++)
+                ring.publish(i);
+        });
+        writer.start();
+        writer.join(10000);
+        boolean writerDone = !writer.isAlive();
+        release.countDown();
+        reader.join();
+
+        assertTrue(writerDone);
+        assertEquals(4 * ring.capacity() + 1, ring.nextSequence());
+    }
+}
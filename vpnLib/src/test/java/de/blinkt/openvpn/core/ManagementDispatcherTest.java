@@ -0,0 +1,251 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays management interface transcripts through {@link ManagementLineFramer} and
+ * {@link ManagementDispatcher} against a fake OpenVPNService and records what reaches both sides.
+ */
+public class ManagementDispatcherTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String CONNECT_TRANSCRIPT = ""
+            + ">INFO:OpenVPN Management Interface Version 3 -- type 'help' for more info\r\n"
+            + ">HOLD:Waiting for hold release:0\r\n"
+            + "SUCCESS: hold release succeeded\r\n"
+            + ">STATE:1700000000,RESOLVE,,,,,,\r\n"
+            + ">STATE:1700000001,AUTH,,,\r\n"
+            + ">PASSWORD:Need 'Auth' username/password\r\n"
+            + ">LOG:1700000001,I,0,MANAGEMENT: CMD 'state on'\r\n"
+            + ">LOG:1700000001,W,3,WARNING: cipher with 64 bit block size\r\n"
+            + ">NEED-OK:Need 'PROTECTFD' confirmation MSG:protect_fd_nonlocal\r\n"
+            + ">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.211.1.10 255.255.255.0 1500 subnet\r\n"
+            + ">NEED-OK:Need 'ROUTE' confirmation MSG:0.0.0.0 128.0.0.0 10.211.1.1\r\n"
+            + ">NEED-OK:Need 'ROUTE' confirmation MSG:128.0.0.0 128.0.0.0 10.211.1.1 dev tun0\r\n"
+            + ">NEED-OK:Need 'ROUTE6' confirmation MSG:2000::/3 tun0\r\n"
+            + ">NEED-OK:Need 'DNSSERVER' confirmation MSG:10.211.1.1\r\n"
+            + ">NEED-OK:Need 'DNSDOMAIN' confirmation MSG:vpngate.net\r\n"
+            + ">NEED-OK:Need 'PERSIST_TUN_ACTION' confirmation MSG:OPEN_BEFORE_CLOSE\r\n"
+            + ">NEED-OK:Need 'OPENTUN' confirmation MSG:tun\r\n"
+            + ">STATE:1700000002,CONNECTED,SUCCESS,10.211.1.10,219.100.37.1,1194,,\r\n"
+            + ">BYTECOUNT:12345,678\r\n"
+            + ">BYTECOUNT:99999999999,1\r\n"
+            + ">INFOMSG:OPEN_URL:https://example.net/login\r\n"
+            + ">INFOMSG:WEB_AUTH::done\r\n"
+            + ">PROXY:1,TCP,219.100.37.1\r\n"
+            + ">PK_SIGN:dGVzdA==,RSA_PKCS1_PADDING\r\n"
+            + "PROTECTFD: 42\r\n"
+            + ">UNKNOWN:something\r\n"
+            + "garbage\r\n";
+
+    @Test
+    public void replaysConnectTranscript() throws IOException {
+        FakeOpenVPNService service = new FakeOpenVPNService();
+        RecordingTarget target = new RecordingTarget();
+        replay(CONNECT_TRANSCRIPT, new ManagementDispatcher(target, service));
+
+        assertEquals(asList(
+                "setLocalIP 10.211.1.10 255.255.255.0 1500 subnet",
+                "addRoute 0.0.0.0 128.0.0.0 10.211.1.1 null",
+                "addRoute 128.0.0.0 128.0.0.0 10.211.1.1 tun0",
+                "addRoutev6 2000::/3 tun0",
+                "addDNS 10.211.1.1",
+                "setDomain vpngate.net",
+                "getTunReopenStatus",
+                "trigger_sso OPEN_URL:https://example.net/login"), service.calls);
+
+        assertEquals(asList(
+                "hold 0",
+                "state RESOLVE ,,,,,",
+                "state AUTH ",
+                "password Need 'Auth' username/password",
+                "log I 4 MANAGEMENT: CMD 'state on'",
+                "log W 3 WARNING: cipher with 64 bit block size",
+                "protectfd",
+                "send needok 'PROTECTFD' ok\n",
+                "send needok 'IFCONFIG' ok\n",
+                "send needok 'ROUTE' ok\n",
+                "send needok 'ROUTE' ok\n",
+                "send needok 'ROUTE6' ok\n",
+                "send needok 'DNSSERVER' ok\n",
+                "send needok 'DNSDOMAIN' ok\n",
+                "send needok 'PERSIST_TUN_ACTION' NOACTION\n",
+                "tunfd OPENTUN tun",
+                "send needok 'OPENTUN' cancel\n",
+                "state CONNECTED SUCCESS,10.211.1.10,219.100.37.1,1194,,",
+                "bytecount 12345 678",
+                "bytecount 99999999999 1",
+                "info WEB_AUTH::done",
+                "proxy 0 TCP",
+                "sign dGVzdA==,RSA_PKCS1_PADDING",
+                "protectfd",
+                "unrecognized command >UNKNOWN:something",
+                "unrecognized line garbage"), target.events);
+    }
+
+    @Test
+    public void reportsMalformedNeedOk() throws IOException {
+        FakeOpenVPNService service = new FakeOpenVPNService();
+        RecordingTarget target = new RecordingTarget();
+        replay(">NEED-OK:Need 'ROUTE' confirmation MSG:10.0.0.0\n"
+                + ">NEED-OK:Need 'SOMETHING' confirmation MSG:x\n"
+                + ">HOLD\n", new ManagementDispatcher(target, service));
+
+        assertTrue(target.events.get(0).startsWith("error Unrecognized ROUTE cmd:[10.0.0.0]"));
+        assertEquals("send needok 'ROUTE' ok\n", target.events.get(1));
+        assertEquals("unknown needok Need 'SOMETHING' confirmation MSG:x", target.events.get(2));
+        assertEquals("unrecognized line >HOLD", target.events.get(3));
+        assertTrue(service.calls.isEmpty());
+    }
+
+    private static void replay(String transcript, final ManagementDispatcher dispatcher) throws IOException {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        InputStream in = new ByteArrayInputStream(transcript.getBytes(UTF_8));
+        while (framer.read(in) != -1)
+            framer.processLines(dispatcher::dispatch);
+    }
+
+    private static List<String> asList(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values)
+            list.add(value);
+        return list;
+    }
+
+    private static class FakeOpenVPNService implements ManagementDispatcher.ServiceCallbacks {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void addDNS(String dns) {
+            calls.add("addDNS " + dns);
+        }
+
+        @Override
+        public void setDomain(String domain) {
+            calls.add("setDomain " + domain);
+        }
+
+        @Override
+        public void addRoute(String dest, String mask, String gateway, String device) {
+            calls.add("addRoute " + dest + " " + mask + " " + gateway + " " + device);
+        }
+
+        @Override
+        public void addRoutev6(String network, String device) {
+            calls.add("addRoutev6 " + network + " " + device);
+        }
+
+        @Override
+        public void setLocalIP(String local, String netmask, int mtu, String mode) {
+            calls.add("setLocalIP " + local + " " + netmask + " " + mtu + " " + mode);
+        }
+
+        @Override
+        public void setMtu(int mtu) {
+            calls.add("setMtu " + mtu);
+        }
+
+        @Override
+        public void setLocalIPv6(String ipv6addr) {
+            calls.add("setLocalIPv6 " + ipv6addr);
+        }
+
+        @Override
+        public String getTunReopenStatus() {
+            calls.add("getTunReopenStatus");
+            return "NOACTION";
+        }
+
+        @Override
+        public void trigger_sso(String info) {
+            calls.add("trigger_sso " + info);
+        }
+    }
+
+    private static class RecordingTarget implements ManagementDispatcher.Target {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void sendCommand(String command) {
+            events.add("send " + command);
+        }
+
+        @Override
+        public void onPassword(String argument) {
+            events.add("password " + argument);
+        }
+
+        @Override
+        public void onHold(int waitSeconds) {
+            events.add("hold " + waitSeconds);
+        }
+
+        @Override
+        public void onByteCount(long in, long out) {
+            events.add("bytecount " + in + " " + out);
+        }
+
+        @Override
+        public void onState(String state, String detail) {
+            events.add("state " + state + " " + detail);
+        }
+
+        @Override
+        public void onProxy(int connectionEntry, String protocol) {
+            events.add("proxy " + connectionEntry + " " + protocol);
+        }
+
+        @Override
+        public void onLog(char flag, int ovpnLevel, String message) {
+            events.add("log " + flag + " " + ovpnLevel + " " + message);
+        }
+
+        @Override
+        public void onSign(String argument) {
+            events.add("sign " + argument);
+        }
+
+        @Override
+        public void onInfoMessage(String info) {
+            events.add("info " + info);
+        }
+
+        @Override
+        public void protectNextFd() {
+            events.add("protectfd");
+        }
+
+        @Override
+        public boolean sendTunFd(String needed, String extra) {
+            events.add("tunfd " + needed + " " + extra);
+            // No tun device on the JVM, the dispatcher answers with cancel
+            return false;
+        }
+
+        @Override
+        public void onUnknownNeedOk(String argument) {
+            events.add("unknown needok " + argument);
+        }
+
+        @Override
+        public void onUnrecognized(String line, boolean isCommand) {
+            events.add((isCommand ? "unrecognized command " : "unrecognized line ") + line);
+        }
+
+        @Override
+        public void onError(String message) {
+            events.add("error " + message);
+        }
+    }
+}
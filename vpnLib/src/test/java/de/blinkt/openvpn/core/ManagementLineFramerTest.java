@@ -0,0 +1,204 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ManagementLineFramer} against the previous String based framing of
+ * OpenVpnManagementThread and that it frames a replayed management transcript at least ten times
+ * as fast.
+ */
+public class ManagementLineFramerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_SIZE = 2048;
+
+    @Test
+    public void framesLikeLegacyParser() throws IOException {
+        byte[] transcript = transcript(200);
+        assertEquals(legacyFrame(transcript), frame(transcript));
+    }
+
+    @Test
+    public void handlesCrLfEmptyLinesAndSplitCharacters() throws IOException {
+        byte[] data = ">LOG:1,I,Привет\r\n\n>STATE:1,CONNECTED\npartial".getBytes(UTF_8);
+        // One byte per read splits the Cyrillic characters across reads
+        ManagementLineFramer framer = new ManagementLineFramer();
+        final List<String> lines = new ArrayList<>();
+        InputStream in = new ByteArrayInputStream(data);
+        while (true) {
+            int read = framer.read(new OneByteStream(in));
+            if (read == -1)
+                break;
+            framer.processLines(lines::add);
+        }
+
+        assertEquals(3, lines.size());
+        assertEquals(">LOG:1,I,Привет", lines.get(0));
+        assertEquals("", lines.get(1));
+        assertEquals(">STATE:1,CONNECTED", lines.get(2));
+        assertEquals("partial".length(), framer.pending());
+    }
+
+    @Test
+    public void handlesLinesLongerThanTheBuffer() throws IOException {
+        StringBuilder longLine = new StringBuilder(">LOG:1,D,");
+        for (int i = 0; i < 20000; i++)
+            longLine.append((char) ('a' + i % 26));
+        byte[] data = (longLine + "\n>HOLD:Waiting for hold release:0\n").getBytes(UTF_8);
+
+        List<String> lines = frame(data);
+        assertEquals(2, lines.size());
+        assertEquals(longLine.toString(), lines.get(0));
+    }
+
+    @Test
+    public void framesTranscriptFasterThanLegacyParser() throws IOException {
+        byte[] transcript = transcript(40000);
+        // Warm up both paths
+        for (int i = 0; i < 3; i++) {
+            legacyFrame(transcript);
+            frame(transcript);
+        }
+
+        // Best of a few runs each, so a GC pause in one run does not decide the result
+        long legacy = Long.MAX_VALUE;
+        long framed = Long.MAX_VALUE;
+        int legacyLines = 0;
+        int framedLines = 0;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            legacyLines = legacyFrame(transcript).size();
+            legacy = Math.min(legacy, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            framedLines = frame(transcript).size();
+            framed = Math.min(framed, System.nanoTime() - start);
+        }
+
+        assertEquals(legacyLines, framedLines);
+        assertTrue("legacy " + legacy / 1000 + " us, framer " + framed / 1000 + " us",
+                framed * 10 < legacy);
+    }
+
+    private static List<String> frame(byte[] transcript) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ManagementLineFramer framer = new ManagementLineFramer();
+        InputStream in = new ChunkedStream(transcript, READ_SIZE);
+        while (framer.read(in) != -1)
+            framer.processLines(lines::add);
+        return lines;
+    }
+
+    /**
+     * Framing as done by OpenVpnManagementThread.run/processInput before the framer
+     */
+    private static List<String> legacyFrame(byte[] transcript) throws IOException {
+        List<String> lines = new ArrayList<>();
+        byte[] buffer = new byte[READ_SIZE];
+        String pendingInput = "";
+        InputStream in = new ChunkedStream(transcript, READ_SIZE);
+        while (true) {
+            int numbytesread = in.read(buffer);
+            if (numbytesread == -1)
+                return lines;
+            pendingInput += new String(buffer, 0, numbytesread, "UTF-8");
+            while (pendingInput.contains("\n")) {
+                String[] tokens = pendingInput.split("\\r?\\n", 2);
+                lines.add(tokens[0]);
+                if (tokens.length == 1)
+                    pendingInput = "";
+                else
+                    pendingInput = tokens[1];
+            }
+        }
+    }
+
+    /**
+     * Management session of a connect followed by a log flood and byte count updates
+     */
+    private static byte[] transcript(int updates) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(">INFO:OpenVPN Management Interface Version 3 -- type 'help' for more info\r\n");
+        sb.append(">HOLD:Waiting for hold release:0\r\n");
+        sb.append("SUCCESS: hold release succeeded\r\n");
+        sb.append(">STATE:1700000000,RESOLVE,,,,,,\r\n");
+        sb.append(">STATE:1700000000,WAIT,,,,,,\r\n");
+        sb.append(">STATE:1700000001,AUTH,,,,,,\r\n");
+        sb.append(">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.211.1.10 255.255.255.0 1500 subnet\r\n");
+        sb.append(">NEED-OK:Need 'OPENTUN' confirmation MSG:tun\r\n");
+        sb.append(">STATE:1700000002,CONNECTED,SUCCESS,10.211.1.10,219.100.37.1,1194,,\r\n");
+        long in = 0;
+        long out = 0;
+        for (int i = 0; i < updates; i++) {
+            in += 1500 + i % 700;
+            out += 300 + i % 90;
+            if (i % 3 == 0) {
+                sb.append(">LOG:").append(1700000003 + i).append(",D,MANAGEMENT: CMD 'bytecount 2' ")
+                        .append("data channel packet id ").append(i).append("\r\n");
+            }
+            sb.append(">BYTECOUNT:").append(in).append(',').append(out).append("\r\n");
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Returns at most chunkSize bytes per read, like the management socket
+     */
+    private static class ChunkedStream extends InputStream {
+        private final byte[] data;
+        private final int chunkSize;
+        private int position;
+
+        ChunkedStream(byte[] data, int chunkSize) {
+            this.data = data;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == data.length)
+                return -1;
+            int n = Math.min(Math.min(len, chunkSize), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private static class OneByteStream extends InputStream {
+        private final InputStream in;
+
+        OneByteStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int c = in.read();
+            if (c == -1)
+                return -1;
+            b[off] = (byte) c;
+            return 1;
+        }
+    }
+}
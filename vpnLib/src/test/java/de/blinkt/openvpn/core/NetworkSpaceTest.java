@@ -0,0 +1,156 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Route resolution of {@link NetworkSpace} against a longest prefix match, and that large route
+ * sets resolve in well under a second
+ */
+public class NetworkSpaceTest {
+
+    private static String ip(long ip) {
+        return String.format("%d.%d.%d.%d", (ip >> 24) & 0xff, (ip >> 16) & 0xff, (ip >> 8) & 0xff, ip & 0xff);
+    }
+
+    private static Inet6Address ip6(String address) throws UnknownHostException {
+        return (Inet6Address) InetAddress.getByName(address);
+    }
+
+    private static NetworkSpace.IpAddress find(Vector<NetworkSpace.IpAddress> ips, String net) {
+        for (NetworkSpace.IpAddress ip : ips)
+            if (ip.toString().equals(net))
+                return ip;
+        throw new AssertionError(net + " not in " + ips);
+    }
+
+    private static int countIncluded(Vector<NetworkSpace.IpAddress> ips) {
+        int included = 0;
+        for (NetworkSpace.IpAddress ip : ips)
+            if (ip.isIncluded())
+                included++;
+        return included;
+    }
+
+    @Test
+    public void splitsDefaultRouteAroundExcludedNetwork() {
+        NetworkSpace space = new NetworkSpace();
+        space.addIPSplit(new CIDRIP("0.0.0.0", 0), true);
+        space.addIP(new CIDRIP("10.0.0.0", 8), true);
+        space.addIP(new CIDRIP("192.168.1.0", 24), false);
+        space.addIP(new CIDRIP("192.168.1.128", 25), true);
+
+        Vector<NetworkSpace.IpAddress> ips = space.generateIPList();
+        // The nested network of the same type is not listed on its own, the halves of the
+        // default route are not merged back
+        assertEquals("0.0.0.0/1", ips.get(0).toString());
+        assertEquals("128.0.0.0/2", ips.get(1).toString());
+        // Split from /1 down to /24, then the /24 into its halves
+        assertEquals(1 + 23 + 2, ips.size());
+        assertFalse(find(ips, "192.168.1.0/25").isIncluded());
+        assertTrue(find(ips, "192.168.1.128/25").isIncluded());
+        assertEquals(ips.size() - 1, countIncluded(ips));
+    }
+
+    @Test
+    public void matchesLongestPrefixOnRandomRoutes() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            NetworkSpace space = new NetworkSpace();
+            int n = 1 + random.nextInt(60);
+            long[] nets = new long[n];
+            int[] masks = new int[n];
+            boolean[] included = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                masks[i] = 16 + random.nextInt(13);
+                nets[i] = (0x0a000000L | random.nextInt(0x10000)) & (0xffffffffL << (32 - masks[i]));
+                included[i] = random.nextBoolean();
+                space.addIP(new CIDRIP(ip(nets[i]), masks[i]), included[i]);
+            }
+            // Of equal networks the first one added stays
+            for (int i = 0; i < n; i++)
+                for (int j = 0; j < i; j++)
+                    if (nets[i] == nets[j] && masks[i] == masks[j])
+                        included[i] = included[j];
+
+            Vector<NetworkSpace.IpAddress> ips = space.generateIPList();
+            for (int k = 1; k < ips.size(); k++)
+                assertTrue(ips.get(k - 1).getLastLow() < ips.get(k).getFirstLow());
+
+            for (long address = 0x0a000000L; address < 0x0a010000L; address += 1 + random.nextInt(16)) {
+                int best = -1;
+                for (int i = 0; i < n; i++)
+                    if ((address & (0xffffffffL << (32 - masks[i]))) == nets[i] && (best < 0 || masks[i] > masks[best]))
+                        best = i;
+                NetworkSpace.IpAddress found = null;
+                for (NetworkSpace.IpAddress range : ips)
+                    if (range.getFirstLow() <= address && address <= range.getLastLow())
+                        found = range;
+                if (best < 0) {
+                    assertTrue(ip(address), found == null);
+                } else {
+                    assertTrue(ip(address), found != null);
+                    assertEquals(ip(address), included[best], found.isIncluded());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void resolvesIPv6() throws UnknownHostException {
+        NetworkSpace space = new NetworkSpace();
+        space.addIPv6(ip6("::"), 0, true);
+        space.addIPv6(ip6("2001:db8::"), 32, false);
+        space.addIPv6(ip6("2001:db8:1::"), 48, true);
+
+        Vector<NetworkSpace.IpAddress> ips = space.generateIPList();
+        // Split from /0 down to /32, then from /32 down to /48
+        assertEquals(32 + 16 + 1, ips.size());
+        assertEquals("::/3", ips.get(0).toString());
+        assertEquals("8000::/1", ips.get(ips.size() - 1).toString());
+        assertFalse(find(ips, "2001:db8::/48").isIncluded());
+        assertFalse(find(ips, "2001:db8:8000::/33").isIncluded());
+        assertTrue(find(ips, "2001:db8:1::/48").isIncluded());
+        assertEquals(32 + 1, countIncluded(ips));
+    }
+
+    @Test
+    public void resolvesTenThousandRoutesQuickly() throws UnknownHostException {
+        Random random = new Random(7);
+        NetworkSpace space = new NetworkSpace();
+        space.addIPSplit(new CIDRIP("0.0.0.0", 0), true);
+        for (int i = 0; i < 10000; i++) {
+            int mask = 8 + random.nextInt(25);
+            long net = random.nextInt() & 0xffffffffL & (0xffffffffL << (32 - mask));
+            space.addIP(new CIDRIP(ip(net), mask), random.nextInt(4) != 0);
+        }
+        NetworkSpace space6 = new NetworkSpace();
+        space6.addIPv6(ip6("2000::"), 3, true);
+        byte[] bytes = new byte[16];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(bytes);
+            bytes[0] = (byte) (0x20 | (bytes[0] & 0x1f));
+            space6.addIPv6((Inet6Address) InetAddress.getByAddress(bytes), 16 + random.nextInt(49), random.nextInt(4) != 0);
+        }
+
+        int routes = 0;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 10; run++) {
+            long start = System.nanoTime();
+            routes = countIncluded(space.generateIPList()) + countIncluded(space6.generateIPList());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(routes > 10000);
+        // The sweep takes about 40 ms here
+        assertTrue("resolved in " + best / 1000000 + " ms", best < 500 * 1000000L);
+    }
+}
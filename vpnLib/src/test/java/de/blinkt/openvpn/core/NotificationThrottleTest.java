@@ -0,0 +1,72 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing and skipping of status notification updates in {@link NotificationThrottle}
+ */
+public class NotificationThrottleTest {
+
+    private static final String BG = "bg";
+    private static final String STATUS = "status";
+
+    @Test
+    public void postsChannelChangesAtOnce() {
+        NotificationThrottle throttle = new NotificationThrottle();
+        assertEquals(NotificationThrottle.NOW, throttle.offer(0, STATUS, "Connecting", false, true));
+        assertEquals(NotificationThrottle.NOW, throttle.offer(10, BG, "Connected", false, true));
+        // Even with the screen off
+        assertEquals(NotificationThrottle.NOW, throttle.offer(20, STATUS, "Reconnecting", false, false));
+        // And when the user has to act on the same channel
+        assertEquals(NotificationThrottle.NOW, throttle.offer(30, STATUS, "Password needed", true, true));
+    }
+
+    @Test
+    public void coalescesBurstToLastText() {
+        NotificationThrottle throttle = new NotificationThrottle();
+        throttle.offer(0, STATUS, "Connecting", false, true);
+        long delay = throttle.offer(100, STATUS, "Waiting for server", false, true);
+        assertEquals(NotificationThrottle.MIN_INTERVAL_MS - 100, delay);
+        assertTrue(throttle.offer(200, STATUS, "Authenticating", false, true) > 0);
+        assertTrue(throttle.offer(300, STATUS, "Getting configuration", false, true) > 0);
+
+        assertEquals(NotificationThrottle.NOW, throttle.flush(1000, true));
+        assertFalse(throttle.hasPending());
+        assertEquals(NotificationThrottle.WAIT, throttle.flush(2000, true));
+    }
+
+    @Test
+    public void skipsUnchangedText() {
+        NotificationThrottle throttle = new NotificationThrottle();
+        throttle.offer(0, BG, "1 kB", false, true);
+        assertEquals(NotificationThrottle.WAIT, throttle.offer(5000, BG, "1 kB", false, true));
+        // A change that is reverted before the delay passes is never posted
+        assertEquals(NotificationThrottle.NOW, throttle.offer(5100, BG, "2 kB", false, true));
+        assertTrue(throttle.offer(5200, BG, "3 kB", false, true) > 0);
+        throttle.offer(5300, BG, "2 kB", false, true);
+        assertEquals(NotificationThrottle.WAIT, throttle.flush(6100, true));
+    }
+
+    @Test
+    public void holdsTextWhileScreenOff() {
+        NotificationThrottle throttle = new NotificationThrottle();
+        throttle.offer(0, BG, "1 kB", false, true);
+        for (long t = 2000; t < 600 * 1000; t += 20000)
+            assertEquals(NotificationThrottle.WAIT, throttle.offer(t, BG, t + " kB", false, false));
+        assertTrue(throttle.hasPending());
+        // The latest text is posted as soon as the screen is on again
+        assertEquals(NotificationThrottle.NOW, throttle.flush(600 * 1000, true));
+    }
+
+    @Test
+    public void startsOverAfterReset() {
+        NotificationThrottle throttle = new NotificationThrottle();
+        throttle.offer(0, BG, "1 kB", false, true);
+        throttle.reset();
+        assertEquals(NotificationThrottle.NOW, throttle.offer(100, BG, "1 kB", false, false));
+    }
+}
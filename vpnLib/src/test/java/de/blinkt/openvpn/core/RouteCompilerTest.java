@@ -0,0 +1,308 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parsing, compaction, caching and route limits of bypass lists by {@link RouteCompiler}
+ */
+public class RouteCompilerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static RouteCompiler.Compiled compile(String list) throws IOException {
+        RouteCompiler.Prefixes v4 = new RouteCompiler.Prefixes(16);
+        RouteCompiler.Prefixes v6 = new RouteCompiler.Prefixes(16);
+        int invalid = RouteCompiler.parse(new ByteArrayInputStream(list.getBytes(UTF_8)), v4, v6);
+        RouteCompiler.Compiled compiled = new RouteCompiler.Compiled(RouteCompiler.compact(v4, true),
+                RouteCompiler.compact(v6, false));
+        compiled.invalidLines = invalid;
+        return compiled;
+    }
+
+    @Test
+    public void parsesBothFamiliesAndSkipsComments() throws IOException {
+        RouteCompiler.Prefixes v4 = new RouteCompiler.Prefixes(16);
+        RouteCompiler.Prefixes v6 = new RouteCompiler.Prefixes(16);
+        String list = "# Example country\n"
+                + "1.0.1.0/24\n"
+                + "  192.168.1.77/24   # host bits are cleared\r\n"
+                + "10.1.2.3\n"
+                + "\n"
+                + "2001:db8::/32\n"
+                + "::1\n"
+                + "2001:DB8:0:1::/64\n"
+                + "bogus\n"
+                + "300.1.1.1/8\n"
+                + "1.2.3.4/33\n"
+                + "2001:db8:::1/64\n"
+                + "1:2:3:4:5:6:7:8";
+        int invalid = RouteCompiler.parse(new ByteArrayInputStream(list.getBytes(UTF_8)), v4, v6);
+
+        assertEquals(4, invalid);
+        assertEquals(3, v4.size);
+        assertEquals(0x01000100L, v4.low[0]);
+        assertEquals(24, v4.getLen(0));
+        assertEquals(0xc0a80100L, v4.low[1]);
+        assertEquals(0x0a010203L, v4.low[2]);
+        assertEquals(32, v4.getLen(2));
+
+        assertEquals(4, v6.size);
+        assertEquals(0x20010db800000000L, v6.high[0]);
+        assertEquals(32, v6.getLen(0));
+        assertEquals(0, v6.high[1]);
+        assertEquals(1, v6.low[1]);
+        assertEquals(128, v6.getLen(1));
+        assertEquals(0x20010db800000001L, v6.high[2]);
+        assertEquals(0x0001000200030004L, v6.high[3]);
+        assertEquals(0x0005000600070008L, v6.low[3]);
+    }
+
+    @Test
+    public void compactsToSmallestCover() throws IOException {
+        Random random = new Random(3);
+        for (int round = 0; round < 20; round++) {
+            boolean[] covered = new boolean[0x10000];
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                int mask = 18 + random.nextInt(15);
+                int net = random.nextInt(0x10000) & (0xffff << (32 - mask)) & 0xffff;
+                list.append("10.0.").append(net >> 8).append('.').append(net & 0xff).append('/').append(mask).append('\n');
+                for (int a = net; a < net + (1 << (32 - mask)); a++)
+                    covered[a] = true;
+            }
+            RouteCompiler.Prefixes v4 = compile(list.toString()).v4;
+
+            boolean[] compacted = new boolean[0x10000];
+            for (int i = 0; i < v4.size; i++) {
+                int first = (int) (v4.low[i] & 0xffff);
+                int size = 1 << (32 - v4.getLen(i));
+                assertEquals(0, first % size);
+                for (int a = first; a < first + size; a++) {
+                    assertFalse(compacted[a]);
+                    compacted[a] = true;
+                }
+                if (i > 0) {
+                    assertTrue(v4.low[i - 1] < v4.low[i]);
+                    // Two halves of one network would have been joined
+                    boolean siblings = v4.getLen(i - 1) == v4.getLen(i)
+                            && (v4.low[i - 1] ^ v4.low[i]) == 1L << (32 - v4.getLen(i));
+                    assertFalse(siblings);
+                }
+            }
+            for (int a = 0; a < 0x10000; a++)
+                assertEquals(covered[a], compacted[a]);
+        }
+    }
+
+    @Test
+    public void joinsUpToWholeAddressSpace() throws IOException {
+        RouteCompiler.Compiled compiled = compile("128.0.0.0/1\n0.0.0.0/1\n8000::/1\n::/1\n2001:db8::/48\n");
+        assertEquals(1, compiled.getIPv4Count());
+        assertEquals(0, compiled.v4.getLen(0));
+        assertEquals(1, compiled.getIPv6Count());
+        assertEquals(0, compiled.v6.getLen(0));
+
+        compiled = compile("2001:db8::/33\n2001:db8:8000::/33\n2001:db9::/32\n2001:db8:1::/48\n");
+        // 2001:db8::/32 and 2001:db9::/32 are the halves of 2001:db8::/31
+        assertEquals(1, compiled.getIPv6Count());
+        assertEquals(0x20010db800000000L, compiled.v6.high[0]);
+        assertEquals(31, compiled.v6.getLen(0));
+    }
+
+    @Test
+    public void readsBackCompiledLists() throws IOException {
+        RouteCompiler.Compiled compiled = compile("1.0.1.0/24\n1.0.4.0/22\n2001:db8::/32\nbogus\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RouteCompiler.write(compiled, out);
+        RouteCompiler.Compiled read = RouteCompiler.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(1, read.invalidLines);
+        assertEquals(2, read.getIPv4Count());
+        assertEquals(0x01000400L, read.v4.low[1]);
+        assertEquals(22, read.v4.getLen(1));
+        assertEquals(0x20010db800000000L, read.v6.high[0]);
+        assertEquals(32, read.v6.getLen(0));
+    }
+
+    @Test
+    public void overlaysWithoutChangingRoutes() throws IOException {
+        NetworkSpace routes = new NetworkSpace();
+        routes.addIPSplit(new CIDRIP("0.0.0.0", 0), true);
+        routes.addIP(new CIDRIP("10.1.0.0", 16), true);
+
+        NetworkSpace space = compile("10.0.0.0/8\n").overlay(routes, true);
+        assertTrue(routes.getNetworks(false).isEmpty());
+
+        Vector<NetworkSpace.IpAddress> ips = space.generateIPList();
+        boolean excluded = false;
+        for (NetworkSpace.IpAddress ip : ips) {
+            if (ip.toString().equals("10.0.0.0/16"))
+                excluded = !ip.isIncluded();
+            // The pushed route is more specific than the bypass list
+            if (ip.toString().equals("10.1.0.0/16"))
+                assertTrue(ip.isIncluded());
+        }
+        assertTrue(excluded);
+    }
+
+    @Test
+    public void countsTheRoutesTheResolutionNeeds() throws IOException {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                int mask = 4 + random.nextInt(29);
+                long net = random.nextInt() & 0xffffffffL & (0xffffffffL << (32 - mask));
+                list.append(ip(net)).append('/').append(mask).append('\n');
+            }
+            RouteCompiler.Compiled compiled = compile(list.toString());
+
+            assertEquals(included(compiled.overlay(defaultRoutes(), true)),
+                    RouteCompiler.countRoutes(compiled.v4, 32, true, false));
+            assertEquals(compiled.getIPv4Count(), RouteCompiler.countRoutes(compiled.v4, 32, true, true));
+        }
+        // Nothing to go around, and nothing left
+        assertEquals(1, RouteCompiler.countRoutes(compile("").v4, 32, true, false));
+        assertEquals(0, RouteCompiler.countRoutes(compile("0.0.0.0/0\n").v4, 32, true, false));
+        assertEquals(1, RouteCompiler.countRoutes(compile("").v6, 128, false, false));
+    }
+
+    @Test
+    public void keepsListsThatFit() throws IOException {
+        RouteCompiler.Compiled compiled = compile("1.0.1.0/24\n1.0.4.0/22\n2001:db8::/32\n");
+        assertSame(compiled, compiled.limit(RouteCompiler.MAX_ROUTES, true));
+        assertSame(compiled, compiled.limit(RouteCompiler.MAX_ROUTES, false));
+        // Even without any network each family needs a route
+        assertNull(compiled.limit(1, false));
+    }
+
+    @Test
+    public void limitsALargeListToRealisticRouteCounts() throws IOException {
+        RouteCompiler.Compiled compiled = compile(largeList());
+        NetworkSpace routes = defaultRoutes();
+        NetworkSpace routes6 = defaultRoutes6();
+        assertTrue(included(compiled.overlay(routes, true)) > 10 * RouteCompiler.MAX_ROUTES);
+        assertTrue(compiled.getIPv4Count() + compiled.getIPv6Count() > 10 * RouteCompiler.MAX_ROUTES);
+
+        // Below Android 13: routes around the networks, one of the budget is the server route
+        RouteCompiler.Compiled overlaid = compiled.limit(RouteCompiler.MAX_ROUTES - 2, false);
+        int resolved = included(overlaid.overlay(routes, true)) + included(overlaid.overlay(routes6, false));
+        assertTrue(resolved + " routes", resolved <= RouteCompiler.MAX_ROUTES - 2);
+        assertTrue(resolved > RouteCompiler.MAX_ROUTES / 2);
+        assertLargestKept(compiled, overlaid);
+
+        // Android 13: the networks themselves are excluded
+        RouteCompiler.Compiled excluded = compiled.limit(RouteCompiler.MAX_ROUTES - 2, true);
+        int networks = excluded.getIPv4Count() + excluded.getIPv6Count();
+        assertTrue(networks + " networks", networks <= RouteCompiler.MAX_ROUTES - 2);
+        assertTrue(networks > RouteCompiler.MAX_ROUTES / 2);
+        assertLargestKept(compiled, excluded);
+    }
+
+    @Test
+    public void compilesAndResolvesALargeListQuickly() throws IOException {
+        byte[] list = largeList().getBytes(UTF_8);
+        NetworkSpace routes = defaultRoutes();
+        NetworkSpace routes6 = defaultRoutes6();
+
+        // The work openTun does for a list that is not cached yet, best of a few runs
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            RouteCompiler.Prefixes v4 = new RouteCompiler.Prefixes(16);
+            RouteCompiler.Prefixes v6 = new RouteCompiler.Prefixes(16);
+            RouteCompiler.parse(new ByteArrayInputStream(list), v4, v6);
+            RouteCompiler.Compiled compiled = new RouteCompiler.Compiled(RouteCompiler.compact(v4, true),
+                    RouteCompiler.compact(v6, false));
+            ByteArrayOutputStream cache = new ByteArrayOutputStream();
+            RouteCompiler.write(compiled, cache);
+            compiled = RouteCompiler.read(new ByteArrayInputStream(cache.toByteArray()));
+            RouteCompiler.Compiled limited = compiled.limit(RouteCompiler.MAX_ROUTES - 2, false);
+            int resolved = limited.overlay(routes, true).generateIPList().size()
+                    + limited.overlay(routes6, false).generateIPList().size();
+            best = Math.min(best, System.nanoTime() - start);
+            assertTrue(resolved > RouteCompiler.MAX_ROUTES / 2);
+        }
+        assertTrue(best / 1000000 + " ms", best < 1000L * 1000000);
+    }
+
+    /**
+     * About 50000 IPv4 networks clustered like the allocations of a country, and 5000 IPv6 ones
+     */
+    private static String largeList() {
+        Random random = new Random(11);
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            int block = 1 + random.nextInt(220);
+            int mask = 16 + random.nextInt(9);
+            long net = ((long) block << 24 | random.nextInt(1 << 24)) & (0xffffffffL << (32 - mask));
+            list.append(ip(net)).append('/').append(mask).append('\n');
+        }
+        for (int i = 0; i < 5000; i++)
+            list.append(String.format(Locale.US, "2001:%x:%x::/%d\n", random.nextInt(0x10000),
+                    random.nextInt(0x10000), 32 + random.nextInt(17)));
+        return list.toString();
+    }
+
+    /**
+     * Only whole networks of the list are kept, and none is smaller than one that was dropped
+     */
+    private static void assertLargestKept(RouteCompiler.Compiled all, RouteCompiler.Compiled kept) {
+        for (boolean ipv4 : new boolean[]{true, false}) {
+            RouteCompiler.Prefixes a = ipv4 ? all.v4 : all.v6;
+            RouteCompiler.Prefixes k = ipv4 ? kept.v4 : kept.v6;
+            int longestKept = -1;
+            int shortestDropped = Integer.MAX_VALUE;
+            int j = 0;
+            for (int i = 0; i < a.size; i++) {
+                if (j < k.size && a.high[i] == k.high[j] && a.low[i] == k.low[j] && a.getLen(i) == k.getLen(j)) {
+                    longestKept = Math.max(longestKept, k.getLen(j));
+                    j++;
+                } else {
+                    shortestDropped = Math.min(shortestDropped, a.getLen(i));
+                }
+            }
+            assertEquals(k.size, j);
+            assertTrue(longestKept < shortestDropped);
+        }
+    }
+
+    private static NetworkSpace defaultRoutes() {
+        NetworkSpace routes = new NetworkSpace();
+        routes.addIPSplit(new CIDRIP("0.0.0.0", 0), true);
+        return routes;
+    }
+
+    private static NetworkSpace defaultRoutes6() {
+        NetworkSpace routes = new NetworkSpace();
+        routes.addIPv6(0, 0, 0, true);
+        return routes;
+    }
+
+    private static int included(NetworkSpace space) {
+        int count = 0;
+        for (NetworkSpace.IpAddress ip : space.generateIPList()) {
+            if (ip.isIncluded())
+                count++;
+        }
+        return count;
+    }
+
+    private static String ip(long ip) {
+        return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) & 0xff, (ip >> 16) & 0xff, (ip >> 8) & 0xff, ip & 0xff);
+    }
+}
@@ -0,0 +1,181 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link TrafficHistory} with the LinkedList based implementation it replaced and
+ * checks it records a simulated month long connection at least three times as fast.
+ */
+public class TrafficHistoryTest {
+
+    private static final long START = 1700000000000L;
+
+    @Test
+    public void keepsSameSamplesAsLegacyHistory() {
+        TrafficHistory history = new TrafficHistory();
+        LegacyTrafficHistory legacy = new LegacyTrafficHistory();
+
+        long in = 0;
+        long out = 0;
+        // Ten hours of byte counts every two seconds
+        for (long t = START; t < START + 10 * 3600 * 1000L; t += 2000) {
+            in += 1500 + t % 7000;
+            out += 300 + t % 900;
+            TrafficHistory.LastDiff diff = history.add(in, out, t);
+            long[] legacyDiff = legacy.add(in, out, t);
+            assertEquals(legacyDiff[0], diff.getDiffIn());
+            assertEquals(legacyDiff[1], diff.getDiffOut());
+        }
+
+        assertSameSamples(legacy.seconds, history.getSeries(TrafficHistory.SECONDS));
+        assertSameSamples(legacy.minutes, history.getSeries(TrafficHistory.MINUTES));
+        assertSameSamples(legacy.hours, history.getSeries(TrafficHistory.HOURS));
+        // The first sample and the first one after midnight UTC
+        assertEquals(2, history.getSeries(TrafficHistory.DAYS).size());
+    }
+
+    @Test
+    public void ringsStayBoundedOverLongConnections() {
+        TrafficHistory history = new TrafficHistory();
+        long t = START;
+        // 100 days, one sample a minute
+        for (int i = 0; i < 100 * 24 * 60; i++, t += 60000)
+            history.add(i * 1000L, i * 100L, t);
+
+        // Five to six hours of minutes, five to six days of hours, rings are trimmed once a period
+        assertBetween(5 * 60, 6 * 60, history.getSeries(TrafficHistory.MINUTES).size());
+        assertBetween(5 * 24, 6 * 24, history.getSeries(TrafficHistory.HOURS).size());
+        assertEquals(64, history.getSeries(TrafficHistory.DAYS).size());
+        TrafficHistory.Series days = history.getSeries(TrafficHistory.DAYS);
+        assertEquals(TrafficHistory.TIME_PERIOD_DAYS, days.get(1, 0) - days.get(0, 0));
+    }
+
+    @Test
+    public void packsIntoOneArray() {
+        TrafficHistory history = new TrafficHistory();
+        for (long t = START; t < START + 3 * 3600 * 1000L; t += 1000)
+            history.add(t - START, (t - START) / 2, t);
+
+        long[] packed = history.toArray();
+        TrafficHistory copy = TrafficHistory.fromArray(packed);
+        for (int r = TrafficHistory.SECONDS; r <= TrafficHistory.DAYS; r++) {
+            TrafficHistory.Series a = history.getSeries(r);
+            TrafficHistory.Series b = copy.getSeries(r);
+            assertEquals(a.size(), b.size());
+            for (int i = 0; i < a.size(); i++)
+                for (int f = 0; f < 3; f++)
+                    assertEquals(a.get(i, f), b.get(i, f));
+        }
+        assertEquals(history.getLastDiff(null).getDiffIn(), copy.getLastDiff(null).getDiffIn());
+        assertEquals(1000, copy.getLastDiff(null).getDiffIn());
+
+        // Adding continues where the original would
+        assertEquals(history.add(1, 1, START + 3 * 3600 * 1000L).getIn(),
+                copy.add(1, 1, START + 3 * 3600 * 1000L).getIn());
+        assertEquals(history.getSeries(TrafficHistory.MINUTES).size(), copy.getSeries(TrafficHistory.MINUTES).size());
+    }
+
+    @Test
+    public void addsFasterThanLegacyHistory() {
+        int samples = 2000000;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            runLegacy(samples / 10);
+            runPrimitive(samples / 10);
+        }
+        // Best of a few runs each, so a GC pause in one run does not decide the result
+        long legacy = Long.MAX_VALUE;
+        long primitive = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            legacy = Math.min(legacy, runLegacy(samples));
+            primitive = Math.min(primitive, runPrimitive(samples));
+        }
+        assertTrue("legacy " + legacy / 1000000 + " ms, primitive " + primitive / 1000000 + " ms",
+                primitive * 3 < legacy);
+    }
+
+    private static long runLegacy(int samples) {
+        LegacyTrafficHistory legacy = new LegacyTrafficHistory();
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++)
+            legacy.add(i * 1500L, i * 300L, START + i * 1000L);
+        return System.nanoTime() - start;
+    }
+
+    private static long runPrimitive(int samples) {
+        TrafficHistory history = new TrafficHistory();
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++)
+            history.add(i * 1500L, i * 300L, START + i * 1000L);
+        return System.nanoTime() - start;
+    }
+
+    private static void assertBetween(int min, int max, int actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+
+    private static void assertSameSamples(LinkedList<long[]> expected, TrafficHistory.Series actual) {
+        assertEquals(expected.size(), actual.size());
+        int i = 0;
+        for (long[] sample : expected) {
+            for (int f = 0; f < 3; f++)
+                assertEquals(sample[f], actual.get(i, f));
+            i++;
+        }
+    }
+
+    /**
+     * The sample bookkeeping of TrafficHistory before the primitive rings, without parceling
+     */
+    private static class LegacyTrafficHistory {
+        final LinkedList<long[]> seconds = new LinkedList<>();
+        final LinkedList<long[]> minutes = new LinkedList<>();
+        final LinkedList<long[]> hours = new LinkedList<>();
+        long[] lastSecondUsedForMinute;
+        long[] lastMinuteUsedForHours;
+
+        long[] add(long in, long out, long timestamp) {
+            long[] tdp = {timestamp, in, out};
+            long[] last = seconds.isEmpty() ? new long[]{0, 0, 0} : seconds.getLast();
+            long[] diff = {Math.max(0, in - last[1]), Math.max(0, out - last[2])};
+            seconds.add(tdp);
+            if (lastSecondUsedForMinute == null) {
+                lastSecondUsedForMinute = new long[]{0, 0, 0};
+                lastMinuteUsedForHours = new long[]{0, 0, 0};
+            }
+            removeAndAverage(tdp, true);
+            return diff;
+        }
+
+        private void removeAndAverage(long[] newTdp, boolean secondsList) {
+            HashSet<long[]> toRemove = new HashSet<>();
+            Vector<long[]> toAverage = new Vector<>();
+
+            long timePeriod = secondsList ? TrafficHistory.TIME_PERIOD_MINTUES : TrafficHistory.TIME_PERIOD_HOURS;
+            LinkedList<long[]> tpList = secondsList ? seconds : minutes;
+            LinkedList<long[]> nextList = secondsList ? minutes : hours;
+            long[] lastTsPeriod = secondsList ? lastSecondUsedForMinute : lastMinuteUsedForHours;
+
+            if (newTdp[0] / timePeriod > (lastTsPeriod[0] / timePeriod)) {
+                nextList.add(newTdp);
+                if (secondsList) {
+                    lastSecondUsedForMinute = newTdp;
+                    removeAndAverage(newTdp, false);
+                } else {
+                    lastMinuteUsedForHours = newTdp;
+                }
+                for (long[] tph : tpList) {
+                    if ((newTdp[0] - tph[0]) / timePeriod >= TrafficHistory.PERIODS_TO_KEEP)
+                        toRemove.add(tph);
+                }
+                tpList.removeAll(toRemove);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Window sums and idle detection of {@link TrafficWindow} against the list based window
+ * DeviceStateReceiver used before
+ */
+public class TrafficWindowTest {
+
+    private static final long WINDOW = 60 * 1000;
+    private static final long LIMIT = 64 * 1024;
+
+    /**
+     * The list based window, it removes everything at least a window old
+     */
+    private static class ListWindow {
+        final LinkedList<long[]> points = new LinkedList<>();
+
+        long add(long now, long bytes) {
+            points.add(new long[]{now, bytes});
+            while (points.getFirst()[0] <= now - WINDOW)
+                points.removeFirst();
+            long sum = 0;
+            for (long[] p : points)
+                sum += p[1];
+            return sum;
+        }
+    }
+
+    @Test
+    public void sumCoversTheWindowToOneBucket() {
+        Random random = new Random(7);
+        TrafficWindow window = new TrafficWindow(WINDOW);
+        ListWindow list = new ListWindow();
+        long now = 1000000;
+        window.start(now, 0);
+        long bucket = WINDOW / 12;
+        for (int i = 0; i < 5000; i++) {
+            now += 500 + random.nextInt(4000);
+            long bytes = random.nextInt(20000);
+            window.add(now, bytes);
+            list.add(now, bytes);
+
+            // Buckets expire as a whole, the oldest bucket may already be gone
+            long all = 0;
+            long withoutOldestBucket = 0;
+            for (long[] p : list.points) {
+                all += p[1];
+                if (p[0] > now - WINDOW + bucket)
+                    withoutOldestBucket += p[1];
+            }
+            long sum = window.sum(now);
+            assertTrue(sum <= all);
+            assertTrue(sum >= withoutOldestBucket);
+        }
+        // Nothing left after a quiet window
+        assertEquals(0, window.sum(now + WINDOW));
+    }
+
+    @Test
+    public void idlePhonePausesBeforeTheWindowPassed() {
+        TrafficWindow window = new TrafficWindow(WINDOW);
+        long screenOff = 1000000;
+        window.start(screenOff, LIMIT);
+
+        // A few hundred bytes of keepalives every 20 seconds
+        long t = screenOff + 20000;
+        window.add(t, 300);
+        assertTrue(window.isIdle(t, LIMIT));
+
+        // Still streaming: 50 kB every 20 seconds never looks idle
+        window.start(screenOff, LIMIT);
+        for (t = screenOff + 20000; t < screenOff + 5 * WINDOW; t += 20000) {
+            window.add(t, 50 * 1024);
+            assertFalse(window.isIdle(t, LIMIT));
+        }
+
+        // The stream stops, the pause follows within the time constant instead of a full window
+        long stop = t;
+        for (; !window.isIdle(t, LIMIT); t += 20000)
+            window.add(t, 0);
+        assertTrue(t - stop < WINDOW);
+    }
+}
@@ -0,0 +1,120 @@
+package de.blinkt.openvpn.utils;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batching, queries, recovery and compaction of the {@link TrafficStore} journal
+ */
+public class TrafficStoreTest {
+
+    private static final long DAY = 24L * 3600 * 1000;
+    // Noon UTC a month ago, recent enough not to expire and the ticks stay within one local day
+    private static final long NOON = System.currentTimeMillis() / DAY * DAY - 30 * DAY + DAY / 2;
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("traffic", ".journal");
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void batchesTicksIntoOneRecordPerFlush() throws IOException {
+        File file = tempFile();
+        TrafficStore store = new TrafficStore(file, 60000);
+
+        // Ten minutes of ticks every two seconds
+        for (long t = NOON; t < NOON + 600 * 1000; t += 2000) {
+            store.add("vpn1.example.com", "Japan", t, 1000, 100);
+            store.flushIfDue(t);
+        }
+        store.flush();
+
+        assertEquals(10, store.getRecordsOnDisk());
+        int day = TrafficStore.dayOf(NOON);
+        assertEquals(300 * 1000, store.query(day, day, null, null).getBytesIn());
+        assertEquals(300 * 100, store.query(day, day, null, "Japan").getBytesOut());
+        assertEquals(0, store.query(day + 1, day + 7, null, null).getTotal());
+    }
+
+    @Test
+    public void answersRangesPerCountryAndServer() throws IOException {
+        File file = tempFile();
+        TrafficStore store = new TrafficStore(file);
+        for (int d = 0; d < 14; d++) {
+            store.add("jp1", "Japan", NOON + d * DAY, 1000, 10);
+            store.add("kr1", "Korea", NOON + d * DAY, 2000, 20);
+            store.add("kr2", "Korea", NOON + d * DAY, 3000, 30);
+        }
+        store.flush();
+
+        store = new TrafficStore(file);
+        int first = TrafficStore.dayOf(NOON);
+        assertEquals(7 * 6000, store.query(first + 7, first + 13, null, null).getBytesIn());
+        assertEquals(14 * 2000, store.query(first, first + 20, "kr1", null).getBytesIn());
+
+        Map<String, TrafficStore.Usage> countries = store.byCountry(first, first + 6);
+        assertEquals(2, countries.size());
+        assertEquals(7 * 5000, countries.get("Korea").getBytesIn());
+        assertEquals(7 * 10, countries.get("Japan").getBytesOut());
+        assertEquals(3, store.byServer(first, first).size());
+
+        // Unflushed counts show up in queries too
+        store.add("jp1", "Japan", NOON, 5, 0);
+        assertEquals(1005, store.query(first, first, "jp1", null).getBytesIn());
+    }
+
+    @Test
+    public void dropsRecordCutOffByCrash() throws IOException {
+        File file = tempFile();
+        TrafficStore store = new TrafficStore(file);
+        store.add("jp1", "Japan", NOON, 1000, 10);
+        store.flush();
+        store.add("jp1", "Japan", NOON, 500, 5);
+        store.flush();
+        long whole = file.length();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(whole - 3);
+        raf.close();
+
+        store = new TrafficStore(file);
+        int day = TrafficStore.dayOf(NOON);
+        assertEquals(1000, store.query(day, day, null, null).getBytesIn());
+
+        // Appends go behind the intact record
+        store.add("jp1", "Japan", NOON, 7, 0);
+        store.flush();
+        store = new TrafficStore(file);
+        assertEquals(1007, store.query(day, day, null, null).getBytesIn());
+    }
+
+    @Test
+    public void compactsAndExpiresOldDays() throws IOException {
+        File file = tempFile();
+        TrafficStore store = new TrafficStore(file);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            store.add("jp1", "Japan", now, 1, 1);
+            store.flush();
+        }
+        assertTrue(store.getRecordsOnDisk() < 300);
+        int today = TrafficStore.dayOf(now);
+        assertEquals(1000, store.query(today, today, null, null).getBytesIn());
+
+        store.add("old", "Japan", now - (TrafficStore.KEEP_DAYS + 5) * DAY, 1, 1);
+        store.flush();
+        store = new TrafficStore(file);
+        assertEquals(1, store.getRecordsOnDisk());
+        assertFalse(store.byServer(0, today).containsKey("old"));
+    }
+}